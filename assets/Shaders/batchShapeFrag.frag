@@ -0,0 +1,70 @@
+varying vec4 myPos;
+varying vec4 shape;
+varying vec4 fillColor;
+varying vec4 borderColor;
+varying vec3 style;
+
+// same as calculate() in shapeFrag.frag, with the note's size and curve passed in
+// pos = position of pixel inside the note
+// w, h = note's width and height (divided by two)
+// rW, rH = desired radius of width and height curves
+bool calculate(vec4 pos, float w, float h, float rW, float rH, float width, float height, float curve) {
+    float x = abs(pos.x - w);
+    float y = abs(pos.y - h);
+    if (x < w - rW || y < h - rH) {
+        return false;
+    } else {
+        // we have to find a new distance...
+        if (pos.x > w)
+            x = (pos.x - width) + rW;
+        else
+            x = pos.x - rW;
+        if (pos.y > h)
+            y = (pos.y - height) + rH;
+        else
+            y = pos.y - rH;
+        if ((pow(abs(x),curve))/pow(abs(rW),curve)
+            + pow(abs(y),curve)/pow(abs(rH),curve) > 1.0) {
+            return true;
+        } else {
+            return false;
+        }
+    }
+}
+
+void main(){
+    float width = shape.x;
+    float height = shape.y;
+    float radiusW = shape.z;
+    float radiusH = shape.w;
+    float borderSize = style.x;
+    float curve = style.y;
+
+    vec4 color = borderColor;
+
+    float halfW = width/2.0;
+    float halfH = height/2.0;
+
+    // round it... if it's outside of our desired "area" we discard the pixel...
+    if (calculate(myPos, halfW, halfH, radiusW, radiusH, width, height, curve)) {
+        discard;
+    } else {
+        float newWidth = halfW - borderSize;
+        float newHeight = halfH - borderSize;
+        if (abs(myPos.x - halfW) < newWidth && abs(myPos.y - halfH) < newHeight) {
+            vec4 newPos = vec4(1.0);
+            newPos.x = (((myPos.x - halfW) * halfW) / newWidth) + halfW;
+            newPos.y = (((myPos.y - halfH) * halfH) / newHeight) + halfH;
+            if (calculate(newPos, halfW, halfH, radiusW, radiusH, width, height, curve)) {
+                color = borderColor;
+            } else {
+                color = fillColor;
+                if (style.z > 0.5) {
+                    color.rgb -= color.rgb * (myPos.y*0.5);
+                }
+            }
+        }
+    }
+
+    gl_FragColor = color;
+}
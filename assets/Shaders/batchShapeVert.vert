@@ -0,0 +1,22 @@
+uniform mat4 g_WorldViewProjectionMatrix;
+attribute vec3 inPosition;
+attribute vec2 inTexCoord;  // position inside the note, 0 to width, 0 to height
+attribute vec4 inTexCoord2; // width, height, radiusW, radiusH
+attribute vec4 inTexCoord3; // border color
+attribute vec3 inTexCoord4; // border size, curve, gradient
+attribute vec4 inColor;
+
+varying vec4 myPos;
+varying vec4 shape;
+varying vec4 fillColor;
+varying vec4 borderColor;
+varying vec3 style;
+
+void main(){
+    gl_Position = g_WorldViewProjectionMatrix * vec4(inPosition, 1.0);
+    myPos = vec4(inTexCoord, 0.0, 1.0);
+    shape = inTexCoord2;
+    fillColor = inColor;
+    borderColor = inTexCoord3;
+    style = inTexCoord4;
+}
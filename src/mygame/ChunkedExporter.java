@@ -0,0 +1,431 @@
+/*
+ * Exports a range of frames in chunks, on a number of worker threads at once... each worker has its own
+ * SoftwareRenderer and takes the next chunk of frames whenever it's done with one, and since every frame
+ * is drawn from a FrameState (not from playing through the frames before it), the chunks don't depend on each other
+ *
+ * frames are written where they belong as soon as they're drawn: pngs by number, raw frames into their own
+ * spot in the file (see RawFrameWriter)... a raw stream has to go out in order, so there the workers take one frame
+ * at a time and hand it to a writer thread, which puts them out in order... a few finished frames can wait for
+ * the writer (STREAM_AHEAD more than there are workers), so drawing only waits when the stream can't keep up
+ *
+ * exports can also be split over separate java processes (see exportWithProcesses), each one running
+ * Main -headless on its own range into its own raw file, which are then stitched together in order
+ */
+package mygame;
+
+import com.jme3.util.BufferUtils;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class ChunkedExporter {
+
+    // draws one frame of the export (from a worker thread, so it mustn't change anything)
+    public interface FrameDrawer {
+        public void drawFrame(SoftwareRenderer renderer, int frame);
+    }
+
+    // what each worker did...
+    private static class WorkerStats {
+        int frames = 0;
+        int chunks = 0;
+        long renderNanos = 0;
+        long writeNanos = 0;
+        long waitNanos = 0; // (streams) waiting for a free buffer, because the writer is behind
+        long busyNanos = 0;
+    }
+
+    private static final int STREAM_AHEAD = 8; // finished frames that may wait for the stream writer
+
+    private FrameDrawer drawer;
+    private int width, height;
+    private int workerCount;
+    private int chunkSize; // frames a worker takes at a time
+
+    // the export going on...
+    private int firstFrame, frameCount;
+    private String pngPrefix; // (null when writing raw)
+    private RawFrameWriter rawWriter;
+    private AtomicInteger nextChunk = new AtomicInteger();
+    private volatile boolean failed = false;
+    private WorkerStats[] stats = new WorkerStats[0];
+    private long exportNanos = 0;
+
+    // streaming... finished frames wait in finishedFrames (by number, guarded by itself) until the writer gets to them
+    private boolean streaming = false;
+    private BlockingQueue<ByteBuffer> freeBuffers = new LinkedBlockingQueue<ByteBuffer>();
+    private final Map<Integer, ByteBuffer> finishedFrames = new HashMap<Integer, ByteBuffer>();
+    private long writerWaitNanos = 0; // the writer waiting for the next frame to be drawn
+    private long writerWriteNanos = 0;
+
+    public ChunkedExporter(FrameDrawer drawer, int width, int height, int workerCount, int chunkSize) {
+        this.drawer = drawer;
+        this.width = width;
+        this.height = height;
+        this.workerCount = Math.max(1, workerCount);
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    // frames firstFrame to firstFrame + frameCount - 1 as pngs, named prefix + (frame + 1) + ".png"
+    // (the same numbers a FrameExporter would give them)... returns false if any frame failed
+    public boolean exportPngs(String prefix, int firstFrame, int frameCount) {
+        pngPrefix = prefix;
+        rawWriter = null;
+        return export(firstFrame, frameCount);
+    }
+
+    // the frames go to writer, the first one as frame 0 (closing the writer is up to you)
+    public boolean exportRaw(RawFrameWriter writer, int firstFrame, int frameCount) {
+        if (writer.getWidth() != width || writer.getHeight() != height)
+            throw new IllegalArgumentException("Writer is " + writer.getWidth() + "x" + writer.getHeight() + " but frames are " + width + "x" + height);
+        pngPrefix = null;
+        rawWriter = writer;
+        return export(firstFrame, frameCount);
+    }
+
+    private boolean export(int firstFrame, int frameCount) {
+        this.firstFrame = firstFrame;
+        this.frameCount = frameCount;
+        nextChunk.set(0);
+        failed = false;
+        streaming = rawWriter != null && rawWriter.isStreaming();
+        long start = System.nanoTime();
+        // (no more workers than chunks)
+        int chunk = streaming ? 1 : chunkSize;
+        int workers = Math.min(workerCount, Math.max(1, (frameCount + chunk - 1) / chunk));
+        Thread writer = null;
+        if (streaming) {
+            freeBuffers.clear();
+            finishedFrames.clear();
+            writerWaitNanos = writerWriteNanos = 0;
+            for (int i = 0; i < workers + STREAM_AHEAD; i++) {
+                freeBuffers.add(BufferUtils.createByteBuffer(width * height * 4));
+            }
+            writer = new Thread(new Runnable() {
+                public void run() {
+                    writeInOrder();
+                }
+            }, "ExportWriter");
+            writer.start();
+        }
+        stats = new WorkerStats[workers];
+        Thread[] threads = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            final WorkerStats myStats = stats[i] = new WorkerStats();
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    work(myStats);
+                }
+            }, "ExportWorker-" + i);
+            threads[i].start();
+        }
+        for (int i = 0; i < workers; i++) {
+            try {
+                threads[i].join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                failed = true;
+            }
+        }
+        if (writer != null) {
+            synchronized (finishedFrames) {
+                finishedFrames.notifyAll(); // (in case we failed and it's still waiting)
+            }
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                failed = true;
+            }
+        }
+        exportNanos = System.nanoTime() - start;
+        return !failed;
+    }
+
+    // what each worker does... takes chunks until there are none left
+    private void work(WorkerStats myStats) {
+        long workStart = System.nanoTime();
+        SoftwareRenderer renderer = new SoftwareRenderer(width, height, 1); // (the workers are the threads)
+        BufferedImage image = null;
+        ByteBuffer pixels = null;
+        int chunk = streaming ? 1 : chunkSize;
+        try {
+            while (!failed) {
+                if (streaming) {
+                    // a buffer first, then a frame... so whoever has the frame the writer needs next can always finish it
+                    long waitStart = System.nanoTime();
+                    pixels = takeFreeBuffer();
+                    myStats.waitNanos += System.nanoTime() - waitStart;
+                    if (pixels == null)
+                        break;
+                }
+                int from = nextChunk.getAndIncrement() * chunk;
+                if (from >= frameCount) {
+                    if (streaming)
+                        freeBuffers.offer(pixels);
+                    break;
+                }
+                int to = Math.min(from + chunk, frameCount);
+                for (int i = from; i < to; i++) {
+                    int frame = firstFrame + i;
+                    long renderStart = System.nanoTime();
+                    renderer.clear();
+                    drawer.drawFrame(renderer, frame);
+                    int[] argb = renderer.render();
+                    long writeStart = System.nanoTime();
+                    if (pngPrefix != null) {
+                        if (image == null)
+                            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                        int[] rgb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+                        System.arraycopy(argb, 0, rgb, 0, rgb.length); // (the alpha byte is ignored)
+                        ImageIO.write(image, "png", new File(pngPrefix + (frame + 1) + ".png"));
+                    } else {
+                        if (pixels == null)
+                            pixels = BufferUtils.createByteBuffer(width * height * 4);
+                        FrameExporter.toBottomUpBGRA(argb, width, height, pixels);
+                        if (streaming) {
+                            synchronized (finishedFrames) {
+                                finishedFrames.put(i, pixels);
+                                finishedFrames.notifyAll();
+                            }
+                            pixels = null; // (the writer gives it back once it's out)
+                        } else {
+                            rawWriter.writeFrame(i, pixels);
+                        }
+                    }
+                    long now = System.nanoTime();
+                    myStats.renderNanos += writeStart - renderStart;
+                    myStats.writeNanos += now - writeStart;
+                    myStats.frames++;
+                }
+                myStats.chunks++;
+            }
+        } catch (IOException ex) {
+            fail(ex);
+        } catch (RuntimeException ex) {
+            fail(ex);
+        }
+        myStats.busyNanos = System.nanoTime() - workStart;
+    }
+
+    // a buffer to draw a streamed frame into, once the writer has one to spare (null if the export failed)
+    private ByteBuffer takeFreeBuffer() {
+        try {
+            while (!failed) {
+                ByteBuffer pixels = freeBuffers.poll(100, TimeUnit.MILLISECONDS);
+                if (pixels != null)
+                    return pixels;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failed = true;
+        }
+        return null;
+    }
+
+    // what the writer thread does when streaming... puts the frames out in order as they're finished
+    private void writeInOrder() {
+        try {
+            for (int i = 0; i < frameCount && !failed; i++) {
+                ByteBuffer pixels;
+                long waitStart = System.nanoTime();
+                synchronized (finishedFrames) {
+                    while ((pixels = finishedFrames.remove(i)) == null && !failed) {
+                        finishedFrames.wait();
+                    }
+                }
+                long writeStart = System.nanoTime();
+                writerWaitNanos += writeStart - waitStart;
+                if (pixels == null)
+                    return;
+                rawWriter.writeFrame(i, pixels);
+                writerWriteNanos += System.nanoTime() - writeStart;
+                freeBuffers.offer(pixels);
+            }
+        } catch (IOException ex) {
+            fail(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failed = true;
+        }
+    }
+
+    // stops the other workers and the writer...
+    private void fail(Exception ex) {
+        failed = true;
+        Logger.getLogger(ChunkedExporter.class.getName()).log(Level.SEVERE, "Export failed", ex);
+        if (rawWriter != null)
+            rawWriter.abort();
+        synchronized (finishedFrames) {
+            finishedFrames.notifyAll();
+        }
+    }
+
+    // splits frames firstFrame to firstFrame + frameCount - 1 over processCount java processes running
+    // Main -headless (the same classpath, with workerArgs added), each into a raw file of its own in partDir,
+    // then copies those into writer in order... returns false if any process failed
+    // (each process prints its own report, so the throughput of every worker in every process shows up here too)
+    public static boolean exportWithProcesses(RawFrameWriter writer, int firstFrame, int frameCount, int processCount,
+            List<String> workerArgs, File partDir) {
+        long start = System.nanoTime();
+        processCount = Math.max(1, Math.min(processCount, frameCount));
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process[] processes = new Process[processCount];
+        File[] parts = new File[processCount];
+        int[] partFrames = new int[processCount];
+        boolean ok = true;
+        try {
+            for (int i = 0; i < processCount; i++) {
+                int from = (int) ((long) frameCount * i / processCount);
+                int to = (int) ((long) frameCount * (i + 1) / processCount);
+                partFrames[i] = to - from;
+                parts[i] = File.createTempFile("export" + i + "-", ".raw", partDir);
+                List<String> command = new ArrayList<String>();
+                command.add(java);
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(Main.class.getName());
+                command.addAll(workerArgs);
+                command.add("-frames");
+                command.add("" + (firstFrame + from));
+                command.add("" + partFrames[i]);
+                command.add("-raw");
+                command.add(parts[i].getPath());
+                ProcessBuilder builder = new ProcessBuilder(command);
+                builder.redirectErrorStream(true);
+                processes[i] = builder.start();
+                pipeOutput(processes[i], "[export process " + i + "] ");
+            }
+            for (int i = 0; i < processCount; i++) {
+                int exit = processes[i].waitFor();
+                if (exit != 0) {
+                    Logger.getLogger(ChunkedExporter.class.getName()).log(Level.SEVERE, "Export process " + i + " quit with " + exit);
+                    ok = false;
+                }
+            }
+            long stitchStart = System.nanoTime();
+            int frame = 0;
+            for (int i = 0; i < processCount && ok; i++) {
+                frame = stitch(parts[i], writer, frame);
+            }
+            float seconds = (System.nanoTime() - start) / 1000000000f;
+            System.out.println("Exported " + frame + " frames with " + processCount + " processes in " + seconds + " s ("
+                    + (frame / seconds) + " fps), stitching took " + ((System.nanoTime() - stitchStart) / 1000000f) + " ms");
+        } catch (IOException ex) {
+            Logger.getLogger(ChunkedExporter.class.getName()).log(Level.SEVERE, null, ex);
+            ok = false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            ok = false;
+        } finally {
+            for (int i = 0; i < processCount; i++) {
+                if (processes[i] != null)
+                    processes[i].destroy();
+                if (parts[i] != null && !parts[i].delete())
+                    parts[i].deleteOnExit();
+            }
+        }
+        return ok;
+    }
+
+    // copies the frames of a raw file into writer, starting at frame number first... gives back the next frame number
+    private static int stitch(File part, RawFrameWriter writer, int first) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(part, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(RawFrameWriter.HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+            }
+            int width = header.getInt(8);
+            int height = header.getInt(12);
+            int frames = header.getInt(28);
+            if (width != writer.getWidth() || height != writer.getHeight())
+                throw new IOException(part + " is " + width + "x" + height + ", not " + writer.getWidth() + "x" + writer.getHeight());
+            ByteBuffer pixels = BufferUtils.createByteBuffer((int) writer.getFrameSize());
+            for (int i = 0; i < frames; i++) {
+                pixels.clear();
+                while (pixels.hasRemaining() && channel.read(pixels) >= 0) {
+                }
+                pixels.flip();
+                writer.writeFrame(first + i, pixels);
+            }
+            return first + frames;
+        } finally {
+            file.close();
+        }
+    }
+
+    // a child process's printing goes to ours, a line at a time with a label
+    private static void pipeOutput(final Process process, final String label) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        System.out.println(label + line);
+                    }
+                } catch (IOException ex) {
+                    // (the process is gone)
+                }
+            }
+        }, "ExportOutput");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public String getReport() {
+        float seconds = exportNanos / 1000000000f;
+        int frames = 0;
+        for (int i = 0; i < stats.length; i++) {
+            frames += stats[i].frames;
+        }
+        StringBuilder report = new StringBuilder();
+        report.append("Exported ").append(frames).append(" of ").append(frameCount).append(" frames (").append(width).append("x").append(height)
+                .append(") with ").append(stats.length).append(" workers in ").append(seconds).append(" s (").append(frames / seconds).append(" fps)");
+        for (int i = 0; i < stats.length; i++) {
+            WorkerStats s = stats[i];
+            float busy = s.busyNanos / 1000000000f;
+            int f = Math.max(s.frames, 1);
+            report.append("\n  worker ").append(i).append(": ").append(s.frames).append(" frames in ").append(s.chunks).append(" chunks, ")
+                    .append(s.frames / Math.max(busy, 0.000001f)).append(" fps, draw ").append(s.renderNanos / 1000000f / f)
+                    .append(" ms a frame, write ").append(s.writeNanos / 1000000f / f).append(" ms a frame");
+            if (streaming)
+                report.append(", waited for the writer ").append(s.waitNanos / 1000000f).append(" ms");
+        }
+        if (streaming)
+            report.append("\n  writer: wrote for ").append(writerWriteNanos / 1000000f).append(" ms, waited for frames ")
+                    .append(writerWaitNanos / 1000000f).append(" ms");
+        return report.toString();
+    }
+
+    // gets and sets...
+    public int getWorkerCount() {
+        return workerCount;
+    }
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * The lines joining each note of a track to the next one, drawn as one indexed line mesh...
+ * every note gets a vertex (where it starts), and every line is just a pair of indices,
+ * so when a note moves only its vertex and the few lines touching it change, and once a frame
+ * whatever changed is copied into the mesh (the same way TrackBatch does it)
+ */
+package mygame;
+
+import com.jme3.material.Material;
+import com.jme3.math.ColorRGBA;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.util.BufferUtils;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class ConnectingLines {
+
+    private float z;
+    private float lineWidth;
+    private Mesh mesh;
+    private Geometry geo;
+
+    // vertices... one per note, slots of removed notes are reused
+    private Map<Note, Integer> vertexOf = new IdentityHashMap<Note, Integer>();
+    private Note[] vertexNotes = new Note[64];
+    private float[] positions = new float[64 * 3];
+    private int vertexCount = 0; // slots used so far (some may be free)
+    private int[] freeVertices = new int[16];
+    private int freeCount = 0;
+
+    // lines... one per note that has a line going to the next note, kept packed
+    private Map<Note, Integer> lineOf = new IdentityHashMap<Note, Integer>();
+    private Note[] lineNotes = new Note[64];
+    private int[] indices = new int[64 * 2];
+    private int lineCount = 0;
+
+    // what changed since the last update...
+    private boolean resized = true;
+    private int vertexDirtyFrom = Integer.MAX_VALUE, vertexDirtyTo = -1;
+    private int lineDirtyFrom = Integer.MAX_VALUE, lineDirtyTo = -1;
+    private int drawnLines = -1; // how many lines the index buffer currently covers
+
+    public ConnectingLines(Material mat, float lineWidth, float z) {
+        this.z = z;
+        this.lineWidth = lineWidth;
+        mesh = new Mesh();
+        mesh.setMode(Mesh.Mode.Lines);
+        mesh.setLineWidth(lineWidth);
+        mesh.setDynamic();
+        geo = new ZSortedGeometry("connectLines", mesh);
+        geo.setMaterial(mat);
+        geo.setCullHint(Spatial.CullHint.Always); // (nothing to draw yet)
+    }
+
+    // puts the note's vertex at x, y (adding one if it doesn't have one)
+    public void setVertex(Note note, float x, float y) {
+        Integer slot = vertexOf.get(note);
+        int v;
+        if (slot != null) {
+            v = slot;
+            if (positions[v*3] == x && positions[v*3+1] == y)
+                return;
+        } else {
+            if (freeCount > 0) {
+                v = freeVertices[--freeCount];
+            } else {
+                if (vertexCount == vertexNotes.length) {
+                    vertexNotes = Arrays.copyOf(vertexNotes, vertexNotes.length * 2);
+                    positions = Arrays.copyOf(positions, positions.length * 2);
+                    resized = true;
+                }
+                v = vertexCount++;
+            }
+            vertexOf.put(note, v);
+            vertexNotes[v] = note;
+        }
+        positions[v*3] = x;
+        positions[v*3+1] = y;
+        positions[v*3+2] = z;
+        vertexDirtyFrom = Math.min(vertexDirtyFrom, v);
+        vertexDirtyTo = Math.max(vertexDirtyTo, v);
+    }
+
+    // draws a line from one note's vertex to another's (replacing the line it already had, if any)
+    public void link(Note from, Note to) {
+        Integer fromVertex = vertexOf.get(from);
+        Integer toVertex = vertexOf.get(to);
+        if (fromVertex == null || toVertex == null)
+            return;
+        Integer slot = lineOf.get(from);
+        int l;
+        if (slot != null) {
+            l = slot;
+            if (indices[l*2+1] == toVertex)
+                return;
+        } else {
+            if (lineCount == lineNotes.length) {
+                lineNotes = Arrays.copyOf(lineNotes, lineNotes.length * 2);
+                indices = Arrays.copyOf(indices, indices.length * 2);
+                resized = true;
+            }
+            l = lineCount++;
+            lineOf.put(from, l);
+            lineNotes[l] = from;
+        }
+        indices[l*2] = fromVertex;
+        indices[l*2+1] = toVertex;
+        markLine(l);
+    }
+
+    // takes away the line going from this note, if there is one
+    public void unlink(Note from) {
+        Integer slot = lineOf.remove(from);
+        if (slot == null)
+            return;
+        int l = slot;
+        int last = --lineCount;
+        if (l != last) {
+            // the last line fills the gap
+            Note moved = lineNotes[last];
+            lineNotes[l] = moved;
+            lineOf.put(moved, l);
+            indices[l*2] = indices[last*2];
+            indices[l*2+1] = indices[last*2+1];
+            markLine(l);
+        }
+        lineNotes[last] = null;
+    }
+
+    // the note is gone... its line goes, and its vertex can be reused
+    // (a line ending at this note has to be relinked or unlinked by whoever calls this)
+    public void remove(Note note) {
+        unlink(note);
+        Integer slot = vertexOf.remove(note);
+        if (slot == null)
+            return;
+        vertexNotes[slot] = null;
+        if (freeCount == freeVertices.length)
+            freeVertices = Arrays.copyOf(freeVertices, freeVertices.length * 2);
+        freeVertices[freeCount++] = slot;
+    }
+
+    private void markLine(int l) {
+        lineDirtyFrom = Math.min(lineDirtyFrom, l);
+        lineDirtyTo = Math.max(lineDirtyTo, l);
+    }
+
+    // copies whatever changed into the mesh (call once a frame, Track does this in updateLogicalState)
+    public void update() {
+        boolean changed = false;
+        if (resized) {
+            createBuffers();
+            resized = false;
+            changed = true;
+        } else {
+            if (vertexDirtyTo >= vertexDirtyFrom) {
+                VertexBuffer vb = mesh.getBuffer(VertexBuffer.Type.Position);
+                FloatBuffer floats = (FloatBuffer) vb.getData();
+                int start = vertexDirtyFrom * 3;
+                floats.clear();
+                floats.position(start);
+                floats.put(positions, start, (vertexDirtyTo - vertexDirtyFrom + 1) * 3);
+                floats.clear();
+                vb.setUpdateNeeded();
+                changed = true;
+            }
+            int to = Math.min(lineDirtyTo, lineCount-1);
+            if (to >= lineDirtyFrom) {
+                VertexBuffer vb = mesh.getBuffer(VertexBuffer.Type.Index);
+                IntBuffer ints = (IntBuffer) vb.getData();
+                int start = lineDirtyFrom * 2;
+                ints.clear();
+                ints.position(start);
+                ints.put(indices, start, (to - lineDirtyFrom + 1) * 2);
+                ints.clear();
+                ints.limit(drawnLines * 2);
+                vb.setUpdateNeeded();
+            }
+        }
+        vertexDirtyFrom = lineDirtyFrom = Integer.MAX_VALUE;
+        vertexDirtyTo = lineDirtyTo = -1;
+        if (drawnLines != lineCount) {
+            // only draw the lines that are in use
+            drawnLines = lineCount;
+            VertexBuffer vb = mesh.getBuffer(VertexBuffer.Type.Index);
+            IntBuffer ints = (IntBuffer) vb.getData();
+            ints.clear();
+            ints.limit(drawnLines * 2);
+            vb.updateData(ints);
+            mesh.updateCounts();
+            geo.setCullHint(drawnLines > 0 ? Spatial.CullHint.Inherit : Spatial.CullHint.Always);
+        }
+        if (changed) {
+            mesh.updateBound();
+            geo.updateModelBound();
+        }
+    }
+
+    // the arrays grew, so the buffers have to be made again at the new size
+    private void createBuffers() {
+        mesh.setBuffer(VertexBuffer.Type.Position, 3, BufferUtils.createFloatBuffer(positions));
+        mesh.getBuffer(VertexBuffer.Type.Position).setUsage(VertexBuffer.Usage.Dynamic);
+        mesh.setBuffer(VertexBuffer.Type.Index, 2, BufferUtils.createIntBuffer(indices));
+        mesh.getBuffer(VertexBuffer.Type.Index).setUsage(VertexBuffer.Usage.Dynamic);
+        drawnLines = -1;
+    }
+
+    // the same lines, for the software renderer (the track is at trackX, trackY)
+    public void drawTo(SoftwareRenderer renderer, float trackX, float trackY) {
+        if (lineCount == 0)
+            return;
+        Material mat = geo.getMaterial();
+        ColorRGBA color = SoftwareRenderer.getColor(mat);
+        boolean blend = SoftwareRenderer.isBlended(mat);
+        for (int l = 0; l < lineCount; l++) {
+            int a = indices[l*2] * 3;
+            int b = indices[l*2+1] * 3;
+            renderer.addLine(trackX + positions[a], trackY + positions[a+1], trackX + positions[b], trackY + positions[b+1],
+                    z, lineWidth, color, blend);
+        }
+    }
+
+    // gets and sets...
+    public Geometry getGeometry() {
+        return geo;
+    }
+    public int getLineCount() {
+        return lineCount;
+    }
+    // the note the line from this note goes to (null if there's no line)
+    public Note getLinkedNote(Note from) {
+        Integer slot = lineOf.get(from);
+        if (slot == null)
+            return null;
+        return vertexNotes[indices[slot*2+1]];
+    }
+
+}
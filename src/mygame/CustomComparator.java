@@ -1,6 +1,9 @@
 /*
  * This custom comparator determines transparency render sorting
  * based on z value rather than distance from camera...
+ * z is turned into an int key that sorts the same way, and most of our geometries
+ * (notes, batches, grid lines) keep theirs up to date themselves (see ZSortedGeometry),
+ * so a comparison is usually just two ints
  */
 package mygame;
 
@@ -19,15 +22,29 @@ public class CustomComparator implements GeometryComparator {
     }
     
     public int compare(Geometry g1, Geometry g2) {
-        float z1 = g1.getWorldTranslation().z;
-        float z2 = g2.getWorldTranslation().z;
+        int key1 = getKey(g1);
+        int key2 = getKey(g2);
         
-        if (z1 == z2)
+        if (key1 == key2)
             return 0;
-        else if (z1 > z2)
+        else if (key1 > key2)
             return 1;
         else
             return -1;
     }
     
-}
\ No newline at end of file
+    private static int getKey(Geometry g) {
+        if (g instanceof ZSortedGeometry)
+            return ((ZSortedGeometry) g).getSortKey();
+        return keyOf(g.getWorldTranslation().z);
+    }
+    
+    // float bits that sort (as ints) the same way the floats do
+    public static int keyOf(float z) {
+        if (z == 0f)
+            z = 0f; // (so -0 and 0 get the same key, they compared equal before)
+        int bits = Float.floatToIntBits(z);
+        return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+    }
+    
+}
@@ -0,0 +1,115 @@
+/*
+ * Measures how many bytes the current thread allocates in a frame, using the
+ * JVM's per-thread allocation counter (HotSpot's com.sun.management.ThreadMXBean)...
+ * playback shouldn't allocate anything once it's warmed up, and this is how we check.
+ * The first few frames are skipped (warm up), and the meter's own cost is measured and taken off.
+ */
+package mygame;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class FrameAllocationMeter {
+
+    private com.sun.management.ThreadMXBean threads = null;
+    private long threadId;
+    private long overhead = 0; // what asking for the count allocates by itself
+    private int warmupFrames;
+    private long frameStart = -1;
+
+    // stats...
+    private long frames = 0; // including warm up
+    private long measuredFrames = 0;
+    private long allocatingFrames = 0; // frames that allocated anything at all
+    private long totalBytes = 0;
+    private long maxBytes = 0;
+
+    public FrameAllocationMeter(int warmupFrames) {
+        this.warmupFrames = warmupFrames;
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (!threads.isThreadAllocatedMemorySupported())
+                threads = null;
+            else if (!threads.isThreadAllocatedMemoryEnabled())
+                threads.setThreadAllocatedMemoryEnabled(true);
+        }
+        if (threads != null) {
+            threadId = Thread.currentThread().getId();
+            calibrate();
+        }
+    }
+
+    // asking for the count can allocate a little itself... take the smallest of a few tries as its cost
+    private void calibrate() {
+        overhead = Long.MAX_VALUE;
+        for (int i = 0; i < 100; i++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            long after = threads.getThreadAllocatedBytes(threadId);
+            overhead = Math.min(overhead, after - before);
+        }
+    }
+
+    public void beginFrame() {
+        if (threads == null)
+            return;
+        // the app might not be on the thread we were made on
+        if (Thread.currentThread().getId() != threadId) {
+            threadId = Thread.currentThread().getId();
+            calibrate();
+        }
+        frameStart = threads.getThreadAllocatedBytes(threadId);
+    }
+
+    public void endFrame() {
+        if (threads == null || frameStart < 0)
+            return;
+        long bytes = Math.max(threads.getThreadAllocatedBytes(threadId) - frameStart - overhead, 0);
+        frameStart = -1;
+        frames++;
+        if (frames <= warmupFrames)
+            return;
+        measuredFrames++;
+        totalBytes += bytes;
+        maxBytes = Math.max(maxBytes, bytes);
+        if (bytes > 0)
+            allocatingFrames++;
+    }
+
+    public void reset() {
+        frames = 0;
+        measuredFrames = 0;
+        allocatingFrames = 0;
+        totalBytes = 0;
+        maxBytes = 0;
+    }
+
+    public String getReport() {
+        if (threads == null)
+            return "Frame allocations: not supported by this JVM";
+        if (measuredFrames == 0)
+            return "Frame allocations: still warming up (" + frames + " of " + warmupFrames + " frames)";
+        return "Frame allocations: " + (totalBytes / measuredFrames) + " bytes/frame average, " + maxBytes + " max, "
+                + allocatingFrames + " of " + measuredFrames + " frames allocated (after " + warmupFrames + " warm up frames)";
+    }
+
+    // gets and sets...
+    public boolean isSupported() {
+        return threads != null;
+    }
+    public long getMeasuredFrames() {
+        return measuredFrames;
+    }
+    public long getAllocatingFrames() {
+        return allocatingFrames;
+    }
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+}
@@ -0,0 +1,383 @@
+/*
+ * Saves frames as numbered png files while we export a video (see EditState.PLAYING_SCREENSHOT),
+ * or hands them to a RawFrameWriter untouched if one has been given to us (see startRaw)...
+ * the render thread only copies the frame into a direct buffer from a pool and queues it,
+ * and a few encoder threads turn the queued frames into pngs... if the encoders fall behind
+ * and every buffer is in use, the render thread waits for one to come back, so we never
+ * drop a frame or pile up more memory than the pool holds... frames drawn by the SoftwareRenderer
+ * come in through submitFrame instead of a readback
+ */
+package mygame;
+
+import com.jme3.post.SceneProcessor;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.ViewPort;
+import com.jme3.renderer.queue.RenderQueue;
+import com.jme3.texture.FrameBuffer;
+import com.jme3.util.BufferUtils;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class FrameExporter implements SceneProcessor {
+
+    // a frame waiting to be encoded...
+    private static class Frame {
+        ByteBuffer pixels; // BGRA, bottom row first (straight from readFrameBuffer)
+        int width, height;
+        int number;
+        RawFrameWriter raw; // (null for a png)
+    }
+    private static final Frame STOP = new Frame(); // tells an encoder thread to quit
+
+    private String filePrefix; // files are written as filePrefix + number + ".png"
+    private int encoderCount;
+    private int queueSize;
+
+    private RenderManager renderManager;
+    private int width, height;
+    private boolean captureNext = false;
+    private int nextNumber = 1; // (keeps counting from one export to the next, like ScreenshotAppState did)
+    private RawFrameWriter rawWriter = null;
+    private int nextRawFrame = 0;
+
+    private BlockingQueue<Frame> queue;
+    private BlockingQueue<ByteBuffer> freeBuffers = new LinkedBlockingQueue<ByteBuffer>();
+    private int buffersMade = 0;
+    private Thread[] encoders = null;
+    private final Object idleLock = new Object();
+    private int pending = 0; // frames queued but not written yet (guarded by idleLock)
+
+    // stats...
+    private long startNanos = 0;
+    private long framesCaptured = 0;
+    private long readbackNanos = 0; // render thread time spent copying frames out
+    private long stallNanos = 0; // render thread time spent waiting for a free buffer
+    private long stalls = 0;
+    private int peakQueued = 0;
+    private long queuedSum = 0;
+    private AtomicLong framesWritten = new AtomicLong();
+    private AtomicLong encodeNanos = new AtomicLong(); // all the encoders' busy time added up
+    private volatile long lastWrittenNanos = 0;
+
+    public FrameExporter(String filePrefix, int encoderCount, int queueSize) {
+        this.filePrefix = filePrefix;
+        this.encoderCount = Math.max(1, encoderCount);
+        this.queueSize = Math.max(1, queueSize);
+        queue = new ArrayBlockingQueue<Frame>(this.queueSize + this.encoderCount);
+    }
+
+    // save the frame that's about to be drawn (call it from simpleUpdate)
+    public void captureFrame() {
+        captureNext = true;
+    }
+
+    @Override
+    public void initialize(RenderManager rm, ViewPort vp) {
+        renderManager = rm;
+        reshape(vp, vp.getCamera().getWidth(), vp.getCamera().getHeight());
+    }
+
+    @Override
+    public void reshape(ViewPort vp, int w, int h) {
+        width = w;
+        height = h;
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return renderManager != null;
+    }
+
+    @Override
+    public void preFrame(float tpf) {
+    }
+
+    @Override
+    public void postQueue(RenderQueue rq) {
+    }
+
+    @Override
+    public void postFrame(FrameBuffer out) {
+        if (!captureNext)
+            return;
+        captureNext = false;
+        int size = width * height * 4;
+        ByteBuffer pixels = takeBuffer(size);
+        long readStart = System.nanoTime();
+        pixels.clear();
+        pixels.limit(size);
+        renderManager.getRenderer().readFrameBuffer(out, pixels);
+        readbackNanos += System.nanoTime() - readStart;
+        queueFrame(pixels, width, height);
+    }
+
+    // a frame we drew ourselves (see SoftwareRenderer)... ARGB ints, top row first, which we turn into
+    // the same BGRA, bottom row first, that a readback gives, so pngs and raw files come out the same either way
+    public void submitFrame(int[] argb, int width, int height) {
+        int size = width * height * 4;
+        ByteBuffer pixels = takeBuffer(size);
+        long copyStart = System.nanoTime();
+        toBottomUpBGRA(argb, width, height, pixels);
+        readbackNanos += System.nanoTime() - copyStart;
+        queueFrame(pixels, width, height);
+    }
+
+    // ARGB ints, top row first, into BGRA bytes, bottom row first (pixels ends up holding exactly the frame)
+    public static void toBottomUpBGRA(int[] argb, int width, int height, ByteBuffer pixels) {
+        pixels.clear();
+        pixels.limit(width * height * 4);
+        IntBuffer ints = pixels.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer(); // (0xAARRGGBB little endian is B, G, R, A)
+        for (int y = height - 1; y >= 0; y--) {
+            ints.put(argb, y * width, width);
+        }
+    }
+
+    // a free buffer from the pool... if they're all waiting to be encoded, wait for one
+    private ByteBuffer takeBuffer(int size) {
+        ByteBuffer pixels = freeBuffers.poll();
+        if (pixels == null && buffersMade < queueSize + encoderCount) {
+            buffersMade++;
+            return BufferUtils.createByteBuffer(size);
+        }
+        if (pixels == null) {
+            long waitStart = System.nanoTime();
+            try {
+                pixels = freeBuffers.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return BufferUtils.createByteBuffer(size); // (we're shutting down, so just don't block)
+            }
+            stallNanos += System.nanoTime() - waitStart;
+            stalls++;
+        }
+        if (pixels.capacity() < size) // the window was resized since this buffer was made
+            pixels = BufferUtils.createByteBuffer(size);
+        return pixels;
+    }
+
+    private void queueFrame(ByteBuffer pixels, int width, int height) {
+        startEncoders();
+        if (framesCaptured == 0)
+            startNanos = System.nanoTime();
+        Frame frame = new Frame();
+        frame.pixels = pixels;
+        frame.width = width;
+        frame.height = height;
+        if (rawWriter != null) {
+            frame.raw = rawWriter;
+            frame.number = nextRawFrame++;
+        } else {
+            frame.number = nextNumber++;
+        }
+        synchronized (idleLock) {
+            pending++;
+        }
+        framesCaptured++;
+        int queued = queue.size();
+        peakQueued = Math.max(peakQueued, queued);
+        queuedSum += queued;
+        try {
+            queue.put(frame); // (never full, there are no more frames than buffers)
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void startEncoders() {
+        if (encoders != null)
+            return;
+        encoders = new Thread[encoderCount];
+        for (int i = 0; i < encoderCount; i++) {
+            encoders[i] = new Thread(new Runnable() {
+                public void run() {
+                    encodeFrames();
+                }
+            }, "FrameEncoder-" + i);
+            encoders[i].setDaemon(true);
+            encoders[i].start();
+        }
+    }
+
+    // what each encoder thread does until it's told to stop
+    private void encodeFrames() {
+        BufferedImage image = null; // each thread keeps its own
+        while (true) {
+            Frame frame;
+            try {
+                frame = queue.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            if (frame == STOP)
+                return;
+            long encodeStart = System.nanoTime();
+            if (frame.raw != null) {
+                writeRaw(frame);
+            } else {
+                image = writePng(frame, image);
+            }
+            long now = System.nanoTime();
+            encodeNanos.addAndGet(now - encodeStart);
+            lastWrittenNanos = now;
+            framesWritten.incrementAndGet();
+            synchronized (idleLock) {
+                pending--;
+                if (pending == 0)
+                    idleLock.notifyAll();
+            }
+        }
+    }
+
+    // (gives back the image, which may be a new one if the frame size changed)
+    private BufferedImage writePng(Frame frame, BufferedImage image) {
+        if (image == null || image.getWidth() != frame.width || image.getHeight() != frame.height)
+            image = new BufferedImage(frame.width, frame.height, BufferedImage.TYPE_INT_RGB);
+        copyToImage(frame, image);
+        freeBuffers.offer(frame.pixels); // done with the pixels, the render thread can have them back
+        try {
+            ImageIO.write(image, "png", new File(filePrefix + frame.number + ".png"));
+        } catch (IOException ex) {
+            Logger.getLogger(FrameExporter.class.getName()).log(Level.SEVERE, "Couldn't write frame " + frame.number, ex);
+        }
+        return image;
+    }
+
+    // the pixels go out just as they were read back... the buffer only comes back to the pool once they're written
+    private void writeRaw(Frame frame) {
+        try {
+            frame.raw.writeFrame(frame.number, frame.pixels);
+        } catch (IOException ex) {
+            Logger.getLogger(FrameExporter.class.getName()).log(Level.SEVERE, "Couldn't write raw frame " + frame.number, ex);
+        }
+        freeBuffers.offer(frame.pixels);
+    }
+
+    // BGRA rows, bottom first, into the image's RGB ints, top first
+    private static void copyToImage(Frame frame, BufferedImage image) {
+        int[] rgb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        ByteBuffer pixels = frame.pixels;
+        int w = frame.width;
+        for (int y = 0; y < frame.height; y++) {
+            int src = (frame.height - 1 - y) * w * 4;
+            int dst = y * w;
+            for (int x = 0; x < w; x++) {
+                int b = pixels.get(src) & 0xff;
+                int g = pixels.get(src+1) & 0xff;
+                int r = pixels.get(src+2) & 0xff;
+                rgb[dst + x] = (r << 16) | (g << 8) | b;
+                src += 4;
+            }
+        }
+    }
+
+    // from now on frames go to writer, numbered from 0, instead of to pngs
+    public void startRaw(RawFrameWriter writer) {
+        finish();
+        rawWriter = writer;
+        nextRawFrame = 0;
+    }
+
+    // back to pngs... gives back the raw writer once everything queued for it is written (closing it is up to you)
+    public RawFrameWriter stopRaw() {
+        finish();
+        RawFrameWriter writer = rawWriter;
+        rawWriter = null;
+        return writer;
+    }
+
+    // waits until every captured frame has been written
+    public void finish() {
+        synchronized (idleLock) {
+            while (pending > 0) {
+                try {
+                    idleLock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // writes whatever is left, then stops the encoder threads
+    public void shutdown() {
+        finish();
+        if (encoders == null)
+            return;
+        for (int i = 0; i < encoders.length; i++) {
+            queue.offer(STOP);
+        }
+        for (int i = 0; i < encoders.length; i++) {
+            try {
+                encoders[i].join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        encoders = null;
+    }
+
+    @Override
+    public void cleanup() {
+        shutdown();
+    }
+
+    public String getReport() {
+        long written = framesWritten.get();
+        if (framesCaptured == 0)
+            return "Frame export: no frames";
+        float seconds = Math.max(lastWrittenNanos - startNanos, 1L) / 1000000000f;
+        return "Frame export: " + written + " of " + framesCaptured + " frames written in " + seconds + " s ("
+                + (written / seconds) + " fps), readback " + (readbackNanos / 1000000f / framesCaptured) + " ms a frame, queue peak "
+                + peakQueued + " avg " + ((float) queuedSum / framesCaptured) + " (" + (queueSize + encoderCount) + " buffers), "
+                + encoderCount + " encoders " + (100f * encodeNanos.get() / 1000000000f / seconds / encoderCount) + "% busy, "
+                + "render thread waited " + (stallNanos / 1000000f) + " ms (" + stalls + " times)";
+    }
+
+    // starts the stats over (the pool, threads and file numbers carry on)
+    public void resetStats() {
+        finish();
+        framesCaptured = 0;
+        readbackNanos = 0;
+        stallNanos = 0;
+        stalls = 0;
+        peakQueued = 0;
+        queuedSum = 0;
+        framesWritten.set(0);
+        encodeNanos.set(0);
+    }
+
+    // gets and sets...
+    public int getEncoderCount() {
+        return encoderCount;
+    }
+    public int getQueueSize() {
+        return queueSize;
+    }
+    public int getQueued() {
+        return queue.size();
+    }
+    public long getFramesCaptured() {
+        return framesCaptured;
+    }
+    public long getFramesWritten() {
+        return framesWritten.get();
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * How every note looks at any frame of an export, worked out straight from the tempo map and the notes,
+ * without playing through the frames before it... when we play, notes turn on, shrink, go hollow and
+ * throw off phantoms one frame at a time (see NoteScheduler, Note.turnOn, PhantomNoteControl),
+ * and this gives exactly what that would have left on screen at frame n
+ *
+ * frames are counted the way exports count them: frame 0 is the first frame saved, which is
+ * drawn after the play line has taken one step of 1/fps seconds (see simpleUpdate in Main)...
+ * nothing here changes the notes, so any number of threads can ask about any frames at once
+ */
+package mygame;
+
+import com.jme3.math.ColorRGBA;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class FrameState {
+
+    // how one note (and its phantom, if it has one) looks at a frame
+    public static class Look {
+        public float scaleX = 1f, scaleY = 1f;
+        public final ColorRGBA color = new ColorRGBA(); // (the alpha is color.a)
+        public final ColorRGBA borderColor = new ColorRGBA();
+        public float borderSize;
+        public boolean on; // is the note playing?
+        public boolean played; // has it been turned on yet? (it stays hollow once it has)
+        public boolean phantom; // is there a phantom? then the rest is how it looks
+        public float phantomScaleY = 1f; // (on top of the note's own scale)
+        public final ColorRGBA phantomColor = new ColorRGBA();
+        public final ColorRGBA phantomBorderColor = new ColorRGBA(0f, 0f, 0f, 0f);
+    }
+
+    private TempoMap tempoMap;
+    private double startSeconds; // seconds at the x we started playing from
+    private double startOffset; // playStartPos... (kept apart from startSeconds so we add them up the same way Main does)
+    private int fps;
+    private float preplayDistance;
+    private boolean animateSize;
+
+    public FrameState(TempoMap tempoMap, double startSeconds, double startOffset, int fps, float preplayDistance, boolean animateSize) {
+        this.tempoMap = tempoMap;
+        this.startSeconds = startSeconds;
+        this.startOffset = startOffset;
+        this.fps = fps;
+        this.preplayDistance = preplayDistance;
+        this.animateSize = animateSize;
+    }
+
+    // where the play line is at a frame (and the camera, which follows it)
+    public float getPlayX(int frame) {
+        double playTime = startOffset + ((double) (frame + 1) / fps);
+        return (float) tempoMap.secondsToX(startSeconds + playTime);
+    }
+
+    // the first frame the play line is at or past x
+    public int getFrameAt(float x) {
+        double seconds = tempoMap.xToSeconds(x) - startSeconds - startOffset;
+        int frame = Math.max((int) Math.ceil(seconds * fps) - 1, 0);
+        // (the guess can be a frame off either way after rounding)
+        while (frame > 0 && getPlayX(frame - 1) >= x) {
+            frame--;
+        }
+        while (getPlayX(frame) < x) {
+            frame++;
+        }
+        return frame;
+    }
+
+    // how the note looks at the frame... store is filled in and given back
+    public Look evaluate(Note note, int frame, Look store) {
+        float start = note.getLocalTranslation().x - (note.getWidth() / 2f);
+        float end = start + note.getWidth();
+        float x = getPlayX(frame);
+        store.scaleX = 1f;
+        store.scaleY = 1f;
+        store.on = false;
+        store.played = false;
+        store.phantom = false;
+        store.borderSize = note.getBorderSize();
+        store.color.set(note.getColor());
+        store.borderColor.set(note.getRestBorderColor());
+        if (x < start) {
+            // not there yet... maybe getting ready
+            store.scaleY = preplayScale(start - x);
+            return store;
+        }
+        int onFrame = getFrameAt(start);
+        float onX = getPlayX(onFrame);
+        if (onX >= end) {
+            // the play line jumped right over it, so it never turned on... it keeps whatever preplay it had
+            if (onFrame > 0)
+                store.scaleY = preplayScale(start - getPlayX(onFrame - 1));
+            return store;
+        }
+        // it has played (hollow() in Note)
+        store.played = true;
+        store.color.set(0f, 0f, 0f, 0f);
+        store.borderColor.set(note.getBorderColor());
+        store.borderColor.a = 0.3f;
+        if (x < end) {
+            store.on = true;
+            if (animateSize) {
+                if (frame == onFrame)
+                    store.scaleY = 2f;
+                else
+                    store.scaleY = 2f - (1.25f * Math.max((x - onX) / note.getWidth(), 0f));
+            }
+        } else if (animateSize) {
+            store.scaleY = 0.75f;
+        }
+        // and its phantom grows and fades until the play line is a note's width past where it turned on
+        if (x <= onX + note.getWidth()) {
+            float percentComplete = Math.max((x - onX) / note.getWidth(), 0f);
+            store.phantom = true;
+            store.phantomScaleY = 1f + (8f * percentComplete);
+            store.phantomColor.set(note.getColor());
+            store.phantomColor.a = 1f - percentComplete;
+        }
+        return store;
+    }
+
+    // a note distance away from the play line, before it turns on
+    private float preplayScale(float distance) {
+        if (!animateSize || distance > preplayDistance)
+            return 1f;
+        return 1f + (1f - (distance / preplayDistance));
+    }
+
+    // gets and sets...
+    public TempoMap getTempoMap() {
+        return tempoMap;
+    }
+    public int getFps() {
+        return fps;
+    }
+    public boolean getAnimateSize() {
+        return animateSize;
+    }
+
+}
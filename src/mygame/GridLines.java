@@ -0,0 +1,100 @@
+/*
+ * A set of grid lines that all look the same (color and width), drawn as one mesh
+ * instead of a geometry for every line... lines are kept in the order they were added,
+ * so the music grid can throw away everything after a changed measure and add just those lines again
+ */
+package mygame;
+
+import com.jme3.material.Material;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.util.BufferUtils;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class GridLines {
+
+    private float[] ends = new float[64]; // x1, y1, x2, y2 for every line
+    private int count = 0;
+    private float z;
+    private float lineWidth;
+    private Mesh mesh;
+    private Geometry geo;
+    private FloatBuffer positions = null;
+    private boolean dirty = false;
+
+    public GridLines(String name, Material mat, float lineWidth, float z) {
+        this.z = z;
+        this.lineWidth = lineWidth;
+        mesh = new Mesh();
+        mesh.setMode(Mesh.Mode.Lines);
+        mesh.setLineWidth(lineWidth);
+        geo = new ZSortedGeometry(name, mesh);
+        geo.setMaterial(mat);
+    }
+
+    public void add(float x1, float y1, float x2, float y2) {
+        if ((count+1) * 4 > ends.length)
+            ends = Arrays.copyOf(ends, ends.length * 2);
+        int i = count * 4;
+        ends[i] = x1;
+        ends[i+1] = y1;
+        ends[i+2] = x2;
+        ends[i+3] = y2;
+        count++;
+        dirty = true;
+    }
+
+    // forget every line from newCount on
+    public void truncate(int newCount) {
+        if (newCount < count) {
+            count = newCount;
+            dirty = true;
+        }
+    }
+
+    // copies the lines into the mesh, if they've changed
+    public void update() {
+        if (!dirty || count == 0)
+            return;
+        int floats = count * 2 * 3;
+        if (positions == null || positions.capacity() < floats)
+            positions = BufferUtils.createFloatBuffer(Math.max(floats, ends.length / 4 * 2 * 3));
+        positions.clear();
+        for (int i = 0; i < count; i++) {
+            int e = i * 4;
+            positions.put(ends[e]).put(ends[e+1]).put(z);
+            positions.put(ends[e+2]).put(ends[e+3]).put(z);
+        }
+        positions.flip();
+        mesh.setBuffer(VertexBuffer.Type.Position, 3, positions);
+        mesh.updateCounts();
+        mesh.updateBound();
+        geo.updateModelBound();
+        dirty = false;
+    }
+
+    // gets and sets...
+    public int size() {
+        return count;
+    }
+    public Geometry getGeometry() {
+        return geo;
+    }
+    // x1, y1, x2, y2 for each of the first size() lines
+    public float[] getEnds() {
+        return ends;
+    }
+    public float getZ() {
+        return z;
+    }
+    public float getLineWidth() {
+        return lineWidth;
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Times snapping to the grid (MeasureIndex.getClosestLineX) against the old way
+ * of walking through every grid line, for scores of different lengths...
+ * usage: GridSnapBenchmark
+ */
+package mygame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class GridSnapBenchmark {
+
+    private static final float WIDTH_PER_WHOLE_NOTE = 25f;
+    private static final int QUERIES = 200000;
+
+    public static void main(String[] args) {
+        int[] lengths = {10, 100, 1000, 10000};
+        for (int i = 0; i < lengths.length; i++) {
+            run(lengths[i]);
+        }
+    }
+
+    private static void run(int measureCount) {
+        // a mix of time signatures, with 16th note grid lines
+        List<Measure> measures = new ArrayList<Measure>();
+        for (int i = 0; i < measureCount; i++) {
+            Measure measure = new Measure();
+            measure.timeSigTop = (i % 5 == 4) ? 3 : 4;
+            measure.timeSigBottom = 4;
+            measure.smallestUnit = 16;
+            measures.add(measure);
+        }
+        MeasureIndex index = new MeasureIndex(measures);
+        float[] lines = createLines(measures);
+        float gridWidth = index.getTotalWidth(WIDTH_PER_WHOLE_NOTE);
+
+        Random random = new Random(1);
+        float[] queries = new float[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = random.nextFloat() * gridWidth;
+        }
+
+        // make sure both ways agree before timing anything...
+        int mismatches = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (Math.abs(index.getClosestLineX(queries[i], WIDTH_PER_WHOLE_NOTE) - scanLines(lines, queries[i])) > 0.001f)
+                mismatches++;
+        }
+
+        float sum = 0f; // so the JIT can't throw the work away
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            sum += index.getClosestLineX(queries[i], WIDTH_PER_WHOLE_NOTE);
+        }
+        float indexNs = (System.nanoTime() - start) / (float) QUERIES;
+
+        int scanQueries = Math.max(QUERIES / measureCount, 100);
+        start = System.nanoTime();
+        for (int i = 0; i < scanQueries; i++) {
+            sum += scanLines(lines, queries[i]);
+        }
+        float scanNs = (System.nanoTime() - start) / (float) scanQueries;
+
+        System.out.println(measureCount + " measures (" + lines.length + " lines): index " + indexNs + " ns/call, scan "
+                + scanNs + " ns/call, mismatches " + mismatches + " (" + sum + ")");
+    }
+
+    // the x position of every grid line, the same way MusicGrid.createGrid lays them out
+    private static float[] createLines(List<Measure> measures) {
+        List<Float> lines = new ArrayList<Float>();
+        float currentPos = 0f;
+        for (int i = 0; i < measures.size(); i++) {
+            Measure measure = measures.get(i);
+            float measureSizeGoal = currentPos + (WIDTH_PER_WHOLE_NOTE * measure.getWholeNoteValue());
+            int numLines = (measure.smallestUnit * measure.timeSigTop) / measure.timeSigBottom;
+            if (numLines < 2) {
+                lines.add(currentPos);
+                currentPos = measureSizeGoal;
+            } else {
+                for (int j = 0; j < numLines; j++) {
+                    lines.add(currentPos);
+                    currentPos += (WIDTH_PER_WHOLE_NOTE / measure.smallestUnit);
+                    if (j+1 >= numLines && currentPos < measureSizeGoal)
+                        currentPos = measureSizeGoal;
+                }
+            }
+        }
+        lines.add(currentPos);
+        float[] result = new float[lines.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = lines.get(i);
+        }
+        return result;
+    }
+
+    // the old getClosestGridX search, line by line
+    private static float scanLines(float[] lines, float currentX) {
+        float possibleNewX = 0f;
+        for (int i = 0; i < lines.length; i++) {
+            if (currentX >= lines[i] && i+1 < lines.length && currentX < lines[i+1]) {
+                if (Math.abs(currentX - lines[i]) < Math.abs(currentX - lines[i+1]))
+                    possibleNewX = lines[i];
+                else
+                    possibleNewX = lines[i+1];
+            }
+        }
+        return possibleNewX;
+    }
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Keeps things that span [start, end) along x (notes, mostly) in a balanced tree
+ * sorted by start, where every node also remembers the furthest end below it...
+ * that way "what's at x" and "what overlaps x1 to x2" only visit the parts
+ * of the tree that can have answers, and adding, moving or removing is a log n job
+ */
+package mygame;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class IntervalIndex<T> {
+
+    // a treap node... ordered by (start, id), heap ordered by priority
+    private class Entry {
+        T item;
+        float start, end;
+        float maxEnd; // the furthest end in this subtree
+        int priority;
+        long id; // breaks ties between equal starts
+        Entry left, right;
+    }
+
+    private Entry root = null;
+    private Map<T, Entry> entries = new IdentityHashMap<T, Entry>();
+    private Random random = new Random(1);
+    private long nextId = 0;
+
+    // adds an item (or moves it, if it's already in the index)
+    public void add(T item, float start, float end) {
+        if (entries.containsKey(item))
+            remove(item);
+        Entry entry = new Entry();
+        entry.item = item;
+        entry.start = start;
+        entry.end = end;
+        entry.maxEnd = end;
+        entry.priority = random.nextInt();
+        entry.id = nextId++;
+        entries.put(item, entry);
+        root = insert(root, entry);
+    }
+
+    // the item moved or changed size
+    public void update(T item, float start, float end) {
+        Entry entry = entries.get(item);
+        if (entry != null && entry.start == start && entry.end == end)
+            return;
+        add(item, start, end);
+    }
+
+    public boolean remove(T item) {
+        Entry entry = entries.remove(item);
+        if (entry == null)
+            return false;
+        root = delete(root, entry);
+        return true;
+    }
+
+    public void clear() {
+        root = null;
+        entries.clear();
+    }
+
+    // adds everything with start <= x < end to store
+    public List<T> getAt(float x, List<T> store) {
+        collect(root, x, x, true, store);
+        return store;
+    }
+
+    // adds everything overlapping [x1, x2) to store (start < x2 and end > x1)
+    public List<T> getOverlapping(float x1, float x2, List<T> store) {
+        collect(root, x1, x2, false, store);
+        return store;
+    }
+
+    // the first item starting after x, or null if there isn't one
+    public T getNextStartAfter(float x) {
+        Entry best = null;
+        Entry node = root;
+        while (node != null) {
+            if (node.start > x) {
+                best = node;
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        return (best != null) ? best.item : null;
+    }
+
+    // everything in the index, in start order
+    public List<T> getInOrder(List<T> store) {
+        collectInOrder(root, store);
+        return store;
+    }
+
+    // the item just before this one in start order (null if it's the first, or isn't in the index)
+    public T getPrevious(T item) {
+        Entry entry = entries.get(item);
+        if (entry == null)
+            return null;
+        Entry best = null;
+        Entry node = root;
+        while (node != null) {
+            if (before(node, entry)) {
+                best = node;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return (best != null) ? best.item : null;
+    }
+
+    // the item just after this one in start order (null if it's the last, or isn't in the index)
+    public T getNext(T item) {
+        Entry entry = entries.get(item);
+        if (entry == null)
+            return null;
+        Entry best = null;
+        Entry node = root;
+        while (node != null) {
+            if (before(entry, node)) {
+                best = node;
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        return (best != null) ? best.item : null;
+    }
+
+    private void collectInOrder(Entry node, List<T> store) {
+        if (node == null)
+            return;
+        collectInOrder(node.left, store);
+        store.add(node.item);
+        collectInOrder(node.right, store);
+    }
+
+    private void collect(Entry node, float x1, float x2, boolean atPoint, List<T> store) {
+        // nothing in this subtree reaches past x1, so nothing here can overlap
+        if (node == null || node.maxEnd <= x1)
+            return;
+        collect(node.left, x1, x2, atPoint, store);
+        boolean startsInRange = atPoint ? node.start <= x2 : node.start < x2;
+        if (!startsInRange)
+            return; // everything to the right starts even later
+        if (node.end > x1)
+            store.add(node.item);
+        collect(node.right, x1, x2, atPoint, store);
+    }
+
+    private boolean before(Entry a, Entry b) {
+        return a.start < b.start || (a.start == b.start && a.id < b.id);
+    }
+
+    private Entry insert(Entry node, Entry entry) {
+        if (node == null)
+            return entry;
+        if (before(entry, node)) {
+            node.left = insert(node.left, entry);
+            if (node.left.priority > node.priority)
+                node = rotateRight(node);
+        } else {
+            node.right = insert(node.right, entry);
+            if (node.right.priority > node.priority)
+                node = rotateLeft(node);
+        }
+        updateMax(node);
+        return node;
+    }
+
+    private Entry delete(Entry node, Entry entry) {
+        if (node == null)
+            return null;
+        if (node == entry) {
+            // rotate it down until it's a leaf (or has one child), then drop it
+            if (node.left == null)
+                return node.right;
+            if (node.right == null)
+                return node.left;
+            if (node.left.priority > node.right.priority) {
+                node = rotateRight(node);
+                node.right = delete(node.right, entry);
+            } else {
+                node = rotateLeft(node);
+                node.left = delete(node.left, entry);
+            }
+        } else if (before(entry, node)) {
+            node.left = delete(node.left, entry);
+        } else {
+            node.right = delete(node.right, entry);
+        }
+        updateMax(node);
+        return node;
+    }
+
+    private Entry rotateRight(Entry node) {
+        Entry left = node.left;
+        node.left = left.right;
+        left.right = node;
+        updateMax(node);
+        updateMax(left);
+        return left;
+    }
+
+    private Entry rotateLeft(Entry node) {
+        Entry right = node.right;
+        node.right = right.left;
+        right.left = node;
+        updateMax(node);
+        updateMax(right);
+        return right;
+    }
+
+    private void updateMax(Entry node) {
+        float max = node.end;
+        if (node.left != null && node.left.maxEnd > max)
+            max = node.left.maxEnd;
+        if (node.right != null && node.right.maxEnd > max)
+            max = node.right.maxEnd;
+        node.maxEnd = max;
+    }
+
+    // gets and sets...
+    public int size() {
+        return entries.size();
+    }
+    public boolean contains(T item) {
+        return entries.containsKey(item);
+    }
+    public float getStart(T item) {
+        return entries.get(item).start;
+    }
+    public float getEnd(T item) {
+        return entries.get(item).end;
+    }
+
+}
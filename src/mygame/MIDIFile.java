@@ -4,8 +4,16 @@
 package mygame;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import javax.sound.midi.MidiEvent;
 import javax.sound.midi.MidiMessage;
@@ -23,8 +31,24 @@ public class MIDIFile {
     public static final int NOTE_ON = 0x90;
     public static final int NOTE_OFF = 0x80;
     public static final int PROGRAM_CHANGE = 0xC0;
+    public static final int CHANNEL_PRESSURE = 0xD0;
     public static final String[] NOTE_NAMES = {"C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"};
     
+    // how the file gets read...
+    public static final int LOAD_JAVASOUND = 0; // through javax.sound.midi (the old, slow way)
+    public static final int LOAD_STREAM = 1; // straight from the bytes of the file
+    public static final int LOAD_PARALLEL = 2; // same as LOAD_STREAM, but each track is read on its own thread
+    
+    // chunk ids and meta event types, see http://www.somascape.org/midi/tech/mfile.html
+    private static final int MTHD = 0x4D546864; // "MThd"
+    private static final int MTRK = 0x4D54726B; // "MTrk"
+    private static final int META = 0xFF;
+    private static final int SYSEX = 0xF0;
+    private static final int SYSEX_ESCAPE = 0xF7;
+    private static final int META_END_OF_TRACK = 0x2F;
+    private static final int META_TEMPO = 0x51;
+    private static final int META_TIME_SIG = 0x58;
+    
     public class MIDITempo {
         public float tempo;
         public float pos;
@@ -34,8 +58,44 @@ public class MIDIFile {
         }
     }
     
+    public class MIDITimeSig {
+        public int top;
+        public int bottom;
+        public float pos;
+        public MIDITimeSig(int top, int bottom, float pos) {
+            this.top = top;
+            this.bottom = bottom;
+            this.pos = pos;
+        }
+    }
+    
+    // a program change, remembered until we know which notes it applies to...
+    private static class ProgramChange {
+        public long pos;
+        public int channel;
+        public int program;
+        public ProgramChange(long pos, int channel, int program) {
+            this.pos = pos;
+            this.channel = channel;
+            this.program = program;
+        }
+    }
+    
+    // everything read from one track chunk... kept apart from the other tracks
+    // so that tracks can be read at the same time and merged afterwards
+    private class TrackResult {
+        public MIDITrack track = new MIDITrack();
+        public List<MIDITempo> tempos = new ArrayList<MIDITempo>();
+        public List<MIDITimeSig> timeSigs = new ArrayList<MIDITimeSig>();
+        public List<ProgramChange> programChanges = new ArrayList<ProgramChange>();
+        public long tickLength = 0;
+    }
+    
+    private static ForkJoinPool loadPool; // shared by all parallel loads, created on first use
+    
     private List<MIDITrack> myTracks = new ArrayList<MIDITrack>();
     private List<MIDITempo> myTempos = new ArrayList<MIDITempo>();
+    private List<MIDITimeSig> myTimeSigs = new ArrayList<MIDITimeSig>();
     private int ppq = 240;
     private int timeSigTop = 4;
     private int timeSigBottom = 4;
@@ -56,10 +116,23 @@ public class MIDIFile {
     // end copy
 
     public MIDIFile(String filename, int qShift) throws Exception {
+        this(filename, qShift, LOAD_PARALLEL);
+    }
+    
+    public MIDIFile(String filename, int qShift, int loadMode) throws Exception {
         // clear our current tracks...
         myTracks.clear();
         myTempos.clear();
+        myTimeSigs.clear();
         
+        if (loadMode == LOAD_JAVASOUND)
+            readSequence(filename, qShift);
+        else
+            readStream(filename, qShift, loadMode == LOAD_PARALLEL);
+    }
+    
+    // reads the file through a javax.sound.midi Sequence...
+    private void readSequence(String filename, int qShift) throws Exception {
         Sequence sequence = MidiSystem.getSequence(new File(filename));
         
         //System.out.println("Resolution: " + sequence.getResolution());
@@ -70,7 +143,7 @@ public class MIDIFile {
         //System.out.println();
 
         int trackNumber = 0;
-        int currentProgram = 0; // default midi instrument, piano
+        List<ProgramChange> programChanges = new ArrayList<ProgramChange>();
         for (int h = 0; h < sequence.getTracks().length; h++) {
             MIDITrack newTrack = new MIDITrack();
             trackNumber++;
@@ -86,20 +159,20 @@ public class MIDIFile {
                     ShortMessage sm = (ShortMessage) message;
                     //System.out.print("Channel: " + sm.getChannel() + " ");
                     if (sm.getCommand() == PROGRAM_CHANGE) {
-                        currentProgram = sm.getData1();
-                        //System.out.println("Program change, " + currentProgram);
+                        programChanges.add(new ProgramChange(event.getTick()+qShift*ppq, sm.getChannel(), sm.getData1()));
+                        //System.out.println("Program change, " + sm.getData1());
                     }
-                    else if (sm.getCommand() == NOTE_ON) {
+                    else if (sm.getCommand() == NOTE_ON && sm.getData2() > 0) {
                         int key = sm.getData1();
                         int octave = (key / 12)-1;
                         int note = key % 12;
                         String noteName = NOTE_NAMES[note];
                         int velocity = sm.getData2();
                         //System.out.println("Note on, " + noteName + octave + " key=" + key + " velocity: " + velocity);
-                        // create new note in track
-                        newTrack.addNote(sm.getChannel(), currentProgram, key, velocity, (event.getTick()+qShift*ppq));
+                        // create new note in track (its program gets filled in once all program changes are known)
+                        newTrack.addNote(sm.getChannel(), 0, key, velocity, (event.getTick()+qShift*ppq));
                     }
-                    else if (sm.getCommand() == NOTE_OFF) {
+                    else if (sm.getCommand() == NOTE_OFF || sm.getCommand() == NOTE_ON) { // note on with velocity 0 is a note off too
                         int key = sm.getData1();
                         int octave = (key / 12)-1;
                         int note = key % 12;
@@ -107,7 +180,7 @@ public class MIDIFile {
                         int velocity = sm.getData2();
                         //System.out.println("Note off, " + noteName + octave + " key=" + key + " velocity: " + velocity);
                         // set note duration...
-                        newTrack.endNote(key, (event.getTick()+qShift*ppq));
+                        newTrack.endNote(sm.getChannel(), key, (event.getTick()+qShift*ppq));
                         //System.out.println("NOTE ENDED: " + newTrack.endNote(key, event.getTick()));
                     } else {
                         //System.out.println("Command:" + sm.getCommand());
@@ -147,10 +220,302 @@ public class MIDIFile {
                 }
             }
             
+            newTrack.closeOpenNotes(sequence.getTracks()[h].ticks()+qShift*ppq);
+            
             // add the track to our list...
             myTracks.add(newTrack);
         }
-
+        applyProgramChanges(programChanges);
+    }
+    
+    // reads the file by walking its chunks directly, no Sequence and no hex strings...
+    private void readStream(String filename, int qShift, boolean parallel) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            
+            // header chunk: length, format, number of tracks, division
+            if (buffer.limit() < 14 || buffer.getInt(0) != MTHD)
+                throw new IOException("Not a standard MIDI file: " + filename);
+            int headerLength = buffer.getInt(4);
+            int division = buffer.getShort(12) & 0xFFFF;
+            if ((division & 0x8000) != 0)
+                ppq = division & 0xFF; // SMPTE, ticks per frame (same as javax.sound.midi gives us)
+            else
+                ppq = division;
+            
+            // find where each track chunk starts and ends...
+            List<TrackReader> trackChunks = new ArrayList<TrackReader>();
+            int pos = 8 + headerLength;
+            while (pos + 8 <= buffer.limit()) {
+                int chunkId = buffer.getInt(pos);
+                int chunkLength = buffer.getInt(pos + 4);
+                int chunkStart = pos + 8;
+                int chunkEnd = (int) Math.min((long) chunkStart + (chunkLength & 0xFFFFFFFFL), buffer.limit());
+                if (chunkId == MTRK)
+                    trackChunks.add(new TrackReader(buffer, chunkStart, chunkEnd));
+                // unknown chunks are simply skipped...
+                pos = chunkEnd;
+            }
+            
+            // ...then read them, one after another or all at once
+            List<TrackResult> results = new ArrayList<TrackResult>();
+            if (parallel && trackChunks.size() > 1) {
+                List<TrackTask> tasks = new ArrayList<TrackTask>();
+                for (int i = 0; i < trackChunks.size(); i++) {
+                    tasks.add(new TrackTask(trackChunks.get(i), i+1, qShift));
+                }
+                ForkJoinPool pool = getLoadPool();
+                for (int i = 0; i < tasks.size(); i++) {
+                    pool.execute(tasks.get(i));
+                }
+                for (int i = 0; i < tasks.size(); i++) {
+                    results.add(tasks.get(i).join());
+                    if (tasks.get(i).error != null)
+                        throw tasks.get(i).error;
+                }
+            } else {
+                for (int i = 0; i < trackChunks.size(); i++) {
+                    results.add(readTrack(trackChunks.get(i), i+1, qShift));
+                }
+            }
+            mergeTracks(results);
+        } finally {
+            file.close();
+        }
+    }
+    
+    // decodes the events of one MTrk chunk
+    // (this runs on worker threads, so it must only touch its own TrackResult)
+    private TrackResult readTrack(TrackReader in, int trackNumber, int qShift) throws IOException {
+        TrackResult result = new TrackResult();
+        MIDITrack newTrack = result.track;
+        newTrack.trackNumber = trackNumber;
+        int runningStatus = 0;
+        while (in.hasMore()) {
+            in.tick += in.readVLQ();
+            long eventPos = in.tick + qShift*ppq;
+            
+            int status = in.peek();
+            if (status >= 0x80) {
+                in.pos++;
+                // only channel messages may be repeated with running status...
+                if (status < SYSEX)
+                    runningStatus = status;
+                else
+                    runningStatus = 0;
+            } else if (runningStatus != 0) {
+                status = runningStatus;
+            } else {
+                throw new IOException("Data byte without a status at offset " + in.pos);
+            }
+            
+            if (status == META) {
+                int type = in.read();
+                int length = in.readVLQ();
+                if (type == META_TEMPO && length == 3) {
+                    long timePerQ = ((long) in.peek(0) << 16) | (in.peek(1) << 8) | in.peek(2);
+                    float secondsPerQ = timePerQ / 1000000f;
+                    // add to our tempo list...
+                    float tempo = 60f / secondsPerQ; // convert to bpm (60 seconds in a minute)
+                    result.tempos.add(new MIDITempo(tempo, (float) eventPos));
+                } else if (type == META_TIME_SIG && length == 4) {
+                    result.timeSigs.add(new MIDITimeSig(in.peek(0), 1 << in.peek(1), (float) eventPos));
+                }
+                in.skip(length);
+                if (type == META_END_OF_TRACK)
+                    break;
+            } else if (status == SYSEX || status == SYSEX_ESCAPE) {
+                in.skip(in.readVLQ());
+            } else if (status >= SYSEX) {
+                // system common / real time messages don't belong in a file...
+                throw new IOException("Unexpected status " + Integer.toHexString(status) + " at offset " + in.pos);
+            } else {
+                int command = status & 0xF0;
+                int channel = status & 0x0F;
+                int data1 = in.read() & 0x7F;
+                int data2 = 0;
+                if (command != PROGRAM_CHANGE && command != CHANNEL_PRESSURE)
+                    data2 = in.read() & 0x7F;
+                if (command == PROGRAM_CHANGE) {
+                    result.programChanges.add(new ProgramChange(eventPos, channel, data1));
+                } else if (command == NOTE_ON && data2 > 0) {
+                    // the program gets filled in by mergeTracks, once all program changes are known
+                    newTrack.addNote(channel, 0, data1, data2, eventPos);
+                } else if (command == NOTE_OFF || command == NOTE_ON) { // note on with velocity 0 is a note off too
+                    newTrack.endNote(channel, data1, eventPos);
+                }
+            }
+        }
+        // any notes still sounding end with the track...
+        newTrack.closeOpenNotes(in.tick + qShift*ppq);
+        result.tickLength = in.tick;
+        return result;
+    }
+    
+    // puts the separately read tracks together, in file order...
+    private void mergeTracks(List<TrackResult> results) {
+        long tickLength = 0;
+        List<ProgramChange> programChanges = new ArrayList<ProgramChange>();
+        for (int i = 0; i < results.size(); i++) {
+            myTracks.add(results.get(i).track);
+            myTempos.addAll(results.get(i).tempos);
+            myTimeSigs.addAll(results.get(i).timeSigs);
+            programChanges.addAll(results.get(i).programChanges);
+            tickLength = Math.max(tickLength, results.get(i).tickLength);
+        }
+        sizeInW = tickLength / (ppq*4f);
+        
+        // the last time signature in the file is the one we use, same as always
+        if (!myTimeSigs.isEmpty()) {
+            timeSigTop = myTimeSigs.get(myTimeSigs.size()-1).top;
+            timeSigBottom = myTimeSigs.get(myTimeSigs.size()-1).bottom;
+        }
+        
+        // now order the global events by time (these sorts are stable, so ties stay in file order)
+        Collections.sort(myTempos, new Comparator<MIDITempo>() {
+            public int compare(MIDITempo t1, MIDITempo t2) {
+                return Float.compare(t1.pos, t2.pos);
+            }
+        });
+        Collections.sort(myTimeSigs, new Comparator<MIDITimeSig>() {
+            public int compare(MIDITimeSig t1, MIDITimeSig t2) {
+                return Float.compare(t1.pos, t2.pos);
+            }
+        });
+        applyProgramChanges(programChanges);
+    }
+    
+    // orders the program changes of every track by time, then gives each note its program
+    // (all the load modes go through here, so they agree on every note's program)
+    private void applyProgramChanges(List<ProgramChange> programChanges) {
+        Collections.sort(programChanges, new Comparator<ProgramChange>() {
+            public int compare(ProgramChange p1, ProgramChange p2) {
+                return (p1.pos < p2.pos ? -1 : (p1.pos == p2.pos ? 0 : 1));
+            }
+        });
+        resolvePrograms(programChanges);
+    }
+    
+    // a channel's program is whatever the latest program change on that channel said,
+    // no matter which track it was in (or 0, piano, if there hasn't been one yet)
+    private void resolvePrograms(List<ProgramChange> programChanges) {
+        if (programChanges.isEmpty())
+            return;
+        // split the (already sorted) changes up by channel...
+        int[] counts = new int[16];
+        for (int i = 0; i < programChanges.size(); i++) {
+            counts[programChanges.get(i).channel]++;
+        }
+        long[][] changePos = new long[16][];
+        int[][] changeProgram = new int[16][];
+        for (int c = 0; c < 16; c++) {
+            changePos[c] = new long[counts[c]];
+            changeProgram[c] = new int[counts[c]];
+            counts[c] = 0;
+        }
+        for (int i = 0; i < programChanges.size(); i++) {
+            ProgramChange change = programChanges.get(i);
+            changePos[change.channel][counts[change.channel]] = change.pos;
+            changeProgram[change.channel][counts[change.channel]] = change.program;
+            counts[change.channel]++;
+        }
+        // ...and look up each note's program with a binary search
+        for (int t = 0; t < myTracks.size(); t++) {
+            NoteTable notes = myTracks.get(t).noteTable;
+            for (int i = 0; i < notes.size(); i++) {
+                long[] positions = changePos[notes.getChannel(i)];
+                long start = notes.getStart(i);
+                int low = 0;
+                int high = positions.length;
+                while (low < high) { // finds the first change after the note starts
+                    int mid = (low + high) >>> 1;
+                    if (positions[mid] <= start)
+                        low = mid + 1;
+                    else
+                        high = mid;
+                }
+                if (low > 0)
+                    notes.setProgram(i, changeProgram[notes.getChannel(i)][low-1]);
+            }
+        }
+    }
+    
+    private static synchronized ForkJoinPool getLoadPool() {
+        if (loadPool == null)
+            loadPool = new ForkJoinPool();
+        return loadPool;
+    }
+    
+    // reads one track chunk on a fork/join worker... (never serialized, it only lives for one load)
+    @SuppressWarnings("serial")
+    private class TrackTask extends RecursiveTask<TrackResult> {
+        private final TrackReader in;
+        private final int trackNumber;
+        private final int qShift;
+        private IOException error = null; // handed back to the loading thread after join()
+        
+        public TrackTask(TrackReader in, int trackNumber, int qShift) {
+            this.in = in;
+            this.trackNumber = trackNumber;
+            this.qShift = qShift;
+        }
+        
+        @Override
+        protected TrackResult compute() {
+            try {
+                return readTrack(in, trackNumber, qShift);
+            } catch (IOException ex) {
+                error = ex;
+                return null;
+            }
+        }
+    }
+    
+    // keeps our place while reading through a track chunk...
+    private static class TrackReader {
+        private final ByteBuffer buffer;
+        private final int end;
+        private int pos;
+        private long tick = 0; // absolute tick of the last event read
+        
+        public TrackReader(ByteBuffer buffer, int start, int end) {
+            this.buffer = buffer;
+            this.pos = start;
+            this.end = end;
+        }
+        
+        public boolean hasMore() {
+            return pos < end;
+        }
+        public int peek() throws IOException {
+            return peek(0);
+        }
+        public int peek(int offset) throws IOException {
+            if (pos + offset >= end)
+                throw new IOException("Track chunk ends in the middle of an event");
+            return buffer.get(pos + offset) & 0xFF;
+        }
+        public int read() throws IOException {
+            int b = peek(0);
+            pos++;
+            return b;
+        }
+        public void skip(int length) {
+            pos = Math.min(pos + length, end);
+        }
+        // variable-length quantity, 7 bits per byte, high bit set on all but the last byte
+        public int readVLQ() throws IOException {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = read();
+                value = (value << 7) | (b & 0x7F);
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Variable-length quantity longer than 4 bytes at offset " + pos);
+        }
     }
     
     // gets and sets //////////////////////////
@@ -161,6 +526,9 @@ public class MIDIFile {
     public List<MIDITempo> getMyTempos() {
         return myTempos;
     }
+    public List<MIDITimeSig> getMyTimeSigs() {
+        return myTimeSigs;
+    }
     public int getPPQ() {
         return ppq;
     }
@@ -0,0 +1,87 @@
+/*
+ * Times loading MIDI files the old way (javax.sound.midi)
+ * against reading the file bytes directly (one track at a time and all at once)...
+ * usage: MIDIFileBenchmark [file.mid ...]
+ */
+package mygame;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class MIDIFileBenchmark {
+
+    private static final int WARMUP_RUNS = 5;
+    private static final int TIMED_RUNS = 20;
+
+    public static void main(String[] args) throws Exception {
+        String[] files = args;
+        if (files.length == 0)
+            files = new String[] {"assets/MIDIFiles/Hannifin-AWinterWish.mid"};
+
+        for (int i = 0; i < files.length; i++) {
+            System.out.println(files[i]);
+            float javaSoundMs = time(files[i], MIDIFile.LOAD_JAVASOUND);
+            float streamMs = time(files[i], MIDIFile.LOAD_STREAM);
+            float parallelMs = time(files[i], MIDIFile.LOAD_PARALLEL);
+            System.out.println("  javax.sound.midi: " + javaSoundMs + " ms");
+            System.out.println("  stream:           " + streamMs + " ms (" + (javaSoundMs / streamMs) + "x)");
+            System.out.println("  parallel:         " + parallelMs + " ms (" + (javaSoundMs / parallelMs) + "x, "
+                    + Runtime.getRuntime().availableProcessors() + " cores)");
+
+            // all three ways should give us the same notes...
+            MIDIFile a = new MIDIFile(files[i], 0, MIDIFile.LOAD_JAVASOUND);
+            MIDIFile b = new MIDIFile(files[i], 0, MIDIFile.LOAD_STREAM);
+            MIDIFile c = new MIDIFile(files[i], 0, MIDIFile.LOAD_PARALLEL);
+            System.out.println("  notes: " + countNotes(a) + " / " + countNotes(b) + " / " + countNotes(c)
+                    + ", tempos: " + a.getMyTempos().size() + " / " + b.getMyTempos().size() + " / " + c.getMyTempos().size()
+                    + ", size in W: " + a.getSizeInW() + " / " + b.getSizeInW() + " / " + c.getSizeInW());
+            System.out.println("  notes that differ: stream " + countDifferences(a, b) + ", parallel " + countDifferences(a, c));
+        }
+    }
+
+    // average time of one load in milliseconds
+    private static float time(String filename, int loadMode) throws Exception {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            new MIDIFile(filename, 0, loadMode);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < TIMED_RUNS; i++) {
+            new MIDIFile(filename, 0, loadMode);
+        }
+        return (System.nanoTime() - start) / (TIMED_RUNS * 1000000f);
+    }
+
+    // how many notes differ in start, duration, key, velocity, channel or program (a missing track or note counts too)
+    private static int countDifferences(MIDIFile a, MIDIFile b) {
+        int differences = 0;
+        int trackCount = Math.max(a.getMyTracks().size(), b.getMyTracks().size());
+        for (int t = 0; t < trackCount; t++) {
+            if (t >= a.getMyTracks().size() || t >= b.getMyTracks().size()) {
+                MIDIFile longer = (t < a.getMyTracks().size()) ? a : b;
+                differences += longer.getMyTracks().get(t).noteTable.size();
+                continue;
+            }
+            NoteTable notesA = a.getMyTracks().get(t).noteTable;
+            NoteTable notesB = b.getMyTracks().get(t).noteTable;
+            int common = Math.min(notesA.size(), notesB.size());
+            for (int i = 0; i < common; i++) {
+                if (notesA.getStart(i) != notesB.getStart(i) || notesA.getDuration(i) != notesB.getDuration(i)
+                        || notesA.getKey(i) != notesB.getKey(i) || notesA.getVelocity(i) != notesB.getVelocity(i)
+                        || notesA.getChannel(i) != notesB.getChannel(i) || notesA.getProgram(i) != notesB.getProgram(i))
+                    differences++;
+            }
+            differences += Math.abs(notesA.size() - notesB.size());
+        }
+        return differences;
+    }
+
+    private static int countNotes(MIDIFile midiFile) {
+        int count = 0;
+        for (int i = 0; i < midiFile.getMyTracks().size(); i++) {
+            count += midiFile.getMyTracks().get(i).noteTable.size();
+        }
+        return count;
+    }
+
+}
@@ -30,22 +30,30 @@ public class MIDISynth {
         }
     }
     
+    // (without a synth, like on a headless machine with no sound device, notes are just silent)
     public void playMidiNote(int channel, int program, int noteValue, int velocity) {
+        if (mChannels == null)
+            return;
         mChannels[channel].programChange(program);
         mChannels[channel].noteOn(noteValue, velocity);
     }
     public void stopMidiNote(int channel, int noteValue) {
+        if (mChannels == null)
+            return;
         mChannels[channel].noteOff(noteValue);
     }
     
     public void stopAllNotes() {
+        if (mChannels == null)
+            return;
         for (int i = 0; i < mChannels.length; i++) {
             mChannels[i].allNotesOff();
         }
     }
     
     public void closeSynth() {
-        synth.close();
+        if (synth != null)
+            synth.close();
     }     
 }
 
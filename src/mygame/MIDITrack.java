@@ -3,7 +3,6 @@
  */
 package mygame;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -14,27 +13,39 @@ public class MIDITrack {
     
     public int trackNumber = 0;
     public int midiChannel = 0;
-    public List<MIDINote> notes = new ArrayList<MIDINote>();
+    public final NoteTable noteTable = new NoteTable(); // the notes themselves, stored column by column
+    public final List<MIDINote> notes = noteTable.asList(); // read-only view of noteTable
     
-    public void addNote(int channel, int program, int value, int velocity, float startPos) {
-        MIDINote newNote = new MIDINote();
-        newNote.channel = channel;
-        newNote.program = program;
-        newNote.value = value;
-        newNote.velocity = velocity;
-        newNote.startPos = startPos;
-        notes.add(newNote);
+    public static final int DEFAULT_PAIRING_POLICY = NotePairer.FIFO; // (part of the project cache's settings, see Main)
+    private final NotePairer openNotes = new NotePairer(DEFAULT_PAIRING_POLICY); // notes waiting for their note off
+    
+    public void addNote(int channel, int program, int value, int velocity, long startPos) {
+        int index = noteTable.add(channel, program, value, velocity, startPos);
+        openNotes.noteOn(channel, value, index);
+    }
+    
+    // ends the open note with this channel and value, returns false if there wasn't one
+    public boolean endNote(int channel, int value, long endPos) {
+        int index = openNotes.noteOff(channel, value);
+        if (index < 0)
+            return false;
+        noteTable.setDuration(index, endPos - noteTable.getStart(index));
+        return true;
     }
     
-    public boolean endNote(int value, float endPos) {
-        // find the last note that was added with this value...
-        for (int i = notes.size()-1; i >= 0; i--) {
-            if (notes.get(i).value == value) {
-                notes.get(i).duration = endPos - notes.get(i).startPos;
-                return true;
-            }
+    // ends any notes that never got a note off (call this when the track ends)
+    public int closeOpenNotes(long endPos) {
+        int closed = 0;
+        for (int index = openNotes.pollOpen(); index >= 0; index = openNotes.pollOpen()) {
+            noteTable.setDuration(index, Math.max(endPos - noteTable.getStart(index), 0));
+            closed++;
         }
-        return false;
+        return closed;
+    }
+    
+    // which note gets ended when the same key was struck twice (NotePairer.FIFO or LIFO)
+    public void setPairingPolicy(int policy) {
+        openNotes.setPolicy(policy);
     }
     
 }
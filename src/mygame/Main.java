@@ -8,7 +8,6 @@ package mygame;
 
 import com.jme3.app.FlyCamAppState;
 import com.jme3.app.SimpleApplication;
-import com.jme3.app.state.ScreenshotAppState;
 import com.jme3.collision.CollisionResults;
 import com.jme3.font.BitmapText;
 import com.jme3.input.KeyInput;
@@ -27,9 +26,14 @@ import com.jme3.renderer.RenderManager;
 import com.jme3.renderer.queue.RenderQueue;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.shape.Line;
+import com.jme3.system.AppSettings;
+import com.jme3.system.JmeContext;
 import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,6 +48,9 @@ public class Main extends SimpleApplication {
     private float musicGridWidthPerWholeNote = 25f; // This will determine horizontal spacing / stretch
     private boolean useGradients = true; // use gradients on note colors? true or false
     private boolean animateSize = true; // animated the note size when playing? true or false
+    private boolean batchNotes = true; // draw each track's notes as one mesh? (much faster on big scores)
+    private boolean windowNotes = true; // only keep notes near the view in the scene? (also much faster on long scores)
+    private NoteWindow noteWindow = new NoteWindow(musicGridWidthPerWholeNote * 2f); // notes up to 2 whole notes past the view stay attached
     
     private BitmapText controlText; // text for control decisions...
     
@@ -70,9 +77,11 @@ public class Main extends SimpleApplication {
     private Line playLine;
     private Geometry playGeo;
     private Material playMat;
-    private float playTempo = 120; // bpm in quarter notes...
-    private float lastTempo;
-    private float playTime = 0f; // how long has it been playing?
+    private float playTempo = 120; // bpm in quarter notes... (used before the first tempo control)
+    private TempoMap playTempoMap; // built from the tempo controls whenever we start playing
+    private double playStartSeconds = 0; // where the cursor was when we started, in seconds
+    private double playTime = 0; // how long has it been playing?
+    private int playFrame = 0; // frames rendered so far when taking screenshots
     private float playStartPos = -0.2f;
     private float playCurrentX = 0f;
     private boolean playLineToggle = true;
@@ -105,6 +114,25 @@ public class Main extends SimpleApplication {
     private float noteEnd = 0f;
     private Vector2f clickedNoteDistance; // for moving notes, saves the distance between mouse and note position
     
+    // scratch objects for simpleUpdate, so a frame doesn't have to make new ones
+    private Vector3f cursor3d = new Vector3f();
+    private Vector3f hoverDir = new Vector3f();
+    private Ray hoverRay = new Ray();
+    private CollisionResults hoverResults = new CollisionResults();
+    private List<Note> hoverNotes = new ArrayList<Note>();
+    private Vector3f camLocation = new Vector3f();
+    
+    // set to true (or run with -stats) to print how long things took... e.g. loading the project, each time the grid is made again,
+    // how many phantoms were made and reused, and how many notes were kept in the scene while we played
+    private boolean printStats = false;
+    
+    // set to true (or run with -allocations) to check how much memory each frame allocates while playing...
+    // playback shouldn't allocate anything once it's warmed up, so any frame that does is logged as an error
+    // (with -headless it plays through the song instead of exporting it, see PlaybackAllocationBenchmark)
+    private boolean measureAllocations = false;
+    private FrameAllocationMeter allocationMeter = new FrameAllocationMeter(120);
+    private final CountDownLatch destroyed = new CountDownLatch(1);
+    
     // our selector!! for selecting notes...
     private Selector selector;
     private float selectorOffset = 0f;
@@ -118,10 +146,32 @@ public class Main extends SimpleApplication {
     private ControlInteger smallestUnits;
         
     // screenshot files will appear as "Main#.png" in main folder
-    private ScreenshotAppState screenShot = new ScreenshotAppState("");
+    // (encoded on other threads... exportQueueSize is how many frames may wait for an encoder before playback waits for them)
+    private int exportThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private int exportQueueSize = 8;
+    private FrameExporter frameExporter = new FrameExporter("Main", exportThreads, exportQueueSize);
+    // set this to export raw frames into one file instead ("-" for stdout, or the path of a named pipe)... see RawFrameWriter
+    private String exportRawTo = null;
+    private int exportFps = 60;
+    // draw exported frames on the cpu instead of reading them back from OpenGL (see SoftwareRenderer)...
+    // -headless does this without a window, exporting the whole song at exportWidth x exportHeight and then quitting...
+    // frames are drawn in chunks of exportChunkSize on exportWorkers threads at once, or split over exportProcesses
+    // java processes if that's more than 1 (raw only, see ChunkedExporter)... -frames exports just part of the song
+    private boolean renderInSoftware = false;
+    private boolean headless = false;
+    private int exportWidth = 1280, exportHeight = 720;
+    private int exportWorkers = Runtime.getRuntime().availableProcessors();
+    private int exportProcesses = 1;
+    private int exportChunkSize = 30;
+    private int exportFirstFrame = 0;
+    private int exportFrameCount = -1; // (the rest of the song)
+    private SoftwareRenderer softwareRenderer = null;
+    private boolean softwareCaptureNext = false;
+    private FrameState exportState = null; // how every note looks at each frame of the export (software frames are drawn from it)
     
     // MIDI files to open...
-    private MIDIFile midiFile; // initiated in appInit...
+    private MIDIFile midiFile; // initiated in appInit... (stays null if we loaded from the project cache)
+    private ProjectCache project; // what we built from the midi file, saved next to it
     
     // note styles...
     private class NoteStyles {
@@ -159,8 +209,56 @@ public class Main extends SimpleApplication {
     ///// FUNCTIONS //////////////////////////////////////////////////////////////////////
 
     public static void main(String[] args) {        
+        createApp(args).startApp();
+    }
+    
+    // a Main set up from the command line (see the README)
+    static Main createApp(String[] args) {
         Main app = new Main();       
-        app.start();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-headless")) {
+                app.headless = true;
+                app.renderInSoftware = true;
+            } else if (args[i].equals("-software")) {
+                app.renderInSoftware = true;
+            } else if (args[i].equals("-raw") && i+1 < args.length) {
+                app.exportRawTo = args[++i];
+            } else if (args[i].equals("-size") && i+2 < args.length) {
+                app.exportWidth = Integer.parseInt(args[++i]);
+                app.exportHeight = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-workers") && i+1 < args.length) {
+                app.exportWorkers = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-processes") && i+1 < args.length) {
+                app.exportProcesses = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-chunk") && i+1 < args.length) {
+                app.exportChunkSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-frames") && i+2 < args.length) {
+                app.exportFirstFrame = Integer.parseInt(args[++i]);
+                app.exportFrameCount = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-stats")) {
+                app.printStats = true;
+            } else if (args[i].equals("-allocations")) {
+                app.measureAllocations = true;
+            }
+        }
+        // frames going to stdout? then everything we print goes to stderr, from the start
+        // (anything printed while loading would end up in front of the frames otherwise)
+        if ("-".equals(app.exportRawTo))
+            System.setOut(System.err);
+        return app;
+    }
+    
+    void startApp() {
+        if (headless) {
+            AppSettings settings = new AppSettings(true);
+            settings.setResolution(exportWidth, exportHeight);
+            settings.setFrameRate(100000); // (as fast as we can... a headless context takes -1 to mean 60)
+            setSettings(settings);
+            setShowSettings(false);
+            start(JmeContext.Type.Headless);
+        } else {
+            start();
+        }
     }
 
     @Override
@@ -218,7 +316,7 @@ public class Main extends SimpleApplication {
         frustumSize = (float) Math.exp(zoom);
         cam.setFrustum(-1000, 1000, -aspect * frustumSize, aspect * frustumSize, frustumSize, -frustumSize);
         
-        stateManager.attach(screenShot);
+        guiViewPort.addProcessor(frameExporter); // (the gui is drawn last, so this sees the whole frame)
         
         // input mapping        
         inputManager.addListener(analogListener, "Size-", "Size+", "scrollWheelUp", "scrollWheelDown");
@@ -257,6 +355,7 @@ public class Main extends SimpleApplication {
         // create our musicGrid...
         musicGridHeight = 100f;
         musicGrid = new MusicGrid(assetManager, guiNode, guiFont, musicGridWidthPerWholeNote, musicGridHeight, 1.5f, false, false);
+        musicGrid.setPrintStats(printStats);
         musicGrid.addMeasure(0, defaultMeasureTop, defaultMeasureBottom, defaultSmallestUnit, myTracks, selector, false);
         musicGrid.createGrid();
         musicGrid.setQueueBucket(RenderQueue.Bucket.Transparent);
@@ -272,18 +371,182 @@ public class Main extends SimpleApplication {
         float newYPos = musicGridHeight/2f;
         cam.setLocation(new Vector3f(cam.getLocation().x, newYPos, cam.getLocation().z));       
         
-        try {            
-            // load a midi file...
-            int qShift = 0; // if we don't want the MIDI to start right at the beginning... this will shift it a quarter note or something
-            midiFile = new MIDIFile(midiFileName, qShift);
+        // load the project... from the cache next to the midi file if we've opened it before,
+        // otherwise parse the midi file and write a new cache
+        int qShift = 0; // if we don't want the MIDI to start right at the beginning... this will shift it a quarter note or something
+        long loadStart = System.nanoTime();
+        try {
+            project = ProjectCache.load(midiFileName, qShift, getProjectSettings());
         } catch (Exception ex) {
+            Logger.getLogger(Main.class.getName()).log(Level.WARNING, "Couldn't read project cache", ex);
+        }
+        if (project == null) {
+            try {
+                midiFile = new MIDIFile(midiFileName, qShift);
+                project = createProjectFromMIDI(qShift);
+            } catch (Exception ex) {
+                Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            if (project != null) {
+                try {
+                    project.save(midiFileName);
+                } catch (Exception ex) {
+                    Logger.getLogger(Main.class.getName()).log(Level.WARNING, "Couldn't write project cache", ex);
+                }
+            }
+        } else if (printStats) {
+            System.out.println("Loaded " + project.getNoteCount() + " notes from " + ProjectCache.getCacheFile(midiFileName));
+        }
+        if (printStats)
+            System.out.println("Project loaded in " + ((System.nanoTime() - loadStart) / 1000000f) + " ms");
+        if (project != null)
+            createTracksFromProject();
+        if (printStats) {
+            Runtime runtime = Runtime.getRuntime();
+            System.out.println(RenderCache.get(assetManager).getReport() + ", heap used "
+                    + ((runtime.totalMemory() - runtime.freeMemory()) / (1024*1024)) + " MB");
+        }
+        if (renderInSoftware && !headless)
+            softwareRenderer = new SoftwareRenderer(cam.getWidth(), cam.getHeight(), Runtime.getRuntime().availableProcessors());
+        if (headless && measureAllocations) {
+            startPlaying(false); // (plays through the song to check its allocations, see simpleUpdate)
+        } else if (headless) {
+            exportHeadless();
+            stop();
+        }
+    }
+    
+    // exports the song without playing it... every frame is drawn from a FrameState, so the frames can be
+    // split into chunks and drawn on any number of threads (or processes) at once
+    private void exportHeadless() {
+        rootNode.updateGeometricState(); // (the workers only read the scene, so it has to be up to date first)
+        playCurrentX = musicGrid.getCursorPos().x;
+        playTempoMap = musicGrid.createTempoMap(project != null ? project.ppq : 240, playTempo);
+        playStartSeconds = playTempoMap.xToSeconds(playCurrentX);
+        exportState = new FrameState(playTempoMap, playStartSeconds, playStartPos, exportFps, Track.PREPLAY_DISTANCE, animateSize);
+        int width = cam.getWidth();
+        int height = cam.getHeight();
+        int frameCount = exportFrameCount;
+        if (frameCount < 0) // until the play line is past the end of the grid
+            frameCount = Math.max(exportState.getFrameAt(Math.nextUp(musicGrid.getGridWidth())) - exportFirstFrame, 0);
+        if (exportProcesses > 1 && exportRawTo == null)
+            Logger.getLogger(Main.class.getName()).log(Level.WARNING, "Exporting with processes needs -raw, using threads instead");
+        RawFrameWriter writer = null;
+        try {
+            if (exportRawTo != null)
+                writer = RawFrameWriter.open(exportRawTo, width, height, exportFps, frameCount);
+            if (writer != null && exportProcesses > 1) {
+                List<String> workerArgs = new ArrayList<String>();
+                workerArgs.add("-headless");
+                workerArgs.add("-size");
+                workerArgs.add("" + width);
+                workerArgs.add("" + height);
+                workerArgs.add("-workers");
+                workerArgs.add("" + Math.max(1, exportWorkers / exportProcesses));
+                workerArgs.add("-chunk");
+                workerArgs.add("" + exportChunkSize);
+                File partDir = new File(exportRawTo).getAbsoluteFile().getParentFile();
+                if (writer.isStreaming() || partDir == null)
+                    partDir = new File(".");
+                ChunkedExporter.exportWithProcesses(writer, exportFirstFrame, frameCount, exportProcesses, workerArgs, partDir);
+            } else {
+                ChunkedExporter exporter = new ChunkedExporter(exportDrawer, width, height, exportWorkers, exportChunkSize);
+                if (writer != null)
+                    exporter.exportRaw(writer, exportFirstFrame, frameCount);
+                else
+                    exporter.exportPngs("Main", exportFirstFrame, frameCount);
+                System.out.println(exporter.getReport());
+            }
+            if (writer != null) {
+                writer.close();
+                System.out.println(writer.getReport());
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, "Couldn't export to " + exportRawTo, ex);
+        }
+    }
+    
+    // plays from the cursor... exporting every frame if export is true
+    private void startPlaying(boolean export) {
+        playCurrentX = musicGrid.getCursorPos().x;
+        playTempoMap = musicGrid.createTempoMap(project != null ? project.ppq : 240, playTempo);
+        playStartSeconds = playTempoMap.xToSeconds(playCurrentX);
+        // reset position
+        playLine = new Line(playBottomPos, playTopPos);
+        playLine.setLineWidth(playLineWidth);
+        playGeo.setMesh(playLine);
+        playTime = playStartPos;
+        playFrame = 0;
+        playGeo.setLocalTranslation(playCurrentX, 0, 0);
+        if (playLineToggle)
+            rootNode.attachChild(playGeo);
+        if (export) {
+            currentState = EditState.PLAYING_SCREENSHOT;
+            exportState = new FrameState(playTempoMap, playStartSeconds, playStartPos, exportFps, Track.PREPLAY_DISTANCE, animateSize);
+            if (exportRawTo != null)
+                startRawExport();
+        }
+        else {
+            currentState = EditState.PLAYING;
+            if (measureAllocations)
+                allocationMeter.reset();
+        }
+    }
+    private void stopPlaying() {
+        if (currentState == EditState.PLAYING_SCREENSHOT) {
+            frameExporter.finish(); // let the encoders catch up
+            System.out.println(frameExporter.getReport());
+            frameExporter.resetStats();
+            stopRawExport();
+            if (softwareRenderer != null)
+                System.out.println(softwareRenderer.getReport());
+        }
+        currentState = EditState.NORMAL;
+        rootNode.detachChild(playGeo);
+        for (int i = 0; i < myTracks.size(); i++) {
+            myTracks.get(i).resetAllNotes(); // this will also stop all midi notes
+            myTracks.get(i).stopAllNotes(animateSize);
+        }
+        if (printStats)
+            System.out.println(PhantomPool.get().getReport());
+        if (windowNotes && printStats)
+            System.out.println(noteWindow.getReport(myTracks));
+        if (measureAllocations) {
+            System.out.println(allocationMeter.getReport());
+            if (allocationMeter.getAllocatingFrames() > 0)
+                Logger.getLogger(Main.class.getName()).log(Level.SEVERE, "Playback allocated memory in {0} of {1} frames after warming up",
+                        new Object[] {allocationMeter.getAllocatingFrames(), allocationMeter.getMeasuredFrames()});
+        }
+    }
+    
+    // sends the frames we're about to export to exportRawTo... (a file is sized for playing through to the end of the grid)
+    private void startRawExport() {
+        double seconds = playTempoMap.xToSeconds(musicGrid.getGridWidth()) - playStartSeconds - playStartPos;
+        int expectedFrames = (int) Math.ceil(Math.max(seconds, 0) * exportFps);
+        try {
+            frameExporter.startRaw(RawFrameWriter.open(exportRawTo, cam.getWidth(), cam.getHeight(), exportFps, expectedFrames));
+        } catch (IOException ex) {
+            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, "Couldn't open " + exportRawTo + ", exporting pngs instead", ex);
+        }
+    }
+    private void stopRawExport() {
+        RawFrameWriter writer = frameExporter.stopRaw();
+        if (writer == null)
+            return;
+        try {
+            writer.close();
+        } catch (IOException ex) {
             Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
         }
-        createTracksFromMIDI();
+        System.out.println(writer.getReport());
     }
     
-    // creates the tracks and notes from a midi file...
-    private void createTracksFromMIDI() {
+    // works out the measures, tempos, and track colors and styles for a midi file...
+    private ProjectCache createProjectFromMIDI(int qShift) {
+        ProjectCache newProject = new ProjectCache();
+        newProject.qShift = qShift;
+        newProject.settings = getProjectSettings();
+        newProject.ppq = midiFile.getPPQ();
         // first let's set up our music grid...
         // what's our time sig?
         int timeSigTop = midiFile.getTimeSigTop();
@@ -292,53 +555,110 @@ public class Main extends SimpleApplication {
         // multiply by reciprocal...
         float measures = midiFile.getSizeInW() * ((float)timeSigBottom / (float)timeSigTop);
         System.out.println("Measures = " + measures + " = " + midiFile.getSizeInW() + " * (" + timeSigTop + " / " + timeSigBottom + ")");
-        // create the measures...
-        musicGrid.deleteMeasures(lastState, lastTempoCreated, selector, myTracks);
         for (float d = 0f; d < measures; d += 1f) {
-            musicGrid.addMeasure(0, timeSigTop, timeSigBottom, defaultSmallestUnit, myTracks, selector, true);
+            Measure newMeasure = new Measure();
+            newMeasure.timeSigTop = timeSigTop;
+            newMeasure.timeSigBottom = timeSigBottom;
+            newMeasure.smallestUnit = defaultSmallestUnit;
+            newProject.measures.add(newMeasure);
         }
-        musicGrid.createGrid();
         
-        // add the tempos...
+        // the tempos...
         for (int h = 0; h < midiFile.getMyTempos().size(); h++) {
-            float tempoPos = (midiFile.getMyTempos().get(h).pos / midiFile.getPPQ()) * musicGrid.getWidthPerWholeNote() * 0.25f;
-            int tempoVal = Math.round(midiFile.getMyTempos().get(h).tempo);
-            musicGrid.createTempoControl(tempoVal, tempoPos, false);
+            newProject.addTempo(midiFile.getMyTempos().get(h).pos, Math.round(midiFile.getMyTempos().get(h).tempo), false);
         }
         
         float clock = 0f; // round and round it goes... used to cycle through colors below
         for (int i = midiFile.getMyTracks().size()-1; i >= 0; i--) {
-            if (midiFile.getMyTracks().get(i).notes.isEmpty()) {
+            NoteTable midiNotes = midiFile.getMyTracks().get(i).noteTable;
+            if (midiNotes.isEmpty()) {
                 continue; // continue to the next iteration... this track is useless!
             }
-            clock += 0.371f;
-            if (clock > 1f)
-                clock -= 1f;
-            Color myColor = Color.getHSBColor(clock, 0.85f, 0.9f);
-            ColorRGBA trackColor = new ColorRGBA(myColor.getRed()/255f, myColor.getGreen()/255f, myColor.getBlue()/255f, myColor.getAlpha()/255f);
-            NoteStyle newStyle = myNoteStyles.DEFAULT;
-            if (i % 3 == 1)
-                newStyle = myNoteStyles.DIAMOND;
-            if (i % 3 == 2)
-                newStyle = myNoteStyles.ROUNDEND;
-            Track newTrack = new Track(assetManager, midiSynth, 0, 0, musicGrid, trackColor, 0, newStyle, useGradients);
+            clock = nextTrackClock(clock);
+            newProject.addTrack(getTrackColor(clock), getTrackStyle(i), useGradients, midiNotes);
+        }
+        return newProject;
+    }
+    
+    // the colors and styles the tracks cycle through...
+    private float nextTrackClock(float clock) {
+        clock += 0.371f;
+        if (clock > 1f)
+            clock -= 1f;
+        return clock;
+    }
+    private ColorRGBA getTrackColor(float clock) {
+        Color myColor = Color.getHSBColor(clock, 0.85f, 0.9f);
+        return new ColorRGBA(myColor.getRed()/255f, myColor.getGreen()/255f, myColor.getBlue()/255f, myColor.getAlpha()/255f);
+    }
+    private NoteStyle getTrackStyle(int trackIndex) {
+        if (trackIndex % 3 == 1)
+            return myNoteStyles.DIAMOND;
+        if (trackIndex % 3 == 2)
+            return myNoteStyles.ROUNDEND;
+        return myNoteStyles.DEFAULT;
+    }
+    
+    // a fingerprint of everything that decides what createProjectFromMIDI builds, other than the midi file...
+    // saved in the project cache, so the cache gets built again if any of it changes
+    private int getProjectSettings() {
+        int hash = 17;
+        hash = 31*hash + defaultSmallestUnit;
+        hash = 31*hash + (useGradients ? 1 : 0);
+        hash = 31*hash + MIDITrack.DEFAULT_PAIRING_POLICY;
+        // (the first few tracks' worth of the color and style cycle)
+        float clock = 0f;
+        for (int i = 0; i < 16; i++) {
+            clock = nextTrackClock(clock);
+            ColorRGBA color = getTrackColor(clock);
+            NoteStyle style = getTrackStyle(i);
+            float[] values = {color.r, color.g, color.b, color.a, style.curve, style.curveWidth, style.curveHeight, style.borderWidth};
+            for (int v = 0; v < values.length; v++) {
+                hash = 31*hash + Float.floatToIntBits(values[v]);
+            }
+            hash = 31*hash + (style.proportionalSide ? 1 : 0);
+            hash = 31*hash + (style.connectingLines ? 1 : 0);
+        }
+        return hash;
+    }
+    
+    // creates the measures, tempos, tracks and notes from the project...
+    private void createTracksFromProject() {
+        // create the measures...
+        musicGrid.deleteMeasures(lastState, lastTempoCreated, selector, myTracks);
+        for (int i = 0; i < project.measures.size(); i++) {
+            Measure measure = project.measures.get(i);
+            musicGrid.addMeasure(musicGrid.getMeasureNum(), measure.timeSigTop, measure.timeSigBottom, measure.smallestUnit, myTracks, selector, true);
+        }
+        musicGrid.createGrid();
+        
+        // add the tempos...
+        for (int h = 0; h < project.tempos.size(); h++) {
+            float tempoPos = (project.tempos.get(h).pos / project.ppq) * musicGrid.getWidthPerWholeNote() * 0.25f;
+            musicGrid.createTempoControl(project.tempos.get(h).tempo, tempoPos, project.tempos.get(h).connected);
+        }
+        
+        for (int i = 0; i < project.tracks.size(); i++) {
+            ProjectCache.CachedTrack cachedTrack = project.tracks.get(i);
+            NoteTable midiNotes = cachedTrack.notes;
+            // the track changes its color's alpha, so give it a copy and keep the project's as it was
+            Track newTrack = new Track(assetManager, midiSynth, 0, 0, musicGrid, cachedTrack.color.clone(), 0, cachedTrack.style, cachedTrack.useGradient);
+            newTrack.setBatched(batchNotes);
             
             // for loop to add all the notes in the given track...
-            for (int j = 0; j < midiFile.getMyTracks().get(i).notes.size(); j++) {
+            Vector3f notePos = new Vector3f(); // reused, addNote only reads it
+            for (int j = 0; j < midiNotes.size(); j++) {
                 // calculate note's length and position
                 // here, we multiply by 0.25 because ppq is ticks per quarter note...
-                float noteLength = (midiFile.getMyTracks().get(i).notes.get(j).duration / midiFile.getPPQ()) * 0.25f;
-                float notePosX = (midiFile.getMyTracks().get(i).notes.get(j).startPos / midiFile.getPPQ()) * musicGrid.getWidthPerWholeNote() * 0.25f;
+                float noteLength = ((float) midiNotes.getDuration(j) / project.ppq) * 0.25f;
+                float notePosX = ((float) midiNotes.getStart(j) / project.ppq) * musicGrid.getWidthPerWholeNote() * 0.25f;
                 // here we subtract 21 from the note value, because midi note values start at 21; we want 21 to be shifted to 0...
-                float notePosY = ((midiFile.getMyTracks().get(i).notes.get(j).value - 21) * musicGrid.getLineHeight());
-                Vector3f notePos = new Vector3f(notePosX, notePosY, 0f);
-                int mChannel = midiFile.getMyTracks().get(i).notes.get(j).channel;
-                int mProgram = midiFile.getMyTracks().get(i).notes.get(j).program;
-                int velocity = midiFile.getMyTracks().get(i).notes.get(j).velocity;
-                newTrack.addNote(noteLength, noteHeight, notePos, mChannel, mProgram, velocity);
+                float notePosY = ((midiNotes.getKey(j) - 21) * musicGrid.getLineHeight());
+                notePos.set(notePosX, notePosY, 0f);
+                newTrack.addNote(noteLength, noteHeight, notePos, midiNotes.getChannel(j), midiNotes.getProgram(j), midiNotes.getVelocity(j));
             }
             
-            newTrack.showConnectingLines(newStyle.connectingLines);
+            newTrack.showConnectingLines(cachedTrack.style.connectingLines);
             
             myTracks.add(newTrack);
             rootNode.attachChild(newTrack);              
@@ -592,28 +912,9 @@ public class Main extends SimpleApplication {
                 if (isPressed) {
                     // if we're not playing, play!
                     if (currentState == EditState.NORMAL) {
-                        lastTempo = playTempo;
-                        playCurrentX = musicGrid.getCursorPos().x;
-                        // reset position
-                        playLine = new Line(playBottomPos, playTopPos);
-                        playLine.setLineWidth(playLineWidth);
-                        playGeo.setMesh(playLine);
-                        playTime = playStartPos;
-                        playGeo.setLocalTranslation(playCurrentX, 0, 0);
-                        if (playLineToggle)
-                            rootNode.attachChild(playGeo);
-                        if (ctrlPressed)
-                            currentState = EditState.PLAYING_SCREENSHOT;
-                        else {
-                            currentState = EditState.PLAYING;
-                        }
+                        startPlaying(ctrlPressed);
                     } else if (currentState == EditState.PLAYING || currentState == EditState.PLAYING_SCREENSHOT) { // otherwise stop playing
-                        currentState = EditState.NORMAL;
-                        rootNode.detachChild(playGeo);
-                        for (int i = 0; i < myTracks.size(); i++) {
-                            myTracks.get(i).resetAllNotes(); // this will also stop all midi notes
-                            myTracks.get(i).stopAllNotes(animateSize);
-                        }
+                        stopPlaying();
                     }
                 }
             }
@@ -773,61 +1074,61 @@ public class Main extends SimpleApplication {
         musicGrid.updateMeasureLabelPos(cam, measureLabelToggle);
         musicGrid.updateTempoLabelPos(cam, gridToggle);
             
-        // move our ghost cursor...
+        // move our ghost cursor... (not while playing, where it isn't used and isn't free)
         Vector2f mouse2d = inputManager.getCursorPosition();
-        Vector3f current3d = cam.getWorldCoordinates(new Vector2f(mouse2d.x, mouse2d.y), 0f).clone();
+        Vector3f current3d = cursor3d;
+        if (currentState != EditState.PLAYING && currentState != EditState.PLAYING_SCREENSHOT)
+            cam.getWorldCoordinates(mouse2d, 0f, current3d);
         
         // is the mouse button is pressed, pan the camera based on the mouse's movement
         // (that is, the difference between its last location and its current location)
         if (currentState == EditState.PLAYING) {
-            // find what tempo we should be playing at...
-            playTempo = musicGrid.getClosestTempo(playGeo.getLocalTranslation().x, playTempo);
-            if (playTempo != lastTempo) {
-                lastTempo = playTempo;
-                playTime = 0f;
-                playCurrentX = playGeo.getLocalTranslation().x;
-            }
-            playTime += tpf;
-            // calculate line location based on playTime...
-            // we divide by 240 because bpm is divided 60 (60 s in a minute) and
-            // widthPerWholeNote is divided by 4 to get width per quarter note... 60*4 = 240
-            float newXPos = playCurrentX + ((playTempo*playTime*musicGrid.getWidthPerWholeNote()) / 240f);
+            playTime += headless ? (1.0 / exportFps) : tpf; // (headless frames take no real time, so each is one step)
+            // the tempo map knows where the line should be after playing this long...
+            float newXPos = (float) playTempoMap.secondsToX(playStartSeconds + playTime);
             playGeo.setLocalTranslation(newXPos, playGeo.getLocalTranslation().y, playGeo.getLocalTranslation().z);
-            cam.setLocation(new Vector3f(playGeo.getLocalTranslation().x, cam.getLocation().y, cam.getLocation().z));
+            cam.setLocation(camLocation.set(playGeo.getLocalTranslation().x, cam.getLocation().y, cam.getLocation().z));
             // go through our tracks and update notes...
             for (int i = 0; i < myTracks.size(); i++) {
                 myTracks.get(i).playNotes(newXPos, animateSize);
             }
+            // playing headless (to check allocations) stops at the end of the grid, or after -frames COUNT frames
+            if (headless) {
+                playFrame++;
+                if (newXPos > musicGrid.getGridWidth() || (exportFrameCount >= 0 && playFrame >= exportFrameCount)) {
+                    stopPlaying();
+                    stop();
+                }
+            }
         }
         if (currentState == EditState.PLAYING_SCREENSHOT) {
             // similar to above, but now we play at a certain speed and take screenshots on each frame...
             // we can then string together the screenshots with ffmpeg for a video that is certain to be perfect 60 fps
-            // find what tempo we should be playing at...
-            playTempo = musicGrid.getClosestTempo(playGeo.getLocalTranslation().x, playTempo);
-            if (playTempo != lastTempo) {
-                lastTempo = playTempo;
-                playTime = 0f;
-                playCurrentX = playGeo.getLocalTranslation().x;
-            }
-            playTime += 1f / 60f; // 1/60th of a second for 60 fps
-            screenShot.takeScreenshot();
-            // calculate line location based on playTime...
-            // we divide by 240 because bpm is divided 60 (60 s in a minute) and
-            // widthPerWholeNote is divided by 4 to get width per quarter note... 60*4 = 240
-            float newXPos = playCurrentX + ((playTempo*playTime*musicGrid.getWidthPerWholeNote()) / 240f);
+            if (renderInSoftware)
+                softwareCaptureNext = true; // (drawn in simpleRender, once the scene is up to date)
+            else
+                frameExporter.captureFrame();
+            // count frames rather than adding up 1/60ths, so we never drift...
+            playFrame++;
+            playTime = playStartPos + ((double) playFrame / exportFps); // (1/60th of a second a frame at 60 fps)
+            float newXPos = (float) playTempoMap.secondsToX(playStartSeconds + playTime);
             playGeo.setLocalTranslation(newXPos, playGeo.getLocalTranslation().y, playGeo.getLocalTranslation().z);
-            cam.setLocation(new Vector3f(playGeo.getLocalTranslation().x, cam.getLocation().y, cam.getLocation().z));
+            cam.setLocation(camLocation.set(playGeo.getLocalTranslation().x, cam.getLocation().y, cam.getLocation().z));
             // go through our tracks and update notes...
             for (int i = 0; i < myTracks.size(); i++) {
                 myTracks.get(i).playNotes(newXPos, animateSize);
             }
         }
         else if (currentState == EditState.NORMAL) {            
-            // use collision detection to find out what the mouse is hovering over...
-            CollisionResults results = new CollisionResults();
-            Vector3f dir = cam.getWorldCoordinates(new Vector2f(mouse2d.x, mouse2d.y), 1f).subtractLocal(current3d).normalizeLocal();
-            Ray ray = new Ray(current3d, dir);
-            rootNode.collideWith(ray, results);
+            // find out what the mouse is hovering over... notes come from the tracks' note indexes,
+            // and only the selector and the controls near the mouse are tested with a ray
+            CollisionResults results = hoverResults;
+            results.clear();
+            cam.getWorldCoordinates(mouse2d, 1f, hoverDir).subtractLocal(current3d).normalizeLocal();
+            hoverRay.setOrigin(current3d);
+            hoverRay.setDirection(hoverDir);
+            selector.collideWith(hoverRay, results);
+            musicGrid.collideControls(hoverRay, current3d.x, results);
             if (noteHovered != null) {
                 noteHovered.resetBorder();
                 noteHovered.resetColor();
@@ -848,41 +1149,40 @@ public class Main extends SimpleApplication {
             // reset the selector
             selector.resetBorder();
             selectionHovered = false;
-            // change material for all resulting notes...
-            for (int i = 0; i < results.size(); i++) {
-                if (results.getCollision(i).getGeometry().getParent() instanceof Note && noteHovered == null) {
-                    Note currentNote = (Note) results.getCollision(i).getGeometry().getParent();
-                    if (!currentNote.getIsTrackNode()) {
-                        // is the mouse 10 pixels away from the right edge?
-                        Vector3f noteRightEdge = new Vector3f(currentNote.getLocalTranslation().x + currentNote.getWidth()/2f, currentNote.getLocalTranslation().y, currentNote.getLocalTranslation().z);
-                        Vector3f noteLeftEdge = new Vector3f(currentNote.getLocalTranslation().x - currentNote.getWidth()/2f, currentNote.getLocalTranslation().y, currentNote.getLocalTranslation().z);
-                        Vector3f noteRight2d = cam.getScreenCoordinates(noteRightEdge);
-                        Vector3f noteLeft2d = cam.getScreenCoordinates(noteLeftEdge);
-                        if (noteRight2d.x - mouse2d.x < pixelsToSide) {
-                            currentNote.setBorderColor(ColorRGBA.Yellow, 1f);
-                            currentNote.setBorderSize(0.25f);
-                            currentNoteEditState = NoteEditState.RESIZE_R;
-                        } else if (mouse2d.x - noteLeft2d.x < pixelsToSide) {
-                            currentNote.setBorderColor(ColorRGBA.Yellow, 1f);
-                            currentNote.setBorderSize(0.25f);
-                            currentNoteEditState = NoteEditState.RESIZE_L;
-                        } else {
-                            currentNote.setBorderColor(ColorRGBA.White, 1f);
-                            currentNote.setBorderSize(0.25f);
-                            // set the velControl to visible if necessary...
-                            if (shiftPressed && !currentNote.isTrackNode()) {                                
-                                controlText.setText(Integer.toString(currentNote.getVel()));
-                                controlText.setLocalTranslation((cam.getWidth()/2f)-(controlText.getLineWidth()/2f), controlText.getLineHeight(), 0);
-                                if (!velControlToggle && !currentNote.hasChild(currentNote.getVelControl())) {
-                                    currentNote.attachChild(currentNote.getVelControl());
-                                }
-                            }
-                            currentNoteEditState = NoteEditState.DRAG;
+            // the note under the mouse...
+            Note currentNote = Track.getNoteAtPoint(myTracks, current3d.x, current3d.y, hoverNotes);
+            if (currentNote != null && !currentNote.getIsTrackNode()) {
+                // is the mouse a few pixels away from the left or right edge?
+                float pixelWidth = (cam.getFrustumRight() - cam.getFrustumLeft()) / cam.getWidth(); // world units per pixel
+                float noteX = currentNote.getWorldTranslation().x;
+                float noteRightEdge = noteX + currentNote.getWidth()/2f;
+                float noteLeftEdge = noteX - currentNote.getWidth()/2f;
+                if ((noteRightEdge - current3d.x) / pixelWidth < pixelsToSide) {
+                    currentNote.setBorderColor(ColorRGBA.Yellow, 1f);
+                    currentNote.setBorderSize(0.25f);
+                    currentNoteEditState = NoteEditState.RESIZE_R;
+                } else if ((current3d.x - noteLeftEdge) / pixelWidth < pixelsToSide) {
+                    currentNote.setBorderColor(ColorRGBA.Yellow, 1f);
+                    currentNote.setBorderSize(0.25f);
+                    currentNoteEditState = NoteEditState.RESIZE_L;
+                } else {
+                    currentNote.setBorderColor(ColorRGBA.White, 1f);
+                    currentNote.setBorderSize(0.25f);
+                    // set the velControl to visible if necessary...
+                    if (shiftPressed && !currentNote.isTrackNode()) {                                
+                        controlText.setText(Integer.toString(currentNote.getVel()));
+                        controlText.setLocalTranslation((cam.getWidth()/2f)-(controlText.getLineWidth()/2f), controlText.getLineHeight(), 0);
+                        if (!velControlToggle && !currentNote.hasChild(currentNote.getVelControl())) {
+                            currentNote.attachChild(currentNote.getVelControl());
                         }
-                        noteHovered = currentNote;
-                        break;                        
                     }
-                } else if (results.getCollision(i).getGeometry().getParent() instanceof Selector) {
+                    currentNoteEditState = NoteEditState.DRAG;
+                }
+                noteHovered = currentNote;
+            }
+            // ...and the selector and controls the ray hit
+            for (int i = 0; i < results.size(); i++) {
+                if (results.getCollision(i).getGeometry().getParent() instanceof Selector) {
                     selectionHovered = true;
                     selector.hoverBorder();
                 } else if (results.getCollision(i).getGeometry().getParent() instanceof MeasureControl) {
@@ -972,16 +1272,78 @@ public class Main extends SimpleApplication {
             }
             lastMousePos = mouse2d.clone();
         }
+        
+        // the camera may have moved, so the notes around it may have changed
+        if (windowNotes)
+            noteWindow.update(cam, myTracks);
+    }
+
+    // the whole frame (our update, the scene's controls, rendering) goes through here,
+    // so this is where we can see how much a frame allocates
+    @Override
+    public void update() {
+        boolean measure = measureAllocations && currentState == EditState.PLAYING;
+        if (measure)
+            allocationMeter.beginFrame();
+        super.update();
+        if (measure && currentState == EditState.PLAYING) // (not the frame we stopped in, which prints the report)
+            allocationMeter.endFrame();
     }
 
     @Override
     public void simpleRender(RenderManager rm) {
+        if (softwareCaptureNext) {
+            softwareCaptureNext = false;
+            renderSoftwareFrame(playFrame - 1);
+        }
+    }
+    
+    // draws frame number frame of the export and hands it to the frame exporter
+    private void renderSoftwareFrame(int frame) {
+        softwareRenderer.setSize(cam.getWidth(), cam.getHeight());
+        softwareRenderer.clear();
+        drawExportFrame(softwareRenderer, frame);
+        frameExporter.submitFrame(softwareRenderer.render(), softwareRenderer.getWidth(), softwareRenderer.getHeight());
     }
     
+    // adds what frame number frame of the export shows (not the editing stuff) to renderer...
+    // the notes come from exportState, not from playing, so this doesn't depend on the frames before it,
+    // and it only reads the scene, so the export workers can all call it at once
+    private void drawExportFrame(SoftwareRenderer renderer, int frame) {
+        float x = exportState.getPlayX(frame);
+        float y = cam.getLocation().y;
+        renderer.setView(x + cam.getFrustumLeft(), x + cam.getFrustumRight(), y + cam.getFrustumBottom(), y + cam.getFrustumTop());
+        renderer.setBackground(viewPort.getBackgroundColor());
+        if (rootNode.hasChild(musicGrid))
+            musicGrid.addLinesTo(renderer);
+        for (int i = 0; i < myTracks.size(); i++) {
+            renderer.addTrack(myTracks.get(i), exportState, frame);
+        }
+        if (playLineToggle)
+            renderer.addLine(x + playBottomPos.x, playBottomPos.y, x + playTopPos.x, playTopPos.y, playZ, playLineWidth, playLineColor, false);
+    }
+    private ChunkedExporter.FrameDrawer exportDrawer = new ChunkedExporter.FrameDrawer() {
+        public void drawFrame(SoftwareRenderer renderer, int frame) {
+            drawExportFrame(renderer, frame);
+        }
+    };
+    
     @Override
     public void destroy() {
+        frameExporter.shutdown(); // (writes any frames still waiting)
+        if (softwareRenderer != null)
+            softwareRenderer.shutdown();
         midiSynth.stopAllNotes();
         midiSynth.closeSynth();
         super.destroy();
+        destroyed.countDown();
+    }
+    
+    // waits for the app to shut down (after a headless run, say)
+    void waitUntilDestroyed() throws InterruptedException {
+        destroyed.await();
+    }
+    FrameAllocationMeter getAllocationMeter() {
+        return allocationMeter;
     }
 }
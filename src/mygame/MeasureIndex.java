@@ -0,0 +1,128 @@
+/*
+ * Keeps a running total of where each measure starts, so the music grid
+ * doesn't have to add up every measure before it whenever it needs a position...
+ */
+package mygame;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class MeasureIndex {
+
+    private List<Measure> measures; // the music grid's measure list, not a copy
+    // startWholeNotes[i] = whole notes before measure i, and startWholeNotes[measures.size()] = the whole grid
+    // (positions are kept in whole notes so they stay right if the grid is stretched)
+    private double[] startWholeNotes = new double[16];
+    private int validUpTo = 0; // entries 0..validUpTo are up to date
+
+    public MeasureIndex(List<Measure> measures) {
+        this.measures = measures;
+    }
+
+    // call whenever measures are added, removed or changed at or after this index...
+    public void invalidateFrom(int measureIndex) {
+        validUpTo = Math.max(Math.min(validUpTo, measureIndex), 0);
+    }
+
+    public void invalidate() {
+        validUpTo = 0;
+    }
+
+    // brings the running totals up to date, starting from the first one that changed
+    private void update() {
+        int n = measures.size();
+        if (validUpTo >= n)
+            return;
+        if (startWholeNotes.length < n+1)
+            startWholeNotes = Arrays.copyOf(startWholeNotes, Math.max(n+1, startWholeNotes.length*2));
+        for (int i = validUpTo; i < n; i++) {
+            startWholeNotes[i+1] = startWholeNotes[i] + measures.get(i).getWholeNoteValue();
+        }
+        validUpTo = n;
+    }
+
+    // whole notes before the given measure (measure = size gives the whole grid)
+    public double getStartWholeNotes(int measure) {
+        update();
+        measure = Math.max(0, Math.min(measure, measures.size()));
+        return startWholeNotes[measure];
+    }
+
+    public float getStartX(int measure, float widthPerWholeNote) {
+        return (float) (getStartWholeNotes(measure) * widthPerWholeNote);
+    }
+
+    public float getTotalWidth(float widthPerWholeNote) {
+        return getStartX(measures.size(), widthPerWholeNote);
+    }
+
+    // MIDI ticks before the given measure... (4 quarter notes in a whole note)
+    public long getStartTicks(int measure, int ppq) {
+        return Math.round(getStartWholeNotes(measure) * 4 * ppq);
+    }
+
+    // which measure is position x in? (clamped to the first and last measure, -1 if there are none)
+    public int getMeasureAtX(float x, float widthPerWholeNote) {
+        return getMeasureAt(x / (double) widthPerWholeNote);
+    }
+
+    public int getMeasureAtTicks(long ticks, int ppq) {
+        return getMeasureAt(ticks / (4.0 * ppq));
+    }
+
+    // returns the x position of the grid line closest to x, worked out from the measure's
+    // time signature and smallest unit rather than by looking through the lines themselves
+    // (these are the same lines createGrid draws: one every smallest unit, plus the end line)
+    public float getClosestLineX(float x, float widthPerWholeNote) {
+        int m = getMeasureAtX(x, widthPerWholeNote);
+        if (m < 0)
+            return 0f;
+        float start = getStartX(m, widthPerWholeNote);
+        float end = getStartX(m+1, widthPerWholeNote);
+        if (x <= start)
+            return start;
+        if (x >= end)
+            return end;
+        Measure measure = measures.get(m);
+        int numLines = Math.max((measure.smallestUnit * measure.timeSigTop) / measure.timeSigBottom, 1);
+        float unitWidth = widthPerWholeNote / measure.smallestUnit;
+        // which two lines is x between?
+        int j = (int) ((x - start) / unitWidth);
+        float lower, upper;
+        if (j >= numLines-1) { // past the last subdivision, so the next line is the next measure
+            lower = start + (numLines-1) * unitWidth;
+            upper = end;
+        } else {
+            lower = start + j * unitWidth;
+            upper = start + (j+1) * unitWidth;
+        }
+        // ties go to the later line, same as the old line-by-line search
+        if (x - lower < upper - x)
+            return lower;
+        else
+            return upper;
+    }
+
+    private int getMeasureAt(double wholeNotes) {
+        update();
+        int n = measures.size();
+        if (n == 0)
+            return -1;
+        // find the last measure starting at or before wholeNotes
+        int low = 0;
+        int high = n;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (startWholeNotes[mid] <= wholeNotes)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return Math.max(0, Math.min(low - 1, n - 1));
+    }
+
+}
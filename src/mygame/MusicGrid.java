@@ -5,20 +5,23 @@
 package mygame;
 
 import com.jme3.asset.AssetManager;
+import com.jme3.collision.CollisionResults;
 import com.jme3.font.BitmapFont;
 import com.jme3.font.BitmapText;
 import com.jme3.material.Material;
 import com.jme3.material.RenderState;
 import com.jme3.math.ColorRGBA;
+import com.jme3.math.Ray;
 import com.jme3.math.Vector3f;
 import com.jme3.renderer.Camera;
 import com.jme3.renderer.queue.RenderQueue;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Node;
-import com.jme3.scene.shape.Line;
 import com.jme3.scene.shape.Quad;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  *
@@ -28,17 +31,34 @@ public class MusicGrid extends Node {
     
     // VARS ///////////////////////////////////////////////////////
     private List<Measure> measures = new ArrayList<Measure>();
+    private MeasureIndex measureIndex = new MeasureIndex(measures); // where each measure starts
     private List<MeasureControl> measureControls = new ArrayList<MeasureControl>(); // buttons for each measure
     private List<TempoControl> tempoControls = new ArrayList<TempoControl>(); // our tempos...
     private float measureControlSpacing = 0f;
-    private List<Line> vLines = new ArrayList<Line>(); // vertical measure lines
-    private Node hLinesNode = new Node();
     private float lineWidth;
     private AssetManager assetManager;
     private BitmapFont guiFont;
     private Node guiNode;
     private Geometry deleteGeo;
     private float tempoControlSize, tempoControlHeight;
+    private Vector3f labelScreenPos = new Vector3f(); // scratch vectors for placing labels every frame
+    private Vector3f labelEnd = new Vector3f();
+    private Vector3f labelEndScreenPos = new Vector3f();
+    
+    // grid line colors... every line of a color shares one material from the render cache
+    private static final ColorRGBA MEASURE_LINE_COLOR = new ColorRGBA(0.1f, 0.4f, 0.7f, 1f);
+    private static final ColorRGBA HALF_LINE_COLOR = new ColorRGBA(0.6f, 0.2f, 0.2f, 1f);
+    private static final ColorRGBA UNIT_LINE_COLOR = new ColorRGBA(0.3f, 0.3f, 0.3f, 1f);
+    private Map<ColorRGBA, Material> lineMats = new HashMap<ColorRGBA, Material>();
+    private Material hLineMat;
+    
+    // grid lines... each kind of line is one mesh, rather than a geometry for every line
+    private static final int MEASURE_LINES = 0, HALF_LINES = 1, BEAT_LINES = 2, UNIT_LINES = 3;
+    private GridLines[] vLines = new GridLines[4];
+    private GridLines hLines;
+    private List<int[]> measureLineMarks = new ArrayList<int[]>(); // how many lines of each kind come before measure i (and the end line)
+    private int linesValidUpTo = 0; // the lines of measures before this one are up to date
+    private boolean printStats = false; // print how many lines each createGrid made and how long it took?
     
     // our cursor
     private ColorRGBA cursorColor = ColorRGBA.Gray;
@@ -83,6 +103,14 @@ public class MusicGrid extends Node {
         cursor.setMaterial(cursorMat);        
         cursor.setQueueBucket(RenderQueue.Bucket.Transparent);
         
+        // our grid line meshes
+        vLines[MEASURE_LINES] = new GridLines("measureLines", getLineMaterial(MEASURE_LINE_COLOR), lineWidth * 3f, 0f);
+        vLines[HALF_LINES] = new GridLines("halfLines", getLineMaterial(HALF_LINE_COLOR), lineWidth * 2f, 0f);
+        vLines[BEAT_LINES] = new GridLines("beatLines", getLineMaterial(null), lineWidth, 0f); // (unshaded's default white)
+        vLines[UNIT_LINES] = new GridLines("unitLines", getLineMaterial(UNIT_LINE_COLOR), lineWidth, 0f);
+        hLineMat = RenderCache.get(assetManager).acquireMaterial(RenderCache.SHAPE_SHADER, true, "Color", new ColorRGBA(0.3f, 0.3f, 0.3f, 0.3f));
+        hLines = new GridLines("hLines", hLineMat, lineWidth, -1f);
+        
         // create our first measure control... we should always have one more than we have measures...
         MeasureControl measureControl = new MeasureControl(assetManager, guiFont, widthPerWholeNote * 0.05f, (height/TOTALNOTES)*3, false);
         measureControls.add(measureControl);
@@ -101,13 +129,8 @@ public class MusicGrid extends Node {
     public void updateDeleteGeo(int position, int measuresToDelete) {
         if (hasChild(deleteGeo))
             detachChild(deleteGeo);
-        float posX = getPositionOnGrid(0, position+1, 0f).x;
-        float width = measures.get(position).getWholeNoteValue() * widthPerWholeNote;
-        for (int i = 1; i < measuresToDelete; i++) {
-            if (position+i < measures.size()) {
-                width += measures.get(position+i).getWholeNoteValue() * widthPerWholeNote;
-            }
-        }
+        float posX = getMeasureStartX(position);
+        float width = getMeasureStartX(Math.min(position+measuresToDelete, measures.size())) - posX;
         Quad q = new Quad(width, height);
         deleteGeo = new Geometry("deleteGeo", q);
         Material deleteMat = new Material(assetManager, "Common/MatDefs/Misc/Unshaded.j3md");
@@ -133,6 +156,8 @@ public class MusicGrid extends Node {
             measures.add(position, newMeasure);
         else
             measures.add(newMeasure);
+        measureIndex.invalidateFrom(position);
+        linesValidUpTo = Math.min(linesValidUpTo, position);
         
         // create some measure controls to go with it...
         measureControls.get(measureControls.size()-1).showDeleteButton(true);
@@ -174,6 +199,8 @@ public class MusicGrid extends Node {
                 measureControls.remove(position);
             }
         }
+        measureIndex.invalidateFrom(position);
+        linesValidUpTo = Math.min(linesValidUpTo, position);
         
         List<Note> notesToDelete = new ArrayList<Note>();
         
@@ -216,12 +243,8 @@ public class MusicGrid extends Node {
     // given a note value, measure value, and location within the measure, return world coordinates
     // this assumes grid bottom left is at 0, 0
     public Vector3f getPositionOnGrid(int noteValue, int measureNum, float wholeNotes) {
-        float x = 0;
-        // add up the widths of the preceding measures...
-        for (int i = 1; i < measureNum; i++) {
-            float measureWidth = widthPerWholeNote * (measures.get(i-1).getWholeNoteValue());
-            x += measureWidth;
-        }
+        // the widths of the preceding measures are already added up for us...
+        float x = getMeasureStartX(measureNum-1);
         x += wholeNotes * widthPerWholeNote;
         float y = noteValue * (height / TOTALNOTES);        
         Vector3f newPosition = new Vector3f(x, y, 0);        
@@ -233,24 +256,39 @@ public class MusicGrid extends Node {
         for (int i = 0; i < measures.size(); i++) {
             measures.get(i).smallestUnit = smallestUnit;
         }
+        linesValidUpTo = 0;
         // and recreate our grid...
         createGrid();
     }
     
     // create our lines and add them to the node
+    // (only the lines of measures that changed since last time are made again)
     public void createGrid() {
+        long startTime = System.nanoTime();
         // first get rid of any nodes we already have...
         detachAllChildren();
-        vLines.clear();
+        
+        // throw away the lines from the first changed measure on... everything before it is still right
+        int from = Math.min(linesValidUpTo, measures.size());
+        if (from < measureLineMarks.size()) {
+            int[] marks = measureLineMarks.get(from);
+            for (int c = 0; c < vLines.length; c++) {
+                vLines[c].truncate(marks[c]);
+            }
+            while (measureLineMarks.size() > from) {
+                measureLineMarks.remove(measureLineMarks.size()-1);
+            }
+        } else {
+            from = measureLineMarks.size();
+        }
         
         // create lines
         // we'll create our vertical lines first
         // to do this, we have to cycle through our measure list...
         // we also need to keep track of our current xPos so that we can increment as we go...
-        float currentPos = 0f; // we start at 0
-        float measureControlPosX;
-        for (int i = 0; i < measures.size(); i++) {
-            measureControlPosX = currentPos; // this will be used to position our measure control buttons
+        float currentPos = getMeasureStartX(from);
+        for (int i = from; i < measures.size(); i++) {
+            markLines();
             
             // our measureSizeGoal is where our measure SHOULD end...
             float measureSizeGoal = currentPos + (widthPerWholeNote * ((float)measures.get(i).timeSigTop / (float)measures.get(i).timeSigBottom));
@@ -262,17 +300,7 @@ public class MusicGrid extends Node {
             int numLines = (measures.get(i).smallestUnit * measures.get(i).timeSigTop) / measures.get(i).timeSigBottom;
             if (numLines < 2) {
                 // in this case, we only draw a start line; nothing more...
-                Vector3f pos1 = new Vector3f(measureControlPosX, 0, 0);
-                Vector3f pos2 = new Vector3f(measureControlPosX, height, 0);
-                Line newLine = new Line(pos1, pos2);
-                Geometry newGeo = new Geometry("vLine", newLine);
-                newLine.setLineWidth(lineWidth * 3f);
-                Material mat = new Material(assetManager, "Common/MatDefs/Misc/Unshaded.j3md");
-                mat.setColor("Color", new ColorRGBA(0.1f, 0.4f, 0.7f, 1f));
-                newGeo.setMaterial(mat);
-                // add it to both our node and our list
-                attachChild(newGeo);
-                vLines.add(newLine);                
+                vLines[MEASURE_LINES].add(currentPos, 0, currentPos, height);
                 // increment our currentPos...
                 currentPos += (widthPerWholeNote * ((float)measures.get(i).timeSigTop / (float)measures.get(i).timeSigBottom));
             }
@@ -280,38 +308,20 @@ public class MusicGrid extends Node {
                 int measureSize = numLines;
                 // now we must create each of these lines and position them appropriately
                 for (int j = 0; j < numLines; j++) {
-                    // first we must figure out the begin and end positions of our new line...
-                    float xPos = currentPos;
-                    Vector3f pos1 = new Vector3f(xPos, 0, 0);
-                    Vector3f pos2 = new Vector3f(xPos, height, 0);
-                    Line newLine = new Line(pos1, pos2);
-                    Geometry newGeo = new Geometry("vLine", newLine);
-                    Material mat = new Material(assetManager, "Common/MatDefs/Misc/Unshaded.j3md");
-
+                    int kind;
                     // start vLine
-                    if (j == 0) {
-                        newLine.setLineWidth(lineWidth * 3f);
-                        mat.setColor("Color", new ColorRGBA(0.1f, 0.4f, 0.7f, 1f));
-                    }
+                    if (j == 0)
+                        kind = MEASURE_LINES;
                     // half beat
-                    else if ((measureSize/2 & 1) == 0 && j == measureSize/2 && (measures.get(i).timeSigTop & 1) == 0) {
-                        newLine.setLineWidth(lineWidth * 2f);
-                        mat.setColor("Color", new ColorRGBA(0.6f, 0.2f, 0.2f, 1f));
-                    }
+                    else if ((measureSize/2 & 1) == 0 && j == measureSize/2 && (measures.get(i).timeSigTop & 1) == 0)
+                        kind = HALF_LINES;
                     // beat line
-                    else if ((j & (measureSize/measures.get(i).timeSigTop)-1) == 0) {
-                        newLine.setLineWidth(lineWidth);
-                    }
+                    else if ((j & (measureSize/measures.get(i).timeSigTop)-1) == 0)
+                        kind = BEAT_LINES;
                     // all others (regular)
-                    else {
-                        newLine.setLineWidth(lineWidth);
-                        mat.setColor("Color", new ColorRGBA(0.3f, 0.3f, 0.3f, 1f));
-                    }
-
-                    newGeo.setMaterial(mat);
-                    // add it to both our node and our list
-                    attachChild(newGeo);
-                    vLines.add(newLine);
+                    else
+                        kind = UNIT_LINES;
+                    vLines[kind].add(currentPos, 0, currentPos, height);
 
                     // increment our currentPos...
                     currentPos += (widthPerWholeNote / measures.get(i).smallestUnit);
@@ -322,72 +332,100 @@ public class MusicGrid extends Node {
                         currentPos = measureSizeGoal;
                 }
             }
-            
-            // we must remember to add our measure controls!!
+        }
+        // add our end line...
+        markLines();
+        vLines[MEASURE_LINES].add(currentPos, 0, currentPos, height);
+        linesValidUpTo = measures.size();
+        for (int c = 0; c < vLines.length; c++) {
+            vLines[c].update();
+            if (vLines[c].size() > 0)
+                attachChild(vLines[c].getGeometry());
+        }
+        // end vertical line creation
+        
+        // we must remember to add our measure controls!!
+        for (int i = 0; i < measures.size(); i++) {
             // position gui controls first...
             measures.get(i).index = i;
-            measureControls.get(i).setLocalTranslation(measureControlPosX, height + measureControlSpacing, 1f);
+            measureControls.get(i).setLocalTranslation(getMeasureStartX(i), height + measureControlSpacing, 1f);
             attachChild(measureControls.get(i));
             // always set the corresponding measure when redrawing the grid...
             measureControls.get(i).setMeasure(measures.get(i));
-            
-            // finally, add our cursors...
-            attachChild(cursor);
         }
-        // add our end line...
-        Line endLine = new Line(new Vector3f(currentPos, 0, 0), new Vector3f(currentPos, height, 0));
-        Geometry geo = new Geometry("vLine", endLine);
-        Material mat = new Material(assetManager, "Common/MatDefs/Misc/Unshaded.j3md");
-        endLine.setLineWidth(lineWidth * 3f);
-        mat.setColor("Color", new ColorRGBA(0.1f, 0.4f, 0.7f, 1f));
-        geo.setMaterial(mat);
-        attachChild(geo);
-        vLines.add(endLine);
+        // finally, add our cursor...
+        if (measures.size() > 0)
+            attachChild(cursor);
         // and our last measurecontrol for the endline...
-        measureControlPosX = currentPos;
-        measureControls.get(measures.size()).setLocalTranslation(measureControlPosX, height + measureControlSpacing, 1f);
+        measureControls.get(measures.size()).setLocalTranslation(currentPos, height + measureControlSpacing, 1f);
         attachChild(measureControls.get(measures.size()));
         // these controls have no corresponding measure...
         measureControls.get(measures.size()).setMeasure(null);
-        // end vertical line creation
         
         drawHLines();
-        attachChild(hLinesNode);
         
         // attach our tempoControls...
         for (int i = 0; i < tempoControls.size(); i++) {
             attachChild(tempoControls.get(i));
         }
+        
+        if (!printStats)
+            return;
+        int meshes = (hLines.size() > 0) ? 1 : 0;
+        for (int c = 0; c < vLines.length; c++) {
+            if (vLines[c].size() > 0)
+                meshes++;
+        }
+        System.out.println("Grid: " + getLineCount() + " lines in " + meshes + " meshes (" + getQuantity() + " spatials in the grid), "
+                + "made lines for measures " + from + " to " + measures.size() + " in " + ((System.nanoTime() - startTime) / 1000000f) + " ms");
+    }
+    
+    // remembers how many lines of each kind there are before the measure we're about to draw
+    private void markLines() {
+        int[] marks = new int[vLines.length];
+        for (int c = 0; c < vLines.length; c++) {
+            marks[c] = vLines[c].size();
+        }
+        measureLineMarks.add(marks);
+    }
+    
+    // how many grid lines we draw, altogether
+    public int getLineCount() {
+        int lines = hLines.size();
+        for (int c = 0; c < vLines.length; c++) {
+            lines += vLines[c].size();
+        }
+        return lines;
+    }
+    
+    // the material for vertical lines of this color (null for white)
+    private Material getLineMaterial(ColorRGBA color) {
+        Material mat = lineMats.get(color);
+        if (mat == null) {
+            mat = RenderCache.get(assetManager).acquireUnshaded(color, false);
+            lineMats.put(color, mat);
+        }
+        return mat;
     }
     
     // draws the horizontal lines for our music grid...
     public void drawHLines() {
         // remove all hLines currently stored...
-        hLinesNode.detachAllChildren();
-        
-        // horizontal lines now...
-        float gridWidth = getGridWidth();
-        // define colors we'll use...
-        ColorRGBA lineColor = new ColorRGBA(0.3f, 0.3f, 0.3f, 0.3f);
+        hLines.truncate(0);
+        if (hasChild(hLines.getGeometry()))
+            detachChild(hLines.getGeometry());
         
         // now we draw lines for each chord...
         if (measures.size() > 0) { // we only have to draw these if we actually have measures...
+            // horizontal lines now...
             float startX = 0;
-            float endX = gridWidth;
+            float endX = getGridWidth();
             for (int j = 0; j < TOTALNOTES+1; j++) {
                 float yPos = j * (height/TOTALNOTES);
-                Vector3f pos1 = new Vector3f(startX, yPos, -1);
-                Vector3f pos2 = new Vector3f(endX, yPos, -1);
-                Line newLine = new Line(pos1, pos2);
-                //newLine.setLineWidth(lineWidth);
-                Geometry newGeo = new Geometry("hLine", newLine);
-                Material mat2 = new Material(assetManager, "Materials/ShapeShader.j3md");
-                newLine.setLineWidth(lineWidth);
-                mat2.setColor("Color", lineColor);
-                mat2.getAdditionalRenderState().setBlendMode(RenderState.BlendMode.Alpha);                
-                newGeo.setMaterial(mat2);
-                hLinesNode.attachChild(newGeo);
+                hLines.add(startX, yPos, endX, yPos);
             }
+            hLines.update();
+            attachChild(hLines.getGeometry());
         }
     }
     
@@ -433,12 +471,17 @@ public class MusicGrid extends Node {
         }
     }
     
+    // builds a tempo map from our tempo controls, for turning grid positions into seconds and back...
+    public TempoMap createTempoMap(int ppq, float defaultTempo) {
+        return TempoMap.fromTempoControls(tempoControls, widthPerWholeNote, ppq, defaultTempo);
+    }
+    
     // sets the tempo label positions...
     public void updateTempoLabelPos(Camera cam, boolean toggle) {
         for (int i = 0; i < tempoControls.size(); i++) {
             BitmapText text = tempoControls.get(i).getTempoText();
             if (toggle) {
-                Vector3f screenPos = cam.getScreenCoordinates(tempoControls.get(i).getLocalTranslation());
+                Vector3f screenPos = cam.getScreenCoordinates(tempoControls.get(i).getLocalTranslation(), labelScreenPos);
                 if (!guiNode.hasChild(text)) {
                     guiNode.attachChild(text);
                 }
@@ -542,12 +585,13 @@ public class MusicGrid extends Node {
                 // along with our measure controls, we add our measure labels...
                 if (!guiNode.hasChild(measureControls.get(i).getMeasureLabel()))
                     guiNode.attachChild(measureControls.get(i).getMeasureLabel());
-                Vector3f screenPos = cam.getScreenCoordinates(measureControls.get(i).getLocalTranslation());
+                Vector3f screenPos = cam.getScreenCoordinates(measureControls.get(i).getLocalTranslation(), labelScreenPos);
                 if (screenPos.y > cam.getHeight())
                     screenPos.setY(cam.getHeight());
                 if (screenPos.x < 0) {
-                    if (cam.getScreenCoordinates(new Vector3f(measureControls.get(i).getLocalTranslation().x+getMeasureWidth(i), measureControls.get(i).getLocalTranslation().y, measureControls.get(i).getLocalTranslation().z)).x 
-                            >= 0) {
+                    Vector3f measurePos = measureControls.get(i).getLocalTranslation();
+                    labelEnd.set(measurePos.x+getMeasureWidth(i), measurePos.y, measurePos.z);
+                    if (cam.getScreenCoordinates(labelEnd, labelEndScreenPos).x >= 0) {
                         screenPos.setX(0);
                     }
                 }
@@ -570,18 +614,10 @@ public class MusicGrid extends Node {
     private float getLastPossibleXPosition(float noteWidth) {
         float newX;
         
-        float currentWidth = 0;
+        // which measure would the note have to start in to fit before the end?
         int currentMeasure = measures.size()-1;
-        for (int i = measures.size()-1; i >= 0; i--) {
-            // will the noteWidth fit in this measure?
-            float measureWidth = (widthPerWholeNote / measures.get(i).smallestUnit)
-                    * ((measures.get(i).smallestUnit / measures.get(i).timeSigBottom) * measures.get(i).timeSigTop);
-            currentWidth += measureWidth;
-            if (noteWidth <= currentWidth) {
-                currentMeasure = i;
-                break;
-            }
-        }
+        if (noteWidth <= getGridWidth())
+            currentMeasure = getMeasureAtX(getGridWidth() - noteWidth);
         
         // now, what's the last smallestUnit position noteWidth will fit at?
         double unitsPerNote = Math.ceil(noteWidth / (widthPerWholeNote / measures.get(currentMeasure).smallestUnit));
@@ -622,7 +658,7 @@ public class MusicGrid extends Node {
     }
     
     // returns the closest grid x position from a given x position...
-    // this assumes vLines are in order... which they should be...
+    // (the measure index works out where the nearest line is, no need to look at the lines themselves)
     public float getClosestGridX(float currentX, float noteWidth) {
         float newX;
         float possibleNewX = 0f;
@@ -633,20 +669,7 @@ public class MusicGrid extends Node {
                 // last possible X pos...
                 possibleNewX = getLastPossibleXPosition(noteWidth);
             } else {
-                for (int i = 0; i < vLines.size(); i++) {
-                    if (currentX >= vLines.get(i).getEnd().x) {
-                        if (i+1 < vLines.size()) {
-                            if (currentX < vLines.get(i+1).getEnd().x) { // current X is between these two lines... which one is closer?
-                                if (Math.abs(currentX - vLines.get(i).getEnd().x) < Math.abs(currentX - vLines.get(i+1).getEnd().x)) {
-                                    // this means currentX is closer to the first line...
-                                    possibleNewX = vLines.get(i).getEnd().x;
-                                } else {
-                                    possibleNewX = vLines.get(i+1).getEnd().x;
-                                }
-                            }
-                        }
-                    }
-                }
+                possibleNewX = measureIndex.getClosestLineX(currentX, widthPerWholeNote);
             }
         }
         
@@ -660,11 +683,31 @@ public class MusicGrid extends Node {
     
     // calculate the grid width...
     public float getGridWidth() {
-        float gridWidth = 0f;
-        for (int i = 0; i < measures.size(); i++) {
-            gridWidth += widthPerWholeNote * measures.get(i).getWholeNoteValue();
-        }        
-        return gridWidth;
+        return measureIndex.getTotalWidth(widthPerWholeNote);
+    }
+    
+    // tests a ray against just the controls that could be near x (measure controls either side of it,
+    // and the tempo controls), rather than the whole grid
+    public int collideControls(Ray ray, float x, CollisionResults results) {
+        int hits = 0;
+        int m = getMeasureAtX(x);
+        for (int i = Math.max(m-1, 0); i <= Math.min(m+2, measureControls.size()-1); i++) {
+            hits += measureControls.get(i).collideWith(ray, results);
+        }
+        for (int i = 0; i < tempoControls.size(); i++) {
+            hits += tempoControls.get(i).collideWith(ray, results);
+        }
+        return hits;
+    }
+    
+    // returns the index of the measure at x (clamped to the first / last measure)
+    public int getMeasureAtX(float x) {
+        return measureIndex.getMeasureAtX(x, widthPerWholeNote);
+    }
+    
+    // returns the x position where a measure starts (measure = measures.size() gives the end of the grid)
+    public float getMeasureStartX(int measure) {
+        return measureIndex.getStartX(measure, widthPerWholeNote);
     }
     
     // resets all deletion stages in our measure controls...
@@ -693,12 +736,25 @@ public class MusicGrid extends Node {
     public void setHeight(float newHeight) {
         height = newHeight;
     }
+    public void setPrintStats(boolean printStats) {
+        this.printStats = printStats;
+    }
+    // every set of grid lines (the vertical ones, then the horizontal ones)
+    public void addLinesTo(SoftwareRenderer renderer) {
+        for (int c = 0; c < vLines.length; c++) {
+            renderer.addGridLines(vLines[c]);
+        }
+        renderer.addGridLines(hLines);
+    }
     public int getMeasureNum() {
         return measures.size();
     }
     public List<Measure> getMeasures() {
         return measures;
     }
+    public MeasureIndex getMeasureIndex() {
+        return measureIndex;
+    }
     public List<MeasureControl> getMeasureControls() {
         return measureControls;
     }
@@ -5,12 +5,15 @@
 package mygame;
 
 import com.jme3.asset.AssetManager;
+import com.jme3.material.MatParam;
 import com.jme3.material.Material;
 import com.jme3.material.RenderState;
 import com.jme3.math.ColorRGBA;
+import com.jme3.math.Vector3f;
 import com.jme3.renderer.queue.RenderQueue;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
 import com.jme3.scene.shape.Quad;
 
 /**
@@ -20,9 +23,14 @@ import com.jme3.scene.shape.Quad;
 public class Note extends Node implements Comparable<Note> {
     
     private AssetManager assetManager;
-    private Material mat;
+    private RenderCache renderCache;
+    private Material mat; // shared with other notes that look the same, so don't change it! (see updateMaterial)
+    private boolean privateMat = false; // true once we have a material all to ourselves (phantoms)
+    private Quad quad;
     private Geometry geo;
     private Geometry controlGeo; // geometry for control bar
+    private Quad controlQuad;
+    private Material controlMat;
     private ControlInteger velocityControl;
     private float controlWidth = 0.5f;
     private float controlMaxHeight, controlHeight;
@@ -48,6 +56,26 @@ public class Note extends Node implements Comparable<Note> {
     private boolean useGradient;
     private float startPosX = 0f;
     
+    // batching... if our track draws its notes as one mesh, this is our slot in it
+    private int batchSlot = -1;
+    private boolean batchDirty = false;
+    
+    // windowing... is our track showing us right now? (see Track.setWindow)
+    private boolean inWindow = true;
+    private int windowStamp = 0;
+    
+    // what our material shows right now...
+    private ColorRGBA matColor, matBorderColor;
+    private float matBorderSize, matCurve, matRadiusW, matRadiusH, matWidth, matHeight;
+    
+    // scratch colors, so changing how we look while playing doesn't make new ones every time
+    // (the render cache copies colors into its materials, so handing it these is fine)
+    private ColorRGBA brightColor = new ColorRGBA();
+    private ColorRGBA hollowColor = new ColorRGBA(0f, 0f, 0f, 0f);
+    private ColorRGBA hollowBorderColor = new ColorRGBA();
+    private ColorRGBA phantomColor = new ColorRGBA(); // what a phantom's private material points at
+    private ColorRGBA phantomBorderColor = new ColorRGBA();
+    
     // for copying a note, rather than copying a reference...
     public Note cloneNote() {
         Note newNote = new Note(assetManager, myTrack, height, width, curve, radiusH, radiusW, borderSize,
@@ -83,21 +111,19 @@ public class Note extends Node implements Comparable<Note> {
         velocityControl = new ControlInteger(velocity, 1, 127);
         
         // init note quad / geometry
-        Quad quad = new Quad(width, height);
-        geo = new Geometry("NoteQuad", quad);
+        renderCache = RenderCache.get(assetManager);
+        quad = renderCache.acquireQuad(width, height);
+        geo = new ZSortedGeometry("NoteQuad", quad);
         geo.center();        
-        mat = new Material(this.assetManager, "Materials/ShapeShader.j3md");
-        mat.setColor("BorderColor", myBorderColor);
-        mat.setColor("Color", myColor);
-        mat.setFloat("BorderSize", borderSize);
-        mat.setFloat("Curve", curve);
-        mat.setFloat("RadiusW", radiusW * width);
-        mat.setFloat("RadiusH", radiusH * height);
-        mat.setFloat("Height", this.height);
-        mat.setFloat("Width", this.width); 
-        mat.setBoolean("Gradient", useGradient);
-        mat.getAdditionalRenderState().setBlendMode(RenderState.BlendMode.Alpha);
-        geo.setMaterial(mat);        
+        matColor = myColor;
+        matBorderColor = myBorderColor;
+        matBorderSize = borderSize;
+        matCurve = curve;
+        matRadiusW = radiusW * width;
+        matRadiusH = radiusH * height;
+        matHeight = this.height;
+        matWidth = this.width;
+        updateMaterial();
         geo.setQueueBucket(RenderQueue.Bucket.Transparent);
         attachChild(geo);
         
@@ -107,12 +133,10 @@ public class Note extends Node implements Comparable<Note> {
             controlColor.a = 0.6f;
             controlMaxHeight = height*1.9f;
             controlHeight = height*0.1f + (controlMaxHeight*(velocityControl.getValue()/127f));
-            Quad q = new Quad(controlWidth, controlHeight);
-            controlGeo = new Geometry("ControlQuad", q);
+            controlQuad = renderCache.acquireQuad(controlWidth, controlHeight);
+            controlGeo = new ZSortedGeometry("ControlQuad", controlQuad);
             controlGeo.center();        
-            Material controlMat = new Material(this.assetManager, "Common/MatDefs/Misc/Unshaded.j3md");
-            controlMat.setColor("Color", controlColor);       
-            controlMat.getAdditionalRenderState().setBlendMode(RenderState.BlendMode.Alpha);
+            controlMat = renderCache.acquireUnshaded(controlColor, true);
             controlGeo.setMaterial(controlMat);        
             controlGeo.setQueueBucket(RenderQueue.Bucket.Transparent);
             controlGeo.setLocalTranslation(-(width/2f), -(controlHeight/2f), 0.5f);
@@ -132,13 +156,15 @@ public class Note extends Node implements Comparable<Note> {
         controlColor.a = 0.6f;
         controlMaxHeight = height*1.9f;
         controlHeight = height*0.1f + (controlMaxHeight*(velocityControl.getValue()/127f));
-        Quad q = new Quad(controlWidth, controlHeight);
-        controlGeo = new Geometry("ControlQuad", q);
+        Quad oldQuad = controlQuad;
+        Material oldMat = controlMat;
+        controlQuad = renderCache.acquireQuad(controlWidth, controlHeight);
+        controlGeo = new ZSortedGeometry("ControlQuad", controlQuad);
         controlGeo.center();        
-        Material controlMat = new Material(this.assetManager, "Common/MatDefs/Misc/Unshaded.j3md");
-        controlMat.setColor("Color", controlColor);       
-        controlMat.getAdditionalRenderState().setBlendMode(RenderState.BlendMode.Alpha);
+        controlMat = renderCache.acquireUnshaded(controlColor, true);
         controlGeo.setMaterial(controlMat);        
+        renderCache.release(oldQuad);
+        renderCache.release(oldMat);
         controlGeo.setQueueBucket(RenderQueue.Bucket.Transparent);
         controlGeo.setLocalTranslation(-(width/2f), -(controlHeight/2f), 0.5f);
         if (vis) // what is 'vis' I see?
@@ -149,6 +175,61 @@ public class Note extends Node implements Comparable<Note> {
     public void deleteMe() {
         myTrack.deleteNote(this);
         removeFromParent(); // <- not sure if necessary, but whatever
+        // give back what we borrowed from the render cache
+        if (!privateMat)
+            renderCache.release(mat);
+        renderCache.release(quad);
+        renderCache.release(controlQuad);
+        renderCache.release(controlMat);
+        mat = null;
+        quad = null;
+        controlQuad = null;
+        controlMat = null;
+    }
+    
+    // swaps our material for one that shows the current mat* values...
+    // materials are shared, so we swap rather than change the one we have
+    private void updateMaterial() {
+        if (amPhantom) {
+            // phantoms change every frame while they fade, so they get a material of their own
+            if (!privateMat) {
+                renderCache.release(mat);
+                mat = new Material(assetManager, RenderCache.SHAPE_SHADER);
+                mat.getAdditionalRenderState().setBlendMode(RenderState.BlendMode.Alpha);
+                privateMat = true;
+            }
+            mat.setColor("Color", phantomColor.set(matColor));
+            mat.setColor("BorderColor", phantomBorderColor.set(matBorderColor));
+            setFloat("BorderSize", matBorderSize);
+            setFloat("Curve", matCurve);
+            setFloat("RadiusW", matRadiusW);
+            setFloat("RadiusH", matRadiusH);
+            setFloat("Height", matHeight);
+            setFloat("Width", matWidth);
+            mat.setBoolean("Gradient", useGradient);
+        } else {
+            Material oldMat = mat;
+            mat = renderCache.acquireShapeMaterial(matColor, matBorderColor, matBorderSize, matCurve, matRadiusW, matRadiusH,
+                    matWidth, matHeight, useGradient);
+            renderCache.release(oldMat);
+        }
+        geo.setMaterial(mat);
+        markBatchDirty();
+    }
+    
+    // sets a float on our private material, unless it already has that value
+    // (setFloat boxes the value every time, and most of these don't change while we fade)
+    private void setFloat(String name, float value) {
+        MatParam param = mat.getParam(name);
+        if (param == null || ((Float) param.getValue()).floatValue() != value)
+            mat.setFloat(name, value);
+    }
+    
+    // swaps our quad for a shared one of the given size
+    private void updateQuad(float quadWidth, float quadHeight) {
+        Quad oldQuad = quad;
+        quad = renderCache.acquireQuad(quadWidth, quadHeight);
+        renderCache.release(oldQuad);
     }
     
     // sets new colors
@@ -156,69 +237,119 @@ public class Note extends Node implements Comparable<Note> {
         myColor = newColor.clone();
         defaultColor = newColor.clone();
         myBorderColor = newBorderColor.clone();
-        mat.setColor("Color", myColor);
-        mat.setColor("BorderColor", myBorderColor);
+        matColor = myColor;
+        matBorderColor = myBorderColor;
+        updateMaterial();
+    }
+    
+    // a phantom fading out... called every frame, so only the colors are touched, in place
+    public void setFade(float alpha) {
+        myColor.a = alpha;
+        defaultColor.set(myColor);
+        myBorderColor.set(0f, 0f, 0f, 0f);
+        matColor = myColor;
+        matBorderColor = myBorderColor;
+        if (privateMat) {
+            mat.setColor("Color", phantomColor.set(matColor));
+            mat.setColor("BorderColor", phantomBorderColor.set(matBorderColor));
+        } else {
+            updateMaterial();
+        }
     }
     
     public void resetBorder() {
         if (selected)
-            mat.setColor("BorderColor", mySelectedBorderColor);
+            matBorderColor = mySelectedBorderColor;
         else
-            mat.setColor("BorderColor", myBorderColor);
-        mat.setFloat("BorderSize", borderSize);
+            matBorderColor = myBorderColor;
+        matBorderSize = borderSize;
+        updateMaterial();
     }
     public void resetColor() {
         //myColor = defaultColor.clone();
-        mat.setColor("Color", myColor);
+        matColor = myColor;
+        updateMaterial();
     }
     public void setBorderColor(ColorRGBA newColor, float alpha) {
         newColor.a = alpha;
-        mat.setColor("BorderColor", newColor); 
+        matBorderColor = newColor;
+        updateMaterial();
     }
     public void setBorderSize(float newSize) {
-        mat.setFloat("BorderSize", newSize);
+        matBorderSize = newSize;
+        updateMaterial();
     }
     public void brighten(float scale) {
-        ColorRGBA newColor = myColor.mult(scale);
-        mat.setColor("Color", newColor);            
+        matColor = brightColor.set(myColor).multLocal(scale);
+        updateMaterial();
     }
     public void hollow() {
-        ColorRGBA newColor = ColorRGBA.Black;
-        newColor.a = 0f;
-        mat.setColor("Color", newColor);
-        ColorRGBA newColor2 = myBorderColor.clone();
-        newColor2.a = 0.3f;
-        mat.setColor("BorderColor", newColor2);
+        matColor = hollowColor; // (this used to set the alpha of ColorRGBA.Black itself!)
+        hollowBorderColor.set(myBorderColor);
+        hollowBorderColor.a = 0.3f;
+        matBorderColor = hollowBorderColor;
+        updateMaterial();
     }
     // a phantom note is used for animation while playing...
+    // (phantoms come from a pool, and go back to it when they've faded)
     public void createPhantomNote(float playPosX) {
-        phantom = cloneNote();
-        phantom.amPhantom = true;
-        PhantomNoteControl control = new PhantomNoteControl(phantom, getWidth(), playPosX);
-        phantom.addControl(control);
+        phantom = PhantomPool.get().acquire(this, playPosX);
         attachChild(phantom);
     }
+    // makes a pooled phantom look like another note, reusing our geometry
+    public void copyLookFrom(Note source) {
+        myTrack = source.myTrack;
+        curve = source.curve;
+        radiusH = source.radiusH;
+        radiusW = source.radiusW;
+        borderSize = source.borderSize;
+        myStyle = source.myStyle;
+        useGradient = source.useGradient;
+        myColor.set(source.myColor);
+        defaultColor.set(myColor);
+        myBorderColor.set(source.myBorderColor);
+        if (width != source.width || height != source.height) {
+            width = source.width;
+            height = source.height;
+            updateQuad(width, height);
+            geo.setMesh(quad);
+            geo.setLocalTranslation(-(width/2f), -(height/2f), 0f);
+        }
+        matColor = myColor;
+        matBorderColor = myBorderColor;
+        matBorderSize = borderSize;
+        matCurve = curve;
+        matRadiusW = radiusW * width;
+        matRadiusH = radiusH * height;
+        matWidth = width;
+        matHeight = height;
+        setMute(source.isMuted); // (this updates the material too)
+        setLocalTranslation(0f, 0f, 0f);
+        setLocalScale(1f);
+    }
     // change the width of a note... also requires us to recalc the material...
     public void setWidth(float newWidth) {
         this.width = newWidth;
         this.detachChild(geo);
-        Quad quad = new Quad(newWidth, height); 
-        geo = new Geometry("NoteQuad", quad);
+        updateQuad(newWidth, height);
+        geo = new ZSortedGeometry("NoteQuad", quad);
         geo.center();
         if (myStyle.proportionalSide) {
-            mat.setFloat("RadiusW", height/2f); // to make it equal with height radius
-            mat.setFloat("RadiusH", radiusH * height);
+            matRadiusW = height/2f; // to make it equal with height radius
+            matRadiusH = radiusH * height;
         } else {
-            mat.setFloat("RadiusW", width * myStyle.curveHeight); // to make it equal with height radius
-            mat.setFloat("RadiusH", height * myStyle.curveWidth);
+            matRadiusW = width * myStyle.curveHeight; // to make it equal with height radius
+            matRadiusH = height * myStyle.curveWidth;
         }
-        mat.setFloat("Height", this.height);
-        mat.setFloat("Width", this.width);
-        geo.setMaterial(mat);
+        matHeight = this.height;
+        matWidth = this.width;
+        updateMaterial();
         geo.setQueueBucket(RenderQueue.Bucket.Transparent);
+        hideIfBatched();
         this.attachChild(geo);        
         // update location of controlgeo...
         controlGeo.setLocalTranslation(-(width/2f), -(controlHeight/2f), 0.5f);
+        spanChanged();
     }
     
     public void setMuteControl(boolean mute) {
@@ -226,7 +357,8 @@ public class Note extends Node implements Comparable<Note> {
         isMuted = mute;
         if (isMuted) {
             myColor.a = 0f;
-            mat.setColor("Color", myColor);
+            matColor = myColor;
+            updateMaterial();
         } else {
             myColor = defaultColor.clone();
             resetBorder();
@@ -239,29 +371,31 @@ public class Note extends Node implements Comparable<Note> {
             detachChild(geo);
             float newWidth = width*1.3f;
             float newHeight = height*1.3f;
-            Quad quad = new Quad(newWidth, newHeight);
-            geo = new Geometry("NoteQuad", quad);
+            updateQuad(newWidth, newHeight);
+            geo = new ZSortedGeometry("NoteQuad", quad);
             geo.center();
-            mat.setFloat("RadiusW", newHeight/2f); // to make it equal with height radius
-            mat.setFloat("RadiusH", radiusH * newHeight);
-            mat.setFloat("Height", newHeight);
-            mat.setFloat("Width", newWidth);
-            geo.setMaterial(mat);
+            matRadiusW = newHeight/2f; // to make it equal with height radius
+            matRadiusH = radiusH * newHeight;
+            matHeight = newHeight;
+            matWidth = newWidth;
+            updateMaterial();
             geo.setQueueBucket(RenderQueue.Bucket.Transparent);
+            hideIfBatched();
             attachChild(geo);
         } else {
             detachChild(geo);
             float newWidth = width;
             float newHeight = height;
-            Quad quad = new Quad(newWidth, newHeight);
-            geo = new Geometry("NoteQuad", quad);
+            updateQuad(newWidth, newHeight);
+            geo = new ZSortedGeometry("NoteQuad", quad);
             geo.center();
-            mat.setFloat("RadiusW", newHeight/2f); // to make it equal with height radius
-            mat.setFloat("RadiusH", radiusH * newHeight);
-            mat.setFloat("Height", newHeight);
-            mat.setFloat("Width", newWidth);
-            geo.setMaterial(mat);
+            matRadiusW = newHeight/2f; // to make it equal with height radius
+            matRadiusH = radiusH * newHeight;
+            matHeight = newHeight;
+            matWidth = newWidth;
+            updateMaterial();
             geo.setQueueBucket(RenderQueue.Bucket.Transparent);
+            hideIfBatched();
             attachChild(geo);
             resetBorder();
             resetColor();
@@ -272,13 +406,18 @@ public class Note extends Node implements Comparable<Note> {
     public void updatePlayPos(float playPosX) {
         if (amPhantom) {
             this.playPosX = playPosX;
-        } else if (phantom != null) {
+        } else if (hasPhantom()) {
             phantom.updatePlayPos(playPosX);
         }
     }
     public float getPlayPos() {
         return playPosX;
     }
+    // is our phantom still around? (it removes itself once it has faded, and may
+    // then be reused by another note)
+    public boolean hasPhantom() {
+        return phantom != null && phantom.getParent() == this;
+    }
     public Material getMaterial() {
         return mat;
     }
@@ -342,10 +481,10 @@ public class Note extends Node implements Comparable<Note> {
         resetColor();
         resetBorder();
         this.setLocalScale(1f);
-        if (phantom != null) {
-            if (hasChild(phantom))
-                detachChild(phantom);
-            phantom.deleteMe();
+        if (hasPhantom()) {
+            detachChild(phantom);
+            PhantomPool.get().release(phantom);
+            phantom = null;
         }
     }
     public boolean getIsTrackNode() {
@@ -363,12 +502,14 @@ public class Note extends Node implements Comparable<Note> {
             myColor.a = 0.5f;
             myBorderColor.a = 1f;
         }
-        mat.setColor("Color", myColor);
-        mat.setColor("BorderColor", myBorderColor);
+        matColor = myColor;
+        matBorderColor = myBorderColor;
+        updateMaterial();
     }
     // tends to lower frame rate, so try not to use too much...
     public void setCurve(float newCurve) {
-        mat.setFloat("Curve", newCurve);
+        matCurve = newCurve;
+        updateMaterial();
     }
     public boolean isMuted() {
         return isMuted;
@@ -385,6 +526,16 @@ public class Note extends Node implements Comparable<Note> {
     public ColorRGBA getColor() {
         return myColor;
     }
+    public ColorRGBA getBorderColor() {
+        return myBorderColor;
+    }
+    // the border we have when we're not being played (see resetBorder)
+    public ColorRGBA getRestBorderColor() {
+        return selected ? mySelectedBorderColor : myBorderColor;
+    }
+    public float getBorderSize() {
+        return borderSize;
+    }
     public int getMidiChannel() {
         return midiChannel;
     }
@@ -392,6 +543,112 @@ public class Note extends Node implements Comparable<Note> {
         return midiProgram;
     }
     
+    // batching... when our track draws us as part of its mesh, our own quad is hidden
+    // (but kept, so picking still works) and any change is copied into the track's batch
+    public int getBatchSlot() {
+        return batchSlot;
+    }
+    public void setBatchSlot(int slot) {
+        batchSlot = slot;
+        hideIfBatched();
+    }
+    public boolean isInWindow() {
+        return inWindow;
+    }
+    public void setInWindow(boolean inWindow) {
+        this.inWindow = inWindow;
+    }
+    public int getWindowStamp() {
+        return windowStamp;
+    }
+    public void setWindowStamp(int stamp) {
+        windowStamp = stamp;
+    }
+    public boolean isBatchDirty() {
+        return batchDirty;
+    }
+    public void setBatchDirty(boolean dirty) {
+        batchDirty = dirty;
+    }
+    private void hideIfBatched() {
+        geo.setCullHint(batchSlot >= 0 ? Spatial.CullHint.Always : Spatial.CullHint.Inherit);
+    }
+    private void markBatchDirty() {
+        if (batchSlot >= 0 && myTrack != null && myTrack.getBatch() != null)
+            myTrack.getBatch().markDirty(this);
+    }
+    // copies how we look right now into our slot in the batch
+    public void writeToBatch(NoteBatchBuffer buffer) {
+        Vector3f pos = getLocalTranslation();
+        Vector3f scale = getLocalScale();
+        buffer.setRect(batchSlot, pos.x, pos.y, pos.z, matWidth, matHeight, scale.x, scale.y);
+        buffer.setShape(batchSlot, matRadiusW, matRadiusH, matBorderSize, matCurve, useGradient);
+        buffer.setColor(batchSlot, matColor.r, matColor.g, matColor.b, matColor.a);
+        buffer.setBorderColor(batchSlot, matBorderColor.r, matBorderColor.g, matBorderColor.b, matBorderColor.a);
+    }
+    
+    // draws us (and our phantom, on top) with the software renderer... x, y, z is where our parent is
+    public void drawTo(SoftwareRenderer renderer, float x, float y, float z) {
+        Vector3f pos = getLocalTranslation();
+        Vector3f scale = getLocalScale();
+        renderer.addShape(x + pos.x, y + pos.y, z + pos.z, matWidth, matHeight, scale.x, scale.y,
+                matRadiusW, matRadiusH, matBorderSize, matCurve, useGradient, matColor, matBorderColor);
+        if (hasPhantom()) {
+            // the phantom is a child of ours, so it moves and scales with us
+            Vector3f phantomPos = phantom.getLocalTranslation();
+            Vector3f phantomScale = phantom.getLocalScale();
+            renderer.addShape(x + pos.x + phantomPos.x * scale.x, y + pos.y + phantomPos.y * scale.y, z + pos.z + phantomPos.z * scale.z,
+                    phantom.matWidth, phantom.matHeight, scale.x * phantomScale.x, scale.y * phantomScale.y,
+                    phantom.matRadiusW, phantom.matRadiusH, phantom.matBorderSize, phantom.matCurve, phantom.useGradient,
+                    phantom.matColor, phantom.matBorderColor);
+        }
+    }
+    // the same, but looking the way a FrameState says we do (our own state isn't touched or used)
+    public void drawTo(SoftwareRenderer renderer, float x, float y, float z, FrameState.Look look) {
+        Vector3f pos = getLocalTranslation();
+        renderer.addShape(x + pos.x, y + pos.y, z + pos.z, matWidth, matHeight, look.scaleX, look.scaleY,
+                matRadiusW, matRadiusH, look.borderSize, matCurve, useGradient, look.color, look.borderColor);
+        if (look.phantom) {
+            // (a phantom is shaped the way copyLookFrom makes it)
+            renderer.addShape(x + pos.x, y + pos.y, z + pos.z, width, height, look.scaleX, look.scaleY * look.phantomScaleY,
+                    radiusW * width, radiusH * height, borderSize, curve, useGradient, look.phantomColor, look.phantomBorderColor);
+        }
+    }
+    
+    // moving or scaling the note has to reach the batch too...
+    @Override
+    public void setLocalTranslation(Vector3f localTranslation) {
+        super.setLocalTranslation(localTranslation);
+        markBatchDirty();
+        spanChanged();
+    }
+    @Override
+    public void setLocalTranslation(float x, float y, float z) {
+        super.setLocalTranslation(x, y, z);
+        markBatchDirty();
+        spanChanged();
+    }
+    // ...and moving or resizing has to reach our track's note index
+    private void spanChanged() {
+        if (myTrack != null && !amPhantom)
+            myTrack.updateNoteSpan(this);
+    }
+    @Override
+    public void setLocalScale(float localScale) {
+        super.setLocalScale(localScale);
+        markBatchDirty();
+    }
+    @Override
+    public void setLocalScale(float x, float y, float z) {
+        super.setLocalScale(x, y, z);
+        markBatchDirty();
+    }
+    @Override
+    public void setLocalScale(Vector3f localScale) {
+        super.setLocalScale(localScale);
+        markBatchDirty();
+    }
+    
     // for comparisons...
     @Override
     public int compareTo(Note othernote) {
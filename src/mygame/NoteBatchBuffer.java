@@ -0,0 +1,228 @@
+/*
+ * The vertex data for a whole track's notes, packed into plain float arrays...
+ * every note gets a slot of 4 vertices (a quad), and each vertex carries
+ * everything the shape shader used to get from the note's own material
+ * (see TrackBatch for the part that hands this to jME)
+ */
+package mygame;
+
+import java.util.Arrays;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class NoteBatchBuffer {
+
+    public static final int VERTS_PER_NOTE = 4;
+    public static final int INDICES_PER_NOTE = 6;
+    // floats per vertex for each attribute
+    public static final int POSITION_SIZE = 3; // x, y, z in the track
+    public static final int LOCAL_SIZE = 2; // x, y inside the note (0 to width, 0 to height)
+    public static final int SHAPE_SIZE = 4; // width, height, radiusW, radiusH
+    public static final int COLOR_SIZE = 4; // r, g, b, a
+    public static final int STYLE_SIZE = 3; // border size, curve, gradient (0 or 1)
+
+    private float[] positions;
+    private float[] locals;
+    private float[] shapes;
+    private float[] colors;
+    private float[] borderColors;
+    private float[] styles;
+    private int size = 0;
+    private boolean resized = true; // the arrays were replaced, so everything needs to be uploaded
+    private int dirtyFrom = Integer.MAX_VALUE; // range of slots changed since clearDirty()
+    private int dirtyTo = -1;
+
+    public NoteBatchBuffer() {
+        this(64);
+    }
+
+    public NoteBatchBuffer(int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    private void allocate(int capacity) {
+        int verts = capacity * VERTS_PER_NOTE;
+        if (positions == null) {
+            positions = new float[verts * POSITION_SIZE];
+            locals = new float[verts * LOCAL_SIZE];
+            shapes = new float[verts * SHAPE_SIZE];
+            colors = new float[verts * COLOR_SIZE];
+            borderColors = new float[verts * COLOR_SIZE];
+            styles = new float[verts * STYLE_SIZE];
+        } else {
+            positions = Arrays.copyOf(positions, verts * POSITION_SIZE);
+            locals = Arrays.copyOf(locals, verts * LOCAL_SIZE);
+            shapes = Arrays.copyOf(shapes, verts * SHAPE_SIZE);
+            colors = Arrays.copyOf(colors, verts * COLOR_SIZE);
+            borderColors = Arrays.copyOf(borderColors, verts * COLOR_SIZE);
+            styles = Arrays.copyOf(styles, verts * STYLE_SIZE);
+        }
+        resized = true;
+    }
+
+    // adds an empty (zero sized) note and returns its slot
+    public int add() {
+        if (size == getCapacity())
+            allocate(size * 2);
+        int slot = size++;
+        Arrays.fill(positions, slot * VERTS_PER_NOTE * POSITION_SIZE, size * VERTS_PER_NOTE * POSITION_SIZE, 0f);
+        Arrays.fill(locals, slot * VERTS_PER_NOTE * LOCAL_SIZE, size * VERTS_PER_NOTE * LOCAL_SIZE, 0f);
+        Arrays.fill(shapes, slot * VERTS_PER_NOTE * SHAPE_SIZE, size * VERTS_PER_NOTE * SHAPE_SIZE, 0f);
+        Arrays.fill(colors, slot * VERTS_PER_NOTE * COLOR_SIZE, size * VERTS_PER_NOTE * COLOR_SIZE, 0f);
+        Arrays.fill(borderColors, slot * VERTS_PER_NOTE * COLOR_SIZE, size * VERTS_PER_NOTE * COLOR_SIZE, 0f);
+        Arrays.fill(styles, slot * VERTS_PER_NOTE * STYLE_SIZE, size * VERTS_PER_NOTE * STYLE_SIZE, 0f);
+        markDirty(slot);
+        return slot;
+    }
+
+    // removes a note by moving the last note into its slot...
+    // returns the slot the moved note used to have, or -1 if nothing moved
+    public int remove(int slot) {
+        int last = size - 1;
+        if (slot != last) {
+            copySlot(positions, POSITION_SIZE, last, slot);
+            copySlot(locals, LOCAL_SIZE, last, slot);
+            copySlot(shapes, SHAPE_SIZE, last, slot);
+            copySlot(colors, COLOR_SIZE, last, slot);
+            copySlot(borderColors, COLOR_SIZE, last, slot);
+            copySlot(styles, STYLE_SIZE, last, slot);
+            markDirty(slot);
+        }
+        size--;
+        return (slot != last) ? last : -1;
+    }
+
+    private void copySlot(float[] array, int components, int from, int to) {
+        int length = VERTS_PER_NOTE * components;
+        System.arraycopy(array, from * length, array, to * length, length);
+    }
+
+    public void clear() {
+        size = 0;
+        resized = true;
+    }
+
+    // where the note is... its center, its size, and how much it's being scaled
+    // (notes scale around their center, same as the note's node did)
+    public void setRect(int slot, float centerX, float centerY, float z, float width, float height, float scaleX, float scaleY) {
+        float halfW = (width / 2f) * scaleX;
+        float halfH = (height / 2f) * scaleY;
+        // corners in the same order as jME's Quad: bottom left, bottom right, top right, top left
+        int p = slot * VERTS_PER_NOTE * POSITION_SIZE;
+        positions[p] = centerX - halfW; positions[p+1] = centerY - halfH; positions[p+2] = z;
+        positions[p+3] = centerX + halfW; positions[p+4] = centerY - halfH; positions[p+5] = z;
+        positions[p+6] = centerX + halfW; positions[p+7] = centerY + halfH; positions[p+8] = z;
+        positions[p+9] = centerX - halfW; positions[p+10] = centerY + halfH; positions[p+11] = z;
+        int l = slot * VERTS_PER_NOTE * LOCAL_SIZE;
+        locals[l] = 0f; locals[l+1] = 0f;
+        locals[l+2] = width; locals[l+3] = 0f;
+        locals[l+4] = width; locals[l+5] = height;
+        locals[l+6] = 0f; locals[l+7] = height;
+        int s = slot * VERTS_PER_NOTE * SHAPE_SIZE;
+        for (int v = 0; v < VERTS_PER_NOTE; v++) {
+            shapes[s + v*SHAPE_SIZE] = width;
+            shapes[s + v*SHAPE_SIZE + 1] = height;
+        }
+        markDirty(slot);
+    }
+
+    // the rounded corners and border...
+    public void setShape(int slot, float radiusW, float radiusH, float borderSize, float curve, boolean gradient) {
+        int s = slot * VERTS_PER_NOTE * SHAPE_SIZE;
+        int st = slot * VERTS_PER_NOTE * STYLE_SIZE;
+        for (int v = 0; v < VERTS_PER_NOTE; v++) {
+            shapes[s + v*SHAPE_SIZE + 2] = radiusW;
+            shapes[s + v*SHAPE_SIZE + 3] = radiusH;
+            styles[st + v*STYLE_SIZE] = borderSize;
+            styles[st + v*STYLE_SIZE + 1] = curve;
+            styles[st + v*STYLE_SIZE + 2] = gradient ? 1f : 0f;
+        }
+        markDirty(slot);
+    }
+
+    public void setColor(int slot, float r, float g, float b, float a) {
+        setSlotColor(colors, slot, r, g, b, a);
+    }
+
+    public void setBorderColor(int slot, float r, float g, float b, float a) {
+        setSlotColor(borderColors, slot, r, g, b, a);
+    }
+
+    private void setSlotColor(float[] array, int slot, float r, float g, float b, float a) {
+        int c = slot * VERTS_PER_NOTE * COLOR_SIZE;
+        for (int v = 0; v < VERTS_PER_NOTE; v++) {
+            array[c++] = r;
+            array[c++] = g;
+            array[c++] = b;
+            array[c++] = a;
+        }
+        markDirty(slot);
+    }
+
+    private void markDirty(int slot) {
+        dirtyFrom = Math.min(dirtyFrom, slot);
+        dirtyTo = Math.max(dirtyTo, slot);
+    }
+
+    // fills in the triangles for the first noteCount slots (two per quad, same winding as Quad)
+    public static void fillIndices(int[] indices, int noteCount) {
+        for (int i = 0; i < noteCount; i++) {
+            int v = i * VERTS_PER_NOTE;
+            int j = i * INDICES_PER_NOTE;
+            indices[j] = v;
+            indices[j+1] = v + 1;
+            indices[j+2] = v + 2;
+            indices[j+3] = v;
+            indices[j+4] = v + 2;
+            indices[j+5] = v + 3;
+        }
+    }
+
+    // done uploading... nothing is dirty anymore
+    public void clearDirty() {
+        resized = false;
+        dirtyFrom = Integer.MAX_VALUE;
+        dirtyTo = -1;
+    }
+
+    // gets and sets...
+    public int size() {
+        return size;
+    }
+    public int getCapacity() {
+        return positions.length / (VERTS_PER_NOTE * POSITION_SIZE);
+    }
+    public boolean isResized() {
+        return resized;
+    }
+    public boolean isDirty() {
+        return resized || dirtyTo >= dirtyFrom;
+    }
+    public int getDirtyFrom() {
+        return dirtyFrom;
+    }
+    public int getDirtyTo() {
+        return dirtyTo;
+    }
+    public float[] getPositions() {
+        return positions;
+    }
+    public float[] getLocals() {
+        return locals;
+    }
+    public float[] getShapes() {
+        return shapes;
+    }
+    public float[] getColors() {
+        return colors;
+    }
+    public float[] getBorderColors() {
+        return borderColors;
+    }
+    public float[] getStyles() {
+        return styles;
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Matches note offs to the note ons they belong to...
+ * keeps a little queue of open notes for every channel / key pair,
+ * so finding the right note never means searching the whole track
+ */
+package mygame;
+
+import java.util.Arrays;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class NotePairer {
+
+    // what to do when the same key is struck again before it was released...
+    public static final int FIFO = 0; // a note off ends the oldest open note
+    public static final int LIFO = 1; // a note off ends the newest open note
+
+    private static final int CHANNELS = 16;
+    private static final int KEYS = 128;
+
+    private int policy;
+    private int[][] open = new int[CHANNELS * KEYS][]; // note indices, one ring buffer per channel / key
+    private int[] head = new int[CHANNELS * KEYS];
+    private int[] count = new int[CHANNELS * KEYS];
+    private int openTotal = 0;
+    private int scanSlot = 0; // where pollOpen left off
+
+    public NotePairer(int policy) {
+        this.policy = policy;
+    }
+
+    // a note with this index has started...
+    public void noteOn(int channel, int key, int noteIndex) {
+        int slot = slot(channel, key);
+        int[] queue = open[slot];
+        if (queue == null) {
+            queue = new int[2];
+            open[slot] = queue;
+        } else if (count[slot] == queue.length) {
+            // unroll the ring buffer into a bigger one
+            int[] bigger = new int[queue.length * 2];
+            for (int i = 0; i < count[slot]; i++) {
+                bigger[i] = queue[(head[slot] + i) % queue.length];
+            }
+            queue = bigger;
+            open[slot] = queue;
+            head[slot] = 0;
+        }
+        queue[(head[slot] + count[slot]) % queue.length] = noteIndex;
+        count[slot]++;
+        openTotal++;
+        scanSlot = Math.min(scanSlot, slot);
+    }
+
+    // returns the index of the note this note off ends, or -1 if none is open
+    public int noteOff(int channel, int key) {
+        int slot = slot(channel, key);
+        if (count[slot] == 0)
+            return -1;
+        int[] queue = open[slot];
+        int noteIndex;
+        if (policy == FIFO) {
+            noteIndex = queue[head[slot]];
+            head[slot] = (head[slot] + 1) % queue.length;
+        } else {
+            noteIndex = queue[(head[slot] + count[slot] - 1) % queue.length];
+        }
+        count[slot]--;
+        openTotal--;
+        return noteIndex;
+    }
+
+    // returns the index of any note that is still open, or -1 if none are
+    // (used to close whatever is left when a track ends)
+    public int pollOpen() {
+        if (openTotal == 0)
+            return -1;
+        while (count[scanSlot] == 0) {
+            scanSlot++;
+        }
+        return noteOff(scanSlot / KEYS, scanSlot % KEYS);
+    }
+
+    public void clear() {
+        Arrays.fill(count, 0);
+        Arrays.fill(head, 0);
+        openTotal = 0;
+        scanSlot = 0;
+    }
+
+    private int slot(int channel, int key) {
+        return ((channel & 0x0F) * KEYS) + (key & 0x7F);
+    }
+
+    // gets and sets...
+    public int getOpenCount() {
+        return openTotal;
+    }
+    public int getPolicy() {
+        return policy;
+    }
+    public void setPolicy(int policy) {
+        this.policy = policy;
+    }
+
+}
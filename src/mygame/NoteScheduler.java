@@ -0,0 +1,156 @@
+/*
+ * Decides which notes turn on and off as the play line moves, without looking at every note...
+ * notes are kept in order of where they start, with a cursor for how far the play line has got,
+ * and the notes that are on sit in a heap ordered by where they end.
+ * So each frame only touches notes that are about to play, playing, or just finished.
+ */
+package mygame;
+
+import java.util.Arrays;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class NoteScheduler {
+
+    // what the scheduler tells its owner to do with each note (notes are given by index)
+    public interface Listener {
+        public void preplay(int note, float upcomingPercent);
+        public void turnOn(int note, float playPosX);
+        public void updateOn(int note, float playPosX);
+        public void turnOff(int note, float playPosX);
+    }
+
+    private float preplayDistance; // begin preplay animation this far before a note turns on
+    private float[] starts = new float[0];
+    private float[] ends = new float[0];
+    private int[] order = new int[0]; // note indices sorted by start
+    private int count = 0;
+
+    private int cursor = 0; // position in order of the first note that hasn't started yet
+    private int[] active = new int[16]; // min-heap of playing notes, by end
+    private int activeCount = 0;
+    private float lastPlayPosX = Float.NEGATIVE_INFINITY;
+
+    public NoteScheduler(float preplayDistance) {
+        this.preplayDistance = preplayDistance;
+    }
+
+    // gives the scheduler the notes to play... start and end x of each note
+    // (call again whenever notes change, the arrays are kept, not copied)
+    public void setNotes(float[] starts, float[] ends, int count) {
+        this.starts = starts;
+        this.ends = ends;
+        this.count = count;
+        // sort note indices by start (start and index packed into one long, so a plain sort does it)
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = (((long) sortableBits(starts[i])) << 32) | i;
+        }
+        Arrays.sort(keys);
+        order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = (int) keys[i];
+        }
+        reset();
+    }
+
+    // float bits that sort (as ints) the same way the floats do
+    private static int sortableBits(float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+    }
+
+    // forget what's playing... the next update starts from scratch
+    public void reset() {
+        cursor = 0;
+        activeCount = 0;
+        lastPlayPosX = Float.NEGATIVE_INFINITY;
+    }
+
+    // moves the play line to playPosX and tells the listener what changed
+    public void update(float playPosX, Listener listener) {
+        if (playPosX < lastPlayPosX) {
+            // going backwards... turn everything off and start over
+            while (activeCount > 0) {
+                listener.turnOff(popActive(), playPosX);
+            }
+            reset();
+        }
+        lastPlayPosX = playPosX;
+
+        // notes that have ended turn off
+        while (activeCount > 0 && ends[active[0]] <= playPosX) {
+            listener.turnOff(popActive(), playPosX);
+        }
+        // notes that are still on get updated
+        for (int i = 0; i < activeCount; i++) {
+            listener.updateOn(active[i], playPosX);
+        }
+        // notes the play line has reached turn on (unless we've passed them completely)
+        while (cursor < count && starts[order[cursor]] <= playPosX) {
+            int note = order[cursor++];
+            if (playPosX < ends[note]) {
+                listener.turnOn(note, playPosX);
+                pushActive(note);
+            }
+        }
+        // notes coming up get their preplay animation
+        for (int i = cursor; i < count; i++) {
+            int note = order[i];
+            float distance = starts[note] - playPosX;
+            if (distance > preplayDistance)
+                break;
+            listener.preplay(note, 1f - (distance / preplayDistance));
+        }
+    }
+
+    private void pushActive(int note) {
+        if (activeCount == active.length)
+            active = Arrays.copyOf(active, activeCount * 2);
+        int i = activeCount++;
+        // sift up
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (ends[active[parent]] <= ends[note])
+                break;
+            active[i] = active[parent];
+            i = parent;
+        }
+        active[i] = note;
+    }
+
+    private int popActive() {
+        int top = active[0];
+        int last = active[--activeCount];
+        // sift down
+        int i = 0;
+        while (true) {
+            int child = 2*i + 1;
+            if (child >= activeCount)
+                break;
+            if (child+1 < activeCount && ends[active[child+1]] < ends[active[child]])
+                child++;
+            if (ends[last] <= ends[active[child]])
+                break;
+            active[i] = active[child];
+            i = child;
+        }
+        if (activeCount > 0)
+            active[i] = last;
+        return top;
+    }
+
+    // gets and sets...
+    public int getActiveCount() {
+        return activeCount;
+    }
+    public int getNoteCount() {
+        return count;
+    }
+    public float getPreplayDistance() {
+        return preplayDistance;
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Times a frame of playback with NoteScheduler against the old way of checking
+ * every note every frame (Track.playNotes before the scheduler), for scores of different sizes...
+ * usage: NoteSchedulerBenchmark
+ */
+package mygame;
+
+import java.util.Random;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class NoteSchedulerBenchmark {
+
+    private static final float PREPLAY_DISTANCE = 2f;
+    private static final int POLYPHONY = 8; // roughly how many notes sound at once
+    private static final float FRAME_STEP = 0.21f; // 120 bpm at 60 fps with a grid of 25 per whole note
+    private static final int FRAMES = 2000;
+
+    // counts what happens to the notes, so both ways can be compared
+    private static class CountingListener implements NoteScheduler.Listener {
+        long preplays, ons, updates, offs;
+        public void preplay(int note, float upcomingPercent) {
+            preplays++;
+        }
+        public void turnOn(int note, float playPosX) {
+            ons++;
+        }
+        public void updateOn(int note, float playPosX) {
+            updates++;
+        }
+        public void turnOff(int note, float playPosX) {
+            offs++;
+        }
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = {10000, 100000, 1000000};
+        for (int i = 0; i < sizes.length; i++) {
+            run(sizes[i]);
+        }
+    }
+
+    private static void run(int noteCount) {
+        // notes about a beat long, spread out so that about POLYPHONY of them sound at once
+        Random random = new Random(1);
+        float length = noteCount / (float) POLYPHONY;
+        float[] starts = new float[noteCount];
+        float[] ends = new float[noteCount];
+        for (int i = 0; i < noteCount; i++) {
+            starts[i] = random.nextFloat() * length;
+            ends[i] = starts[i] + 0.5f + random.nextFloat();
+        }
+        float startX = length / 2f; // play from the middle of the score
+
+        NoteScheduler scheduler = new NoteScheduler(PREPLAY_DISTANCE);
+        long start = System.nanoTime();
+        scheduler.setNotes(starts, ends, noteCount);
+        float setupMs = (System.nanoTime() - start) / 1000000f;
+
+        // the first frame has to skip everything before the play line, so time it on its own
+        CountingListener scheduled = new CountingListener();
+        start = System.nanoTime();
+        scheduler.update(startX, scheduled);
+        float firstFrameMs = (System.nanoTime() - start) / 1000000f;
+        start = System.nanoTime();
+        for (int f = 1; f < FRAMES; f++) {
+            scheduler.update(startX + f * FRAME_STEP, scheduled);
+        }
+        float frameNs = (System.nanoTime() - start) / (float) (FRAMES - 1);
+
+        // the old way... fewer frames on big scores, it's slow
+        int scanFrames = Math.max(Math.min(FRAMES, 20000000 / noteCount), 10);
+        CountingListener scanned = new CountingListener();
+        boolean[] on = new boolean[noteCount];
+        scanFrame(starts, ends, on, startX, scanned);
+        start = System.nanoTime();
+        for (int f = 1; f < scanFrames; f++) {
+            scanFrame(starts, ends, on, startX + f * FRAME_STEP, scanned);
+        }
+        float scanNs = (System.nanoTime() - start) / (float) (scanFrames - 1);
+
+        // over the frames both ran, they should agree on how many notes turned on
+        CountingListener check = new CountingListener();
+        scheduler.reset();
+        for (int f = 0; f < scanFrames; f++) {
+            scheduler.update(startX + f * FRAME_STEP, check);
+        }
+
+        System.out.println(noteCount + " notes: setup " + setupMs + " ms, first frame " + firstFrameMs + " ms, then "
+                + frameNs + " ns/frame (" + scheduler.getActiveCount() + " playing) vs scan " + scanNs + " ns/frame, turn ons "
+                + check.ons + " vs " + scanned.ons);
+    }
+
+    // what Track.playNotes used to do for every note, every frame
+    private static void scanFrame(float[] starts, float[] ends, boolean[] on, float playPosX, CountingListener listener) {
+        for (int i = 0; i < starts.length; i++) {
+            float notePosX = starts[i];
+            if (notePosX <= playPosX + PREPLAY_DISTANCE && notePosX > playPosX) {
+                listener.preplay(i, 1f - ((notePosX - playPosX) / PREPLAY_DISTANCE));
+            } else if (notePosX <= playPosX && playPosX < ends[i]) {
+                if (!on[i]) {
+                    on[i] = true;
+                    listener.turnOn(i, playPosX);
+                } else {
+                    listener.updateOn(i, playPosX);
+                }
+            } else if (on[i]) {
+                on[i] = false;
+                listener.turnOff(i, playPosX);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Stores the notes of a MIDI track column by column in primitive arrays,
+ * rather than as one MIDINote object per note...
+ */
+package mygame;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class NoteTable {
+
+    public static final long DEFAULT_DURATION = 10; // in MIDI ticks, same as MIDINote
+
+    private long[] startTicks;
+    private long[] durationTicks;
+    private byte[] keys;
+    private byte[] velocities;
+    private byte[] channels;
+    private byte[] programs;
+    private int size = 0;
+
+    public NoteTable() {
+        this(64);
+    }
+
+    public NoteTable(int capacity) {
+        capacity = Math.max(capacity, 1);
+        startTicks = new long[capacity];
+        durationTicks = new long[capacity];
+        keys = new byte[capacity];
+        velocities = new byte[capacity];
+        channels = new byte[capacity];
+        programs = new byte[capacity];
+    }
+
+    // adds a note and returns its index
+    public int add(int channel, int program, int key, int velocity, long startTick) {
+        if (size == startTicks.length)
+            grow(size * 2);
+        startTicks[size] = startTick;
+        durationTicks[size] = DEFAULT_DURATION;
+        keys[size] = (byte) key;
+        velocities[size] = (byte) velocity;
+        channels[size] = (byte) channel;
+        programs[size] = (byte) program;
+        return size++;
+    }
+
+    private void grow(int capacity) {
+        startTicks = Arrays.copyOf(startTicks, capacity);
+        durationTicks = Arrays.copyOf(durationTicks, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        velocities = Arrays.copyOf(velocities, capacity);
+        channels = Arrays.copyOf(channels, capacity);
+        programs = Arrays.copyOf(programs, capacity);
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    // copies note i into a MIDINote we already have, so we don't have to allocate one...
+    public MIDINote get(int i, MIDINote note) {
+        note.channel = getChannel(i);
+        note.program = getProgram(i);
+        note.value = getKey(i);
+        note.velocity = getVelocity(i);
+        note.startPos = startTicks[i];
+        note.duration = durationTicks[i];
+        return note;
+    }
+
+    // a read-only List<MIDINote> view for code that still wants note objects
+    // (each get() makes a new MIDINote, so iterate the table by index when you can)
+    public List<MIDINote> asList() {
+        return new AbstractList<MIDINote>() {
+            @Override
+            public MIDINote get(int index) {
+                if (index < 0 || index >= size)
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+                return NoteTable.this.get(index, new MIDINote());
+            }
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    // writes the table column by column: int size, then the starts, durations, keys,
+    // velocities, channels and programs (used by ProjectCache)
+    public void write(ByteBuffer out) {
+        out.putInt(size);
+        out.asLongBuffer().put(startTicks, 0, size);
+        out.position(out.position() + size*8);
+        out.asLongBuffer().put(durationTicks, 0, size);
+        out.position(out.position() + size*8);
+        out.put(keys, 0, size);
+        out.put(velocities, 0, size);
+        out.put(channels, 0, size);
+        out.put(programs, 0, size);
+    }
+
+    // reads a table written by write()
+    public static NoteTable read(ByteBuffer in) {
+        int n = in.getInt();
+        if (n < 0 || (long) n * 20 > in.remaining())
+            throw new IllegalStateException("Bad note count: " + n);
+        NoteTable table = new NoteTable(n);
+        in.asLongBuffer().get(table.startTicks, 0, n);
+        in.position(in.position() + n*8);
+        in.asLongBuffer().get(table.durationTicks, 0, n);
+        in.position(in.position() + n*8);
+        in.get(table.keys, 0, n);
+        in.get(table.velocities, 0, n);
+        in.get(table.channels, 0, n);
+        in.get(table.programs, 0, n);
+        table.size = n;
+        return table;
+    }
+
+    // how many bytes write() will take
+    public int getByteSize() {
+        return 4 + size*20;
+    }
+
+    // gets and sets...
+    public int size() {
+        return size;
+    }
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    public long getStart(int i) {
+        return startTicks[i];
+    }
+    public long getDuration(int i) {
+        return durationTicks[i];
+    }
+    public void setDuration(int i, long duration) {
+        durationTicks[i] = duration;
+    }
+    public long getEnd(int i) {
+        return startTicks[i] + durationTicks[i];
+    }
+    public int getKey(int i) {
+        return keys[i];
+    }
+    public int getVelocity(int i) {
+        return velocities[i];
+    }
+    public int getChannel(int i) {
+        return channels[i];
+    }
+    public int getProgram(int i) {
+        return programs[i];
+    }
+    public void setProgram(int i, int program) {
+        programs[i] = (byte) program;
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Keeps only the notes near what the camera can see in the scene...
+ * every track is told to show the notes overlapping the view plus a margin on each side,
+ * and the window only moves again once the view gets within half a margin of its edge.
+ * So the scene (culling, controls, sorting) scales with how much is on screen, not with the length of the score.
+ */
+package mygame;
+
+import com.jme3.renderer.Camera;
+import java.util.List;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class NoteWindow {
+
+    private float margin; // how far past each side of the view notes stay attached (world units)
+    private boolean loaded = false;
+    private float loadedX1, loadedX2; // the window the tracks were last given
+    private int trackCount = -1; // so we notice when tracks are added or removed
+    private long moves = 0;
+
+    public NoteWindow(float margin) {
+        this.margin = margin;
+    }
+
+    // call every frame, after the camera has moved
+    public void update(Camera cam, List<Track> tracks) {
+        float viewX1 = cam.getLocation().x + cam.getFrustumLeft();
+        float viewX2 = cam.getLocation().x + cam.getFrustumRight();
+        float halfMargin = margin / 2f;
+        if (loaded && tracks.size() == trackCount
+                && viewX1 >= loadedX1 + halfMargin && viewX2 <= loadedX2 - halfMargin
+                && (loadedX2 - loadedX1) <= (viewX2 - viewX1) + 4f*margin) // (zoomed in a lot since? then shrink the window)
+            return;
+        loadedX1 = viewX1 - margin;
+        loadedX2 = viewX2 + margin;
+        loaded = true;
+        trackCount = tracks.size();
+        for (int i = 0; i < tracks.size(); i++) {
+            tracks.get(i).setWindow(loadedX1, loadedX2);
+        }
+        moves++;
+    }
+
+    // shows every note again (turning windowing off)
+    public void clear(List<Track> tracks) {
+        for (int i = 0; i < tracks.size(); i++) {
+            tracks.get(i).clearWindow();
+        }
+        loaded = false;
+    }
+
+    // makes the next update give the tracks a new window, even if the view hasn't moved
+    public void refresh() {
+        loaded = false;
+    }
+
+    public String getReport(List<Track> tracks) {
+        int shown = 0;
+        int total = 0;
+        for (int i = 0; i < tracks.size(); i++) {
+            shown += tracks.get(i).getShownNoteCount();
+            total += tracks.get(i).getNotes().size();
+        }
+        return "Note window: " + loadedX1 + " to " + loadedX2 + ", " + shown + " of " + total + " notes attached, moved "
+                + moves + " times";
+    }
+
+    // gets and sets...
+    public float getMargin() {
+        return margin;
+    }
+    public void setMargin(float margin) {
+        this.margin = margin;
+        loaded = false;
+    }
+    public long getMoves() {
+        return moves;
+    }
+
+}
@@ -7,7 +7,6 @@ package mygame;
 
 import com.jme3.export.JmeExporter;
 import com.jme3.export.JmeImporter;
-import com.jme3.math.ColorRGBA;
 import com.jme3.renderer.RenderManager;
 import com.jme3.renderer.ViewPort;
 import com.jme3.scene.Spatial;
@@ -25,11 +24,23 @@ public class PhantomNoteControl extends AbstractControl {
     private Note note;
     private float noteWidth = 0f;
     private float startPosX = 0f;
+    private PhantomPool pool; // where we go when we're done (null to just delete the note)
     
     public PhantomNoteControl() {}
     
     public PhantomNoteControl(Note note, float noteWidth, float playPosX) {
+        this(note, noteWidth, playPosX, null);
+    }
+    
+    public PhantomNoteControl(Note note, float noteWidth, float playPosX, PhantomPool pool) {
         this.note = note;
+        this.noteWidth = noteWidth;
+        this.pool = pool;
+        startPosX = playPosX;
+    }
+    
+    // start over for a new note (when a pooled phantom is reused)
+    public void restart(float noteWidth, float playPosX) {
         this.noteWidth = noteWidth;
         startPosX = playPosX;
     }
@@ -44,13 +55,15 @@ public class PhantomNoteControl extends AbstractControl {
     protected void controlUpdate(float tpf) {
         if (spatial != null) {
             if (note.getPlayPos() > startPosX + noteWidth) {
-                note.deleteMe();
+                if (pool != null) {
+                    note.removeFromParent();
+                    pool.release(note);
+                } else {
+                    note.deleteMe();
+                }
             } else {
-                ColorRGBA newColor = note.getColor().clone();
                 float percentComplete = Math.max(((note.getPlayPos() - startPosX) / noteWidth), 0f);
-                newColor.a = startAlpha - (startAlpha * percentComplete);
-                ColorRGBA newBorderColor = new ColorRGBA(0f, 0f, 0f, 0f);
-                note.setNewColors(newColor, newBorderColor);
+                note.setFade(startAlpha - (startAlpha * percentComplete));
                 float newScaleY = 1f + (8f * percentComplete);
                 //float newScaleX = 1f + (2f * percentComplete);
                 note.setLocalScale(1f, newScaleY, 1f);
@@ -0,0 +1,96 @@
+/*
+ * Keeps phantom notes around after they've faded, so the next note that turns on
+ * can reuse one instead of building a whole new note (quad, geometry, materials, control)...
+ * the pool only holds so many, anything past that is thrown away as before
+ */
+package mygame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class PhantomPool {
+
+    private static PhantomPool instance = null;
+
+    private List<Note> free = new ArrayList<Note>();
+    private int maxSize; // most phantoms we keep waiting around
+
+    // stats...
+    private long hits = 0; // reused a phantom
+    private long misses = 0; // had to make a new one
+    private long discarded = 0; // pool was full, so a phantom was thrown away
+    private int inUse = 0;
+    private int peakInUse = 0;
+
+    public PhantomPool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    // the pool everything in the app shares
+    public static PhantomPool get() {
+        if (instance == null)
+            instance = new PhantomPool(256);
+        return instance;
+    }
+
+    // a phantom that looks like source, ready to start animating at playPosX
+    public Note acquire(Note source, float playPosX) {
+        Note phantom;
+        if (!free.isEmpty()) {
+            phantom = free.remove(free.size()-1);
+            phantom.copyLookFrom(source);
+            phantom.getControl(PhantomNoteControl.class).restart(source.getWidth(), playPosX);
+            hits++;
+        } else {
+            phantom = source.cloneNote();
+            phantom.amPhantom = true;
+            phantom.addControl(new PhantomNoteControl(phantom, source.getWidth(), playPosX, this));
+            misses++;
+        }
+        phantom.updatePlayPos(playPosX); // (a reused phantom still has the last play position it saw)
+        inUse++;
+        peakInUse = Math.max(peakInUse, inUse);
+        return phantom;
+    }
+
+    // a phantom has finished... it should already be detached from its note
+    public void release(Note phantom) {
+        inUse--;
+        if (free.size() < maxSize) {
+            free.add(phantom);
+        } else {
+            phantom.deleteMe(); // gives its quad back to the render cache
+            discarded++;
+        }
+    }
+
+    public String getReport() {
+        return "Phantom pool: " + hits + " hits, " + misses + " misses, " + discarded + " discarded, "
+                + free.size() + " free, " + inUse + " in use (peak " + peakInUse + ")";
+    }
+
+    // gets and sets...
+    public long getHits() {
+        return hits;
+    }
+    public long getMisses() {
+        return misses;
+    }
+    public int getFreeCount() {
+        return free.size();
+    }
+    public int getInUse() {
+        return inUse;
+    }
+    public int getMaxSize() {
+        return maxSize;
+    }
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+}
@@ -0,0 +1,30 @@
+/*
+ * Plays the song headless and checks that playback doesn't allocate anything once it's warmed up
+ * (see FrameAllocationMeter)... every frame goes through Main's own update, a frame step at a time.
+ * Exits with 1 if any frame after warm up allocated (or nothing could be measured), 0 otherwise.
+ * usage: PlaybackAllocationBenchmark [-frames 0 COUNT] [any other Main options]
+ */
+package mygame;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class PlaybackAllocationBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        String[] mainArgs = new String[args.length + 2];
+        mainArgs[0] = "-headless";
+        mainArgs[1] = "-allocations";
+        System.arraycopy(args, 0, mainArgs, 2, args.length);
+        Main app = Main.createApp(mainArgs);
+        app.startApp();
+        app.waitUntilDestroyed();
+
+        FrameAllocationMeter meter = app.getAllocationMeter();
+        boolean passed = meter.isSupported() && meter.getMeasuredFrames() > 0 && meter.getAllocatingFrames() == 0;
+        System.out.println(passed ? "PASSED: no allocations after warm up" : "FAILED"); // (Main already printed the report)
+        System.exit(passed ? 0 : 1); // (the synth and jME can leave threads behind)
+    }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Everything we build from a MIDI file (measures, tempos, notes, track colors and styles),
+ * saved in a little binary file next to the .mid so we don't have to parse it again...
+ * the cache remembers a hash of the .mid it came from, and a fingerprint of the settings it was built with
+ * (see Main.getProjectSettings), and is ignored if either changes
+ *
+ * file layout (big endian):
+ *   int magic, int version, 32 byte SHA-256 of the .mid, int qShift, int settings, int ppq
+ *   int measure count, then per measure: int top, int bottom, int smallest unit
+ *   int tempo count, then per tempo: float pos (ticks), int tempo, byte connected
+ *   int track count, then per track: float r, g, b, a, float curve, curveWidth, curveHeight, borderWidth,
+ *     byte proportionalSide, byte connectingLines, byte useGradient, then the track's NoteTable
+ */
+package mygame;
+
+import com.jme3.math.ColorRGBA;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class ProjectCache {
+
+    public static final int VERSION = 2; // bump this whenever the layout changes
+    public static final String EXTENSION = ".cache";
+    private static final int MAGIC = 0x4D414E43; // "MANC"... MIDI ANimator Cache
+    private static final int HASH_SIZE = 32;
+    private static final int HEADER_SIZE = 8 + HASH_SIZE + 12; // magic, version, hash, qShift, settings, ppq
+
+    public class CachedTempo {
+        public float pos = 0; // in MIDI ticks
+        public int tempo = 120;
+        public boolean connected = false;
+    }
+
+    public class CachedTrack {
+        public ColorRGBA color;
+        public NoteStyle style;
+        public boolean useGradient = true;
+        public NoteTable notes;
+    }
+
+    public int qShift = 0;
+    public int settings = 0; // fingerprint of the settings the project was built with
+    public int ppq = 240;
+    public List<Measure> measures = new ArrayList<Measure>();
+    public List<CachedTempo> tempos = new ArrayList<CachedTempo>();
+    public List<CachedTrack> tracks = new ArrayList<CachedTrack>();
+
+    public CachedTempo addTempo(float pos, int tempo, boolean connected) {
+        CachedTempo newTempo = new CachedTempo();
+        newTempo.pos = pos;
+        newTempo.tempo = tempo;
+        newTempo.connected = connected;
+        tempos.add(newTempo);
+        return newTempo;
+    }
+
+    public CachedTrack addTrack(ColorRGBA color, NoteStyle style, boolean useGradient, NoteTable notes) {
+        CachedTrack newTrack = new CachedTrack();
+        newTrack.color = color;
+        newTrack.style = style;
+        newTrack.useGradient = useGradient;
+        newTrack.notes = notes;
+        tracks.add(newTrack);
+        return newTrack;
+    }
+
+    // where the cache for a given MIDI file lives
+    public static File getCacheFile(String midiFileName) {
+        return new File(midiFileName + EXTENSION);
+    }
+
+    // loads the cache for this MIDI file... returns null if there isn't one,
+    // or if it's out of date (different .mid, different qShift, different settings, older version)
+    public static ProjectCache load(String midiFileName, int qShift, int settings) throws IOException {
+        File cacheFile = getCacheFile(midiFileName);
+        if (!cacheFile.isFile())
+            return null;
+        byte[] midiHash = hashFile(new File(midiFileName));
+        RandomAccessFile file = new RandomAccessFile(cacheFile, "r");
+        try {
+            // the header is read the plain way, and the rest is only mapped if the cache is any good...
+            // (a live mapping stops save from replacing the file on Windows, and it's out of date when we save)
+            FileChannel channel = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION)
+                return null;
+            byte[] cachedHash = new byte[HASH_SIZE];
+            header.get(cachedHash);
+            if (!Arrays.equals(cachedHash, midiHash) || header.getInt() != qShift || header.getInt() != settings)
+                return null;
+            int ppq = header.getInt();
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, channel.size() - HEADER_SIZE);
+            return read(in, qShift, settings, ppq);
+        } catch (RuntimeException ex) {
+            // a truncated or scrambled cache... just parse the MIDI again
+            return null;
+        } finally {
+            file.close();
+        }
+    }
+
+    private static ProjectCache read(ByteBuffer in, int qShift, int settings, int ppq) {
+        ProjectCache project = new ProjectCache();
+        project.qShift = qShift;
+        project.settings = settings;
+        project.ppq = ppq;
+        int measureCount = in.getInt();
+        for (int i = 0; i < measureCount; i++) {
+            Measure measure = new Measure();
+            measure.timeSigTop = in.getInt();
+            measure.timeSigBottom = in.getInt();
+            measure.smallestUnit = in.getInt();
+            project.measures.add(measure);
+        }
+        int tempoCount = in.getInt();
+        for (int i = 0; i < tempoCount; i++) {
+            float pos = in.getFloat();
+            int tempo = in.getInt();
+            project.addTempo(pos, tempo, in.get() != 0);
+        }
+        int trackCount = in.getInt();
+        for (int i = 0; i < trackCount; i++) {
+            ColorRGBA color = new ColorRGBA(in.getFloat(), in.getFloat(), in.getFloat(), in.getFloat());
+            float curve = in.getFloat();
+            float curveWidth = in.getFloat();
+            float curveHeight = in.getFloat();
+            float borderWidth = in.getFloat();
+            boolean proportionalSide = in.get() != 0;
+            boolean connectingLines = in.get() != 0;
+            boolean useGradient = in.get() != 0;
+            NoteStyle style = new NoteStyle(curve, curveWidth, curveHeight, borderWidth, proportionalSide, connectingLines);
+            project.addTrack(color, style, useGradient, NoteTable.read(in));
+        }
+        return project;
+    }
+
+    // writes the cache next to the MIDI file... (to a temp file first, so a crash
+    // halfway through never leaves a broken cache behind)
+    public void save(String midiFileName) throws IOException {
+        byte[] midiHash = hashFile(new File(midiFileName));
+        int size = HEADER_SIZE;
+        size += 4 + measures.size() * 12;
+        size += 4 + tempos.size() * 9;
+        size += 4;
+        for (int i = 0; i < tracks.size(); i++) {
+            size += 35 + tracks.get(i).notes.getByteSize();
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.put(midiHash);
+        out.putInt(qShift);
+        out.putInt(settings);
+        out.putInt(ppq);
+        out.putInt(measures.size());
+        for (int i = 0; i < measures.size(); i++) {
+            out.putInt(measures.get(i).timeSigTop);
+            out.putInt(measures.get(i).timeSigBottom);
+            out.putInt(measures.get(i).smallestUnit);
+        }
+        out.putInt(tempos.size());
+        for (int i = 0; i < tempos.size(); i++) {
+            out.putFloat(tempos.get(i).pos);
+            out.putInt(tempos.get(i).tempo);
+            out.put((byte) (tempos.get(i).connected ? 1 : 0));
+        }
+        out.putInt(tracks.size());
+        for (int i = 0; i < tracks.size(); i++) {
+            CachedTrack track = tracks.get(i);
+            out.putFloat(track.color.r);
+            out.putFloat(track.color.g);
+            out.putFloat(track.color.b);
+            out.putFloat(track.color.a);
+            out.putFloat(track.style.curve);
+            out.putFloat(track.style.curveWidth);
+            out.putFloat(track.style.curveHeight);
+            out.putFloat(track.style.borderWidth);
+            out.put((byte) (track.style.proportionalSide ? 1 : 0));
+            out.put((byte) (track.style.connectingLines ? 1 : 0));
+            out.put((byte) (track.useGradient ? 1 : 0));
+            track.notes.write(out);
+        }
+        out.flip();
+
+        File cacheFile = getCacheFile(midiFileName);
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+        try {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        } finally {
+            file.close();
+        }
+        try {
+            Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // SHA-256 of a file's contents, read through a memory map
+    public static byte[] hashFile(File source) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        RandomAccessFile file = new RandomAccessFile(source, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            file.close();
+        }
+        return digest.digest();
+    }
+
+    // gets and sets...
+    public int getNoteCount() {
+        int count = 0;
+        for (int i = 0; i < tracks.size(); i++) {
+            count += tracks.get(i).notes.size();
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,229 @@
+/*
+ * Writes exported frames as raw pixels into one file, a named pipe or stdout, instead of a png per frame...
+ * the frames go out exactly as they were read back (no conversion, no copy), after a small header:
+ *
+ *     4 bytes  "RAWV"
+ *     int      version (1)
+ *     int      width
+ *     int      height
+ *     int      fps
+ *     4 bytes  pixel format, "BGRA"
+ *     int      flags (1 = rows go bottom to top, which is how OpenGL reads them back)
+ *     int      frame count (-1 if it wasn't known, when streaming)
+ *
+ * (ints are big endian, the header is always HEADER_SIZE bytes)... ffmpeg can read it straight in with
+ *     ffmpeg -f rawvideo -pix_fmt bgra -s WxH -r FPS -skip_initial_bytes 32 -i Main.raw -vf vflip out.mp4
+ */
+package mygame;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class RawFrameWriter {
+
+    public static final int HEADER_SIZE = 32;
+    public static final int VERSION = 1;
+    public static final String PIXEL_FORMAT = "BGRA";
+    public static final int FLAG_BOTTOM_UP = 1;
+
+    private WritableByteChannel channel;
+    private FileChannel file; // (null when streaming)
+    private RandomAccessFile randomAccessFile;
+    private String target;
+    private int width, height, fps;
+    private long frameSize;
+    private int nextFrame = 0; // when streaming, frames have to go out in order
+    private int framesWritten = 0;
+    private int highestFrame = -1;
+    private boolean warnedSize = false;
+    private boolean broken = false; // a stream stopped taking frames (the encoder on the other end quit?)
+    private boolean aborted = false; // no more frames are coming (see abort)
+    private long bytesWritten = 0;
+    private long writeNanos = 0;
+
+    // a regular file, made big enough for expectedFrames up front (0 if you don't know)...
+    // frames can be written in any order, each goes to its own spot in the file
+    public static RawFrameWriter toFile(File file, int width, int height, int fps, int expectedFrames) throws IOException {
+        RawFrameWriter writer = new RawFrameWriter(file.getPath(), width, height, fps);
+        writer.randomAccessFile = new RandomAccessFile(file, "rw");
+        writer.file = writer.randomAccessFile.getChannel();
+        writer.channel = writer.file;
+        writer.randomAccessFile.setLength(HEADER_SIZE + writer.frameSize * Math.max(expectedFrames, 0));
+        writer.writeHeader(-1);
+        return writer;
+    }
+
+    // a pipe, stdout, or anything else we can only write to from start to end
+    public static RawFrameWriter toStream(WritableByteChannel channel, String name, int width, int height, int fps) throws IOException {
+        RawFrameWriter writer = new RawFrameWriter(name, width, height, fps);
+        writer.channel = channel;
+        writer.writeHeader(-1);
+        return writer;
+    }
+
+    // "-" is stdout, an existing file that isn't a regular file is a named pipe, anything else is a file
+    // (with stdout, anything else printed ends up mixed in with the frames... so Main sends System.out to stderr for "-raw -")
+    public static RawFrameWriter open(String target, int width, int height, int fps, int expectedFrames) throws IOException {
+        if (target.equals("-")) {
+            FileOutputStream out = new FileOutputStream(FileDescriptor.out);
+            return toStream(out.getChannel(), "stdout", width, height, fps);
+        }
+        File file = new File(target);
+        if (file.exists() && !file.isFile())
+            return toStream(new FileOutputStream(file).getChannel(), target, width, height, fps);
+        return toFile(file, width, height, fps, expectedFrames);
+    }
+
+    private RawFrameWriter(String target, int width, int height, int fps) {
+        this.target = target;
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        frameSize = (long) width * height * 4;
+    }
+
+    private void writeHeader(int frameCount) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put((byte) 'R').put((byte) 'A').put((byte) 'W').put((byte) 'V');
+        header.putInt(VERSION);
+        header.putInt(width);
+        header.putInt(height);
+        header.putInt(fps);
+        for (int i = 0; i < 4; i++) {
+            header.put((byte) PIXEL_FORMAT.charAt(i));
+        }
+        header.putInt(FLAG_BOTTOM_UP);
+        header.putInt(frameCount);
+        header.flip();
+        if (file != null) {
+            while (header.hasRemaining()) {
+                file.write(header, header.position());
+            }
+        } else {
+            writeFully(header);
+        }
+    }
+
+    // writes frame number index (counting from 0)... pixels are written from 0 to their limit,
+    // which should be width * height * 4 bytes... when streaming, this waits until the frames before it are out
+    public void writeFrame(int index, ByteBuffer pixels) throws IOException {
+        pixels.position(0);
+        boolean sizeOk = pixels.remaining() == frameSize;
+        if (!sizeOk)
+            warnSize(pixels.remaining());
+        if (file != null) {
+            if (sizeOk) {
+                long start = System.nanoTime();
+                long position = HEADER_SIZE + index * frameSize;
+                while (pixels.hasRemaining()) {
+                    position += file.write(pixels, position);
+                }
+                synchronized (this) {
+                    writeNanos += System.nanoTime() - start;
+                    bytesWritten += frameSize;
+                    framesWritten++;
+                    highestFrame = Math.max(highestFrame, index);
+                }
+            }
+            return;
+        }
+        synchronized (this) {
+            while (nextFrame != index) {
+                if (aborted)
+                    throw new IOException("Gave up waiting to write frame " + index);
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting to write frame " + index);
+                }
+            }
+            try {
+                if (sizeOk && !broken) {
+                    long start = System.nanoTime();
+                    broken = true; // (until the write makes it)
+                    writeFully(pixels);
+                    broken = false;
+                    writeNanos += System.nanoTime() - start;
+                    bytesWritten += frameSize;
+                    framesWritten++;
+                    highestFrame = index;
+                }
+            } finally {
+                nextFrame++; // (even if it failed, so the frames after it don't wait forever)
+                notifyAll();
+            }
+        }
+    }
+
+    // frames still waiting for their turn to be streamed give up (when a frame before them is never going to come)
+    public synchronized void abort() {
+        aborted = true;
+        notifyAll();
+    }
+
+    private synchronized void warnSize(int size) {
+        if (warnedSize)
+            return;
+        warnedSize = true;
+        Logger.getLogger(RawFrameWriter.class.getName()).log(Level.WARNING,
+                "Frame is " + size + " bytes but " + target + " was opened for " + width + "x" + height + ", skipping frames that don't fit");
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // a file gets trimmed to the frames we actually wrote, and its header gets the frame count
+    public synchronized void close() throws IOException {
+        if (file != null) {
+            int frames = highestFrame + 1;
+            randomAccessFile.setLength(HEADER_SIZE + frameSize * frames);
+            writeHeader(frames);
+            randomAccessFile.close();
+        } else {
+            channel.close();
+        }
+    }
+
+    public synchronized String getReport() {
+        float seconds = writeNanos / 1000000000f;
+        return "Raw frames: " + framesWritten + " frames (" + (bytesWritten / (1024*1024)) + " MB) to " + target + ", "
+                + (seconds > 0f ? (bytesWritten / (1024*1024) / seconds) : 0f) + " MB/s while writing";
+    }
+
+    // gets and sets...
+    public int getWidth() {
+        return width;
+    }
+    public int getHeight() {
+        return height;
+    }
+    public int getFps() {
+        return fps;
+    }
+    public long getFrameSize() {
+        return frameSize;
+    }
+    public synchronized int getFramesWritten() {
+        return framesWritten;
+    }
+    public boolean isStreaming() {
+        return file == null;
+    }
+
+}
@@ -0,0 +1,316 @@
+/*
+ * Shares materials and quads between everything that looks the same...
+ * most notes in a track only differ by a handful of parameters, so rather than
+ * every note making its own material, notes ask the cache for one and give it back
+ * when they're done with it. Nobody should change a material they got from here!
+ * (get a different one instead)
+ */
+package mygame;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.material.Material;
+import com.jme3.material.RenderState;
+import com.jme3.math.ColorRGBA;
+import com.jme3.scene.shape.Quad;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class RenderCache {
+
+    public static final String SHAPE_SHADER = "Materials/ShapeShader.j3md";
+    public static final String UNSHADED = "Common/MatDefs/Misc/Unshaded.j3md";
+
+    private static RenderCache instance = null;
+
+    // one of these for every material or quad we've handed out
+    private class Entry {
+        Object key; // a String, or a ShapeKey or QuadKey
+        Object resource;
+        int refs = 0;
+    }
+
+    // the key for a note's shape material... notes ask for these every time they change (several times
+    // a frame for the one under the mouse), so rather than boxing the parameters and building a string,
+    // acquireShapeMaterial fills in one of these we keep around, and only copies it when it's new
+    private static class ShapeKey {
+        final float[] values; // color, border color, then border size, curve, radiusW, radiusH, width, height
+        boolean gradient;
+        int hash;
+
+        ShapeKey() {
+            values = new float[14];
+        }
+        ShapeKey(ShapeKey other) {
+            values = other.values.clone();
+            gradient = other.gradient;
+            hash = other.hash;
+        }
+
+        void set(ColorRGBA color, ColorRGBA borderColor, float borderSize, float curve,
+                float radiusW, float radiusH, float width, float height, boolean gradient) {
+            values[0] = color.r;
+            values[1] = color.g;
+            values[2] = color.b;
+            values[3] = color.a;
+            values[4] = borderColor.r;
+            values[5] = borderColor.g;
+            values[6] = borderColor.b;
+            values[7] = borderColor.a;
+            values[8] = borderSize;
+            values[9] = curve;
+            values[10] = radiusW;
+            values[11] = radiusH;
+            values[12] = width;
+            values[13] = height;
+            this.gradient = gradient;
+            hash = 31 * Arrays.hashCode(values) + (gradient ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ShapeKey))
+                return false;
+            ShapeKey other = (ShapeKey) o;
+            return hash == other.hash && gradient == other.gradient && Arrays.equals(values, other.values);
+        }
+    }
+
+    // the key for a quad... notes swap quads whenever they turn on, so this gets the same treatment
+    private static class QuadKey {
+        float width;
+        float height;
+
+        QuadKey() {
+        }
+        QuadKey(QuadKey other) {
+            width = other.width;
+            height = other.height;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Float.floatToIntBits(width) + Float.floatToIntBits(height);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof QuadKey))
+                return false;
+            QuadKey other = (QuadKey) o;
+            return Float.floatToIntBits(width) == Float.floatToIntBits(other.width)
+                    && Float.floatToIntBits(height) == Float.floatToIntBits(other.height);
+        }
+    }
+
+    private AssetManager assetManager;
+    private int maxUnused; // how many resources nobody is using we hang on to, in case they're wanted again
+    private Map<Object, Entry> entries = new HashMap<Object, Entry>();
+    private Map<Object, Entry> byResource = new IdentityHashMap<Object, Entry>();
+    private LinkedHashMap<Object, Entry> unused = new LinkedHashMap<Object, Entry>(16, 0.75f, true); // least recently used first
+    private StringBuilder keyBuilder = new StringBuilder();
+    private ShapeKey shapeLookup = new ShapeKey();
+    private QuadKey quadLookup = new QuadKey();
+
+    // stats...
+    private int materialCount = 0;
+    private int quadCount = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public RenderCache(AssetManager assetManager, int maxUnused) {
+        this.assetManager = assetManager;
+        this.maxUnused = maxUnused;
+    }
+
+    // the cache everything in the app shares
+    public static RenderCache get(AssetManager assetManager) {
+        if (instance == null || instance.assetManager != assetManager)
+            instance = new RenderCache(assetManager, 256);
+        return instance;
+    }
+
+    // a note material... the same parameters Note always set on the shape shader
+    public Material acquireShapeMaterial(ColorRGBA color, ColorRGBA borderColor, float borderSize, float curve,
+            float radiusW, float radiusH, float width, float height, boolean gradient) {
+        shapeLookup.set(color, borderColor, borderSize, curve, radiusW, radiusH, width, height, gradient);
+        Entry entry = take(shapeLookup);
+        if (entry == null) {
+            Material mat = new Material(assetManager, SHAPE_SHADER);
+            mat.setColor("Color", color.clone()); // our own copies, so changing the originals doesn't change the material
+            mat.setColor("BorderColor", borderColor.clone());
+            mat.setFloat("BorderSize", borderSize);
+            mat.setFloat("Curve", curve);
+            mat.setFloat("RadiusW", radiusW);
+            mat.setFloat("RadiusH", radiusH);
+            mat.setFloat("Width", width);
+            mat.setFloat("Height", height);
+            mat.setBoolean("Gradient", gradient);
+            mat.getAdditionalRenderState().setBlendMode(RenderState.BlendMode.Alpha);
+            entry = add(new ShapeKey(shapeLookup), mat);
+            materialCount++;
+        }
+        return (Material) entry.resource;
+    }
+
+    // a plain colored material (color can be null for Unshaded's default white)
+    public Material acquireUnshaded(ColorRGBA color, boolean alphaBlend) {
+        if (color == null)
+            return acquireMaterial(UNSHADED, alphaBlend);
+        return acquireMaterial(UNSHADED, alphaBlend, "Color", color);
+    }
+
+    // any material... params go name, value, name, value... (values can be ColorRGBA, Float or Boolean)
+    public Material acquireMaterial(String matDef, boolean alphaBlend, Object... params) {
+        keyBuilder.setLength(0);
+        keyBuilder.append(matDef).append(alphaBlend ? "|blend" : "|opaque");
+        for (int i = 0; i+1 < params.length; i += 2) {
+            keyBuilder.append('|').append(params[i]).append('=');
+            appendValue(params[i+1]);
+        }
+        String key = keyBuilder.toString();
+        Entry entry = take(key);
+        if (entry == null) {
+            Material mat = new Material(assetManager, matDef);
+            for (int i = 0; i+1 < params.length; i += 2) {
+                setParam(mat, (String) params[i], params[i+1]);
+            }
+            if (alphaBlend)
+                mat.getAdditionalRenderState().setBlendMode(RenderState.BlendMode.Alpha);
+            entry = add(key, mat);
+            materialCount++;
+        }
+        return (Material) entry.resource;
+    }
+
+    // a quad of the given size (quads are never changed after they're made, so sharing them is safe)
+    public Quad acquireQuad(float width, float height) {
+        quadLookup.width = width;
+        quadLookup.height = height;
+        Entry entry = take(quadLookup);
+        if (entry == null) {
+            entry = add(new QuadKey(quadLookup), new Quad(width, height));
+            quadCount++;
+        }
+        return (Quad) entry.resource;
+    }
+
+    // give back a material or quad we got from the cache (anything else is ignored)
+    public void release(Object resource) {
+        if (resource == null)
+            return;
+        Entry entry = byResource.get(resource);
+        if (entry == null || entry.refs == 0)
+            return;
+        entry.refs--;
+        if (entry.refs == 0) {
+            unused.put(entry.key, entry);
+            evictUnused();
+        }
+    }
+
+    // finds an entry and takes a reference to it, or returns null if we don't have one
+    private Entry take(Object key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        if (entry.refs == 0)
+            unused.remove(key);
+        entry.refs++;
+        return entry;
+    }
+
+    private Entry add(Object key, Object resource) {
+        Entry entry = new Entry();
+        entry.key = key;
+        entry.resource = resource;
+        entry.refs = 1;
+        entries.put(key, entry);
+        byResource.put(resource, entry);
+        return entry;
+    }
+
+    // throws out the least recently used resources nobody is using
+    private void evictUnused() {
+        Iterator<Entry> it = unused.values().iterator();
+        while (unused.size() > maxUnused && it.hasNext()) {
+            Entry entry = it.next();
+            it.remove();
+            entries.remove(entry.key);
+            byResource.remove(entry.resource);
+            if (entry.resource instanceof Material)
+                materialCount--;
+            else
+                quadCount--;
+            evictions++;
+        }
+    }
+
+    private void appendValue(Object value) {
+        if (value instanceof ColorRGBA) {
+            ColorRGBA color = (ColorRGBA) value;
+            keyBuilder.append(color.r).append(',').append(color.g).append(',').append(color.b).append(',').append(color.a);
+        } else {
+            keyBuilder.append(value);
+        }
+    }
+
+    private static void setParam(Material mat, String name, Object value) {
+        if (value instanceof ColorRGBA)
+            mat.setColor(name, ((ColorRGBA) value).clone()); // our own copy, so changing the original doesn't change the material
+        else if (value instanceof Float)
+            mat.setFloat(name, (Float) value);
+        else if (value instanceof Boolean)
+            mat.setBoolean(name, (Boolean) value);
+        else if (value instanceof Integer)
+            mat.setInt(name, (Integer) value);
+    }
+
+    // for seeing how well the sharing is working...
+    public String getReport() {
+        int refs = 0;
+        for (Entry entry : entries.values()) {
+            refs += entry.refs;
+        }
+        return "Render cache: " + materialCount + " materials, " + quadCount + " quads (" + refs + " in use, "
+                + unused.size() + " unused), " + hits + " hits, " + misses + " misses, " + evictions + " evicted";
+    }
+
+    // gets and sets...
+    public int getMaterialCount() {
+        return materialCount;
+    }
+    public int getQuadCount() {
+        return quadCount;
+    }
+    public long getHits() {
+        return hits;
+    }
+    public long getMisses() {
+        return misses;
+    }
+    public int getMaxUnused() {
+        return maxUnused;
+    }
+    public void setMaxUnused(int maxUnused) {
+        this.maxUnused = maxUnused;
+        evictUnused();
+    }
+
+}
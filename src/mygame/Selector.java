@@ -13,7 +13,11 @@ import com.jme3.scene.Geometry;
 import com.jme3.scene.Node;
 import com.jme3.scene.shape.Quad;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 /**
  *
@@ -33,10 +37,13 @@ public class Selector extends Node {
     private float selectedPadding = 0f;
     private float borderSize = 0f;
     private float selectorZ;
-    private List<Note> selectingNotes = new ArrayList<Note>();
-    private List<Note> selectedNotes = new ArrayList<Note>();
+    private Set<Note> selectingNotes = newNoteSet();
+    private Set<Note> selectedNotes = newNoteSet();
+    private Set<Note> nextSelectingNotes = newNoteSet(); // (scratch, swapped with selectingNotes as the box moves)
+    private List<Note> boxNotes = new ArrayList<Note>(); // (scratch for the note index query)
     private List<Note> clipboard = new ArrayList<Note>();
     private Geometry selecting, selected;
+    private Quad selectingQuad;
     private Material matSelecting, matSelected;
     private Vector3f startPos, endPos;
     
@@ -92,14 +99,28 @@ public class Selector extends Node {
         matSelected.setFloat("BorderSize", borderSize * 1.2f);
     }
 
+    // a set of notes that goes by identity... (quick contains/add/remove, even with thousands selected)
+    private static Set<Note> newNoteSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<Note, Boolean>());
+    }
+
     // creates our selecting quad...
     public void createSelecting(Vector3f current3d) {       
-        Quad selectingQuad = new Quad(0f, 0f);
-        selecting = new Geometry("selectingQuad", selectingQuad);
+        if (selecting == null) {
+            selectingQuad = new Quad(0f, 0f);
+            selecting = new Geometry("selectingQuad", selectingQuad);
+            selecting.setMaterial(matSelecting);
+        } else {
+            selectingQuad.updateGeometry(0f, 0f);
+            selecting.updateModelBound();
+        }
         selecting.center();
-        selecting.setMaterial(matSelecting);
         // add to the node...
         startPos = current3d.clone();
+        endPos = current3d.clone();
+        // whatever was in the last box has already gone back to its normal look (see updateSelectedGeo),
+        // so the new box starts out empty
+        selectingNotes.clear();
         selecting.setLocalTranslation(current3d);
         attachChild(selecting);
     }
@@ -108,23 +129,23 @@ public class Selector extends Node {
     // copy currently selected notes to clipboard
     public void copySelectedNotes() {
         clipboard.clear();
-        for (int i = 0; i < selectedNotes.size(); i++) {
-            Note newNote = selectedNotes.get(i).cloneNote();
-            newNote.getLocalTranslation().setX(selectedNotes.get(i).getWorldTranslation().x - selected.getLocalTranslation().x - selectedPadding - (newNote.getWidth()/2f));
-            newNote.getLocalTranslation().setY(selectedNotes.get(i).getWorldTranslation().y - selected.getLocalTranslation().y - selectedPadding + (newNote.getHeight()/2f)
+        for (Note note : selectedNotes) {
+            Note newNote = note.cloneNote();
+            newNote.getLocalTranslation().setX(note.getWorldTranslation().x - selected.getLocalTranslation().x - selectedPadding - (newNote.getWidth()/2f));
+            newNote.getLocalTranslation().setY(note.getWorldTranslation().y - selected.getLocalTranslation().y - selectedPadding + (newNote.getHeight()/2f)
                     - (heightSelected - selectedPadding*2f));
             clipboard.add(newNote);
         }
     }
     public void cutSelectedNotes() {
         clipboard.clear();
-        for (int i = 0; i < selectedNotes.size(); i++) {
-            Note newNote = selectedNotes.get(i).cloneNote();
-            newNote.getLocalTranslation().setX(selectedNotes.get(i).getWorldTranslation().x - selected.getLocalTranslation().x - selectedPadding - (newNote.getWidth()/2f));
-            newNote.getLocalTranslation().setY(selectedNotes.get(i).getWorldTranslation().y - selected.getLocalTranslation().y - selectedPadding + (newNote.getHeight()/2f)
+        for (Note note : selectedNotes) {
+            Note newNote = note.cloneNote();
+            newNote.getLocalTranslation().setX(note.getWorldTranslation().x - selected.getLocalTranslation().x - selectedPadding - (newNote.getWidth()/2f));
+            newNote.getLocalTranslation().setY(note.getWorldTranslation().y - selected.getLocalTranslation().y - selectedPadding + (newNote.getHeight()/2f)
                     - (heightSelected - selectedPadding*2f));
             clipboard.add(newNote);
-            selectedNotes.get(i).deleteMe();
+            note.deleteMe();
         }
         selectingNotes.clear();
         selectedNotes.clear();
@@ -133,52 +154,59 @@ public class Selector extends Node {
     
     // looks through the tracks and determines which notes are selected
     // and change the colors of those notes to show that they are selected
+    // (only the notes under the box are looked at, found from each track's note index,
+    // and only the notes that came into or left the box since last time get their materials touched)
     public void updateSelectedNotes() {
-        Note currentNote = null;
-        boolean yPass = false;
-        boolean xPass = false;
+        float selectingTop = Math.max(startPos.y, endPos.y);
+        float selectingBottom = Math.min(startPos.y, endPos.y);
+        float selectingRight = Math.max(startPos.x, endPos.x);
+        float selectingLeft = Math.min(startPos.x, endPos.x);
+        nextSelectingNotes.clear();
         for (int i = 0; i < ourTracks.size(); i++) {
-            for (int j = 0; j < ourTracks.get(i).getNotes().size(); j++) {
+            float trackX = ourTracks.get(i).getWorldTranslation().x;
+            boxNotes.clear();
+            ourTracks.get(i).getNotesOverlapping(selectingLeft - trackX, selectingRight - trackX, boxNotes);
+            for (int j = 0; j < boxNotes.size(); j++) {
                 // is the note selected?
-                yPass = false;
-                xPass = false;
-                currentNote = ourTracks.get(i).getNotes().get(j);
+                Note currentNote = boxNotes.get(j);
                 float noteTop = (currentNote.getHeight()/2f) + currentNote.getWorldTranslation().y;
                 float noteBottom = (-currentNote.getHeight()/2f) + currentNote.getWorldTranslation().y;
                 float noteRight = (currentNote.getWidth()/2f) + currentNote.getWorldTranslation().x;
                 float noteLeft = (-currentNote.getWidth()/2f) + currentNote.getWorldTranslation().x;
-                float selectingTop = Math.max(startPos.y, endPos.y);
-                float selectingBottom = Math.min(startPos.y, endPos.y);
-                float selectingRight = Math.max(startPos.x, endPos.x);
-                float selectingLeft = Math.min(startPos.x, endPos.x);
-                if ((noteTop < selectingTop && noteTop > selectingBottom) || (noteBottom < selectingTop && noteBottom > selectingBottom)
-                        || (noteTop > selectingTop && noteBottom < selectingBottom))
-                    yPass = true;
-                if ((noteLeft < selectingRight && noteLeft > selectingLeft) || (noteRight < selectingRight && noteRight > selectingLeft)
-                        || (noteLeft < selectingLeft && noteRight > selectingRight))
-                    xPass = true;
+                boolean yPass = (noteTop < selectingTop && noteTop > selectingBottom) || (noteBottom < selectingTop && noteBottom > selectingBottom)
+                        || (noteTop > selectingTop && noteBottom < selectingBottom);
+                boolean xPass = (noteLeft < selectingRight && noteLeft > selectingLeft) || (noteRight < selectingRight && noteRight > selectingLeft)
+                        || (noteLeft < selectingLeft && noteRight > selectingRight);
                 if (yPass && xPass) {
-                    if (!selectingNotes.contains(currentNote))
-                        selectingNotes.add(currentNote);
-                    currentNote.setBorderSize(0f);
-                    currentNote.brighten(4f);
-                } else {
-                    if (selectingNotes.contains(currentNote))
-                        selectingNotes.remove(currentNote);
-                    currentNote.resetBorder();
-                    currentNote.resetColor();
+                    nextSelectingNotes.add(currentNote);
+                    if (!selectingNotes.contains(currentNote)) { // it just came into the box
+                        currentNote.setBorderSize(0f);
+                        currentNote.brighten(4f);
+                    }
                 }
             }
         }
+        boxNotes.clear();
+        // anything that was in the box but isn't anymore goes back to normal
+        for (Note note : selectingNotes) {
+            if (!nextSelectingNotes.contains(note)) {
+                note.resetBorder();
+                note.resetColor();
+            }
+        }
+        Set<Note> swap = selectingNotes;
+        selectingNotes = nextSelectingNotes;
+        nextSelectingNotes = swap;
+        nextSelectingNotes.clear();
     }
     
     // resizes the selecting geometry...
     public void updateSize(Vector3f newEndPos) {
-        endPos = newEndPos.clone();
+        endPos.set(newEndPos);
         widthSelecting = Math.abs(endPos.x-startPos.x);
         heightSelecting = Math.abs(endPos.y-startPos.y);
-        Quad selectingQuad = new Quad(widthSelecting, heightSelecting);
-        selecting.setMesh(selectingQuad);
+        selectingQuad.updateGeometry(widthSelecting, heightSelecting);
+        selecting.updateModelBound();
         selecting.center();
         float newPosX = Math.min(endPos.x, startPos.x);
         float newPosY = Math.min(endPos.y, startPos.y);
@@ -190,10 +218,10 @@ public class Selector extends Node {
     
     // deselects all notes... duh
     private void deselectAllNotes() {
-        for (int i = 0; i < selectedNotes.size(); i++) {
-            selectedNotes.get(i).setSelected(false);
-            selectedNotes.get(i).resetBorder();
-            selectedNotes.get(i).resetColor();
+        for (Note note : selectedNotes) {
+            note.setSelected(false);
+            note.resetBorder();
+            note.resetColor();
         }
         selectedNotes.clear();
     }
@@ -209,21 +237,19 @@ public class Selector extends Node {
         // we have to add our currently selected notes back to that list
         // if addToSelection is true...
         if (addToSelection) {
-            for (int i = 0; i < selectedNotes.size(); i++) {
-                selectingNotes.add(selectedNotes.get(i));
-            }
+            selectingNotes.addAll(selectedNotes);
         } else {
             deselectAllNotes();
         }
         if (!selectingNotes.isEmpty()) {
-            for (int i = 0; i < selectingNotes.size(); i++) {
-                currentNote = selectingNotes.get(i);
-                if (!selectedNotes.contains(currentNote)) {
-                    selectedNotes.add(currentNote);
+            boolean first = true;
+            for (Iterator<Note> it = selectingNotes.iterator(); it.hasNext(); ) {
+                currentNote = it.next();
+                if (selectedNotes.add(currentNote))
                     currentNote.setSelected(true);
-                }
                 // is this the first note?
-                if (i == 0) {
+                if (first) {
+                    first = false;
                     top = currentNote.getWorldTranslation().y + currentNote.getHeight()/2f + selectedPadding;
                     bottom = currentNote.getWorldTranslation().y + -currentNote.getHeight()/2f + -selectedPadding;
                     left = currentNote.getWorldTranslation().x + -currentNote.getWidth()/2f + -selectedPadding;
@@ -263,10 +289,10 @@ public class Selector extends Node {
         if (!selected.getLocalTranslation().equals(newPos)) {
             diff2d = new Vector2f(selected.getLocalTranslation().x, selected.getLocalTranslation().y).subtract(new Vector2f(newPos.x, newPos.y));
             // go through and change all the notes' positions
-            for (int i = 0; i < selectedNotes.size(); i++) {
-                selectedNotes.get(i).setLocalTranslation(selectedNotes.get(i).getLocalTranslation().x - diff2d.x,
-                        selectedNotes.get(i).getLocalTranslation().y - diff2d.y,
-                        selectedNotes.get(i).getLocalTranslation().z);
+            for (Note note : selectedNotes) {
+                note.setLocalTranslation(note.getLocalTranslation().x - diff2d.x,
+                        note.getLocalTranslation().y - diff2d.y,
+                        note.getLocalTranslation().z);
             }
             // and now we do the same for the selected geo itself...
             selected.setLocalTranslation(selected.getLocalTranslation().x - diff2d.x,
@@ -280,9 +306,9 @@ public class Selector extends Node {
     
     // delete selected notes...
     public void deleteSelected() {
-        for (int i = 0; i < selectedNotes.size(); i++) {
+        for (Note note : selectedNotes) {
             // remove the notes from the track...
-            selectedNotes.get(i).deleteMe();
+            note.deleteMe();
         }
         selectingNotes.clear();
         selectedNotes.clear();
@@ -310,10 +336,10 @@ public class Selector extends Node {
     public float getPadding() {
         return selectedPadding;
     }
-    public List<Note> getSelectedNotes() {
+    public Set<Note> getSelectedNotes() {
         return selectedNotes;
     }
-    public List<Note> getSelectingNotes() {
+    public Set<Note> getSelectingNotes() {
         return selectingNotes;
     }
     public List<Note> getClipboardNotes() {
@@ -0,0 +1,452 @@
+/*
+ * Draws a frame on the CPU into an int[] (ARGB, top row first), so frames can be made without
+ * an OpenGL context... notes are shaded the same way shapeFrag.frag / batchShapeFrag.frag do it
+ * (rounded corners, border, gradient), lines are drawn as wide as glLineWidth would make them,
+ * and everything is drawn back to front by z, same as our transparent bucket (see CustomComparator)
+ *
+ * a frame is built by adding shapes and lines (or whole tracks and grid lines) and then calling render()...
+ * the image is split into horizontal strips, and each strip is drawn on its own thread
+ * (only what the editor shows while it's exporting is drawn: notes, phantoms, grid lines,
+ * connecting lines and the play line... not the cursor, selection, controls or labels)
+ */
+package mygame;
+
+import com.jme3.material.MatParam;
+import com.jme3.material.Material;
+import com.jme3.material.RenderState;
+import com.jme3.math.ColorRGBA;
+import com.jme3.renderer.Camera;
+import com.jme3.scene.Spatial;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class SoftwareRenderer {
+
+    private static final byte SHAPE = 0;
+    private static final byte LINE = 1;
+
+    // what's stored for each item... (shapes and lines share the same slots)
+    private static final int ITEM_SIZE = 19;
+    // shapes: center x, y, width, height, scale x, y, radiusW, radiusH, border size, curve, gradient, fill rgba, border rgba
+    private static final int CX = 0, CY = 1, W = 2, H = 3, SX = 4, SY = 5, RW = 6, RH = 7, BORDER = 8, CURVE = 9, GRADIENT = 10, FILL = 11, BORDER_COLOR = 15;
+    // lines: x1, y1, x2, y2, width in pixels, blend (0 or 1), rgba
+    private static final int X1 = 0, Y1 = 1, X2 = 2, Y2 = 3, LINE_WIDTH = 4, BLEND = 5, LINE_COLOR = 6;
+
+    private int width, height;
+    private int[] pixels;
+    private int background = 0xFF000000;
+
+    // the part of the world we're looking at
+    private float viewLeft = 0f, viewRight = 1f, viewBottom = 0f, viewTop = 1f;
+
+    // the display list
+    private float[] items = new float[256 * ITEM_SIZE];
+    private byte[] kinds = new byte[256];
+    private float[] itemZ = new float[256];
+    private long[] order = new long[256]; // z key in the high bits, item number in the low bits
+    private int count = 0;
+
+    // threads...
+    private int threadCount;
+    private ExecutorService executor = null;
+    private List<Callable<Object>> strips = new ArrayList<Callable<Object>>();
+    private long renderNanos = 0;
+    private int framesRendered = 0;
+
+    private List<Note> trackNotes = new ArrayList<Note>(); // (scratch for addTrack)
+    private FrameState.Look look = new FrameState.Look();
+
+    public SoftwareRenderer(int width, int height, int threadCount) {
+        this.threadCount = Math.max(1, threadCount);
+        setSize(width, height);
+    }
+
+    public void setSize(int width, int height) {
+        if (pixels != null && width == this.width && height == this.height)
+            return;
+        this.width = width;
+        this.height = height;
+        pixels = new int[width * height];
+        // a few more strips than threads, so a thread that finishes early can take another
+        strips.clear();
+        int stripCount = (threadCount == 1) ? 1 : Math.min(threadCount * 4, Math.max(height, 1));
+        for (int i = 0; i < stripCount; i++) {
+            final int y0 = (height * i) / stripCount;
+            final int y1 = (height * (i + 1)) / stripCount;
+            strips.add(new Callable<Object>() {
+                public Object call() {
+                    drawStrip(y0, y1);
+                    return null;
+                }
+            });
+        }
+    }
+
+    // looks at the world the way a parallel projection camera does
+    public void setView(Camera cam) {
+        float x = cam.getLocation().x;
+        float y = cam.getLocation().y;
+        setView(x + cam.getFrustumLeft(), x + cam.getFrustumRight(), y + cam.getFrustumBottom(), y + cam.getFrustumTop());
+    }
+
+    public void setView(float left, float right, float bottom, float top) {
+        viewLeft = left;
+        viewRight = right;
+        viewBottom = bottom;
+        viewTop = top;
+    }
+
+    public void setBackground(ColorRGBA color) {
+        background = toARGB(color.r, color.g, color.b, color.a);
+    }
+
+    // starts a new frame
+    public void clear() {
+        count = 0;
+    }
+
+    // a note shape, like one drawn with the shape shader... centered at x, y and scaled around its center,
+    // width, height, radii and border size are before scaling (in the note's own units, as the shader sees them)
+    public void addShape(float x, float y, float z, float shapeWidth, float shapeHeight, float scaleX, float scaleY,
+            float radiusW, float radiusH, float borderSize, float curve, boolean gradient, ColorRGBA fill, ColorRGBA border) {
+        int i = newItem(SHAPE, z) * ITEM_SIZE;
+        items[i + CX] = x;
+        items[i + CY] = y;
+        items[i + W] = shapeWidth;
+        items[i + H] = shapeHeight;
+        items[i + SX] = scaleX;
+        items[i + SY] = scaleY;
+        items[i + RW] = radiusW;
+        items[i + RH] = radiusH;
+        items[i + BORDER] = borderSize;
+        items[i + CURVE] = curve;
+        items[i + GRADIENT] = gradient ? 1f : 0f;
+        putColor(i + FILL, fill);
+        putColor(i + BORDER_COLOR, border);
+    }
+
+    // a line, lineWidth pixels wide... blended by its alpha if blend is true, otherwise written as is
+    public void addLine(float x1, float y1, float x2, float y2, float z, float lineWidth, ColorRGBA color, boolean blend) {
+        int i = newItem(LINE, z) * ITEM_SIZE;
+        items[i + X1] = x1;
+        items[i + Y1] = y1;
+        items[i + X2] = x2;
+        items[i + Y2] = y2;
+        items[i + LINE_WIDTH] = Math.max(lineWidth, 1f);
+        items[i + BLEND] = blend ? 1f : 0f;
+        putColor(i + LINE_COLOR, color);
+    }
+
+    // every note of the track we can see (and their phantoms), and its connecting lines if they're on
+    public void addTrack(Track track) {
+        float trackX = track.getWorldTranslation().x;
+        float trackY = track.getWorldTranslation().y;
+        float trackZ = track.getWorldTranslation().z;
+        trackNotes.clear();
+        track.getNotesOverlapping(viewLeft - trackX, viewRight - trackX, trackNotes);
+        for (int i = 0; i < trackNotes.size(); i++) {
+            trackNotes.get(i).drawTo(this, trackX, trackY, trackZ);
+        }
+        trackNotes.clear();
+        ConnectingLines lines = track.getConnectingLines();
+        if (lines != null)
+            lines.drawTo(this, trackX, trackY);
+    }
+
+    // the same, but with every note looking the way it does at a frame of an export (see FrameState),
+    // rather than the way it looks right now... so frames can be drawn in any order
+    public void addTrack(Track track, FrameState state, int frame) {
+        float trackX = track.getWorldTranslation().x;
+        float trackY = track.getWorldTranslation().y;
+        float trackZ = track.getWorldTranslation().z;
+        trackNotes.clear();
+        track.getNotesOverlapping(viewLeft - trackX, viewRight - trackX, trackNotes);
+        for (int i = 0; i < trackNotes.size(); i++) {
+            Note note = trackNotes.get(i);
+            note.drawTo(this, trackX, trackY, trackZ, state.evaluate(note, frame, look));
+        }
+        trackNotes.clear();
+        ConnectingLines lines = track.getConnectingLines();
+        if (lines != null)
+            lines.drawTo(this, trackX, trackY);
+    }
+
+    // a set of grid lines, if it's in the scene
+    public void addGridLines(GridLines lines) {
+        Spatial geo = lines.getGeometry();
+        if (geo.getParent() == null || geo.getParent().getParent() == null)
+            return; // (not attached, or the grid itself is hidden)
+        Material mat = lines.getGeometry().getMaterial();
+        ColorRGBA color = getColor(mat);
+        boolean blend = isBlended(mat);
+        float x = geo.getParent().getWorldTranslation().x;
+        float y = geo.getParent().getWorldTranslation().y;
+        float[] ends = lines.getEnds();
+        for (int i = 0; i < lines.size(); i++) {
+            int e = i * 4;
+            addLine(x + ends[e], y + ends[e+1], x + ends[e+2], y + ends[e+3], lines.getZ(), lines.getLineWidth(), color, blend);
+        }
+    }
+
+    // a material's "Color" (white if it doesn't have one, same as Unshaded)
+    public static ColorRGBA getColor(Material mat) {
+        MatParam param = (mat != null) ? mat.getParam("Color") : null;
+        if (param != null && param.getValue() instanceof ColorRGBA)
+            return (ColorRGBA) param.getValue();
+        return ColorRGBA.White;
+    }
+
+    public static boolean isBlended(Material mat) {
+        return mat != null && mat.getAdditionalRenderState().getBlendMode() != RenderState.BlendMode.Off;
+    }
+
+    private int newItem(byte kind, float z) {
+        if (count == kinds.length) {
+            int capacity = count * 2;
+            items = Arrays.copyOf(items, capacity * ITEM_SIZE);
+            kinds = Arrays.copyOf(kinds, capacity);
+            itemZ = Arrays.copyOf(itemZ, capacity);
+            order = Arrays.copyOf(order, capacity);
+        }
+        kinds[count] = kind;
+        itemZ[count] = z;
+        return count++;
+    }
+
+    private void putColor(int at, ColorRGBA color) {
+        items[at] = color.r;
+        items[at + 1] = color.g;
+        items[at + 2] = color.b;
+        items[at + 3] = color.a;
+    }
+
+    // draws everything added since clear()
+    public int[] render() {
+        long start = System.nanoTime();
+        // back to front... things at the same z keep the order they were added in
+        for (int i = 0; i < count; i++) {
+            order[i] = ((long) CustomComparator.keyOf(itemZ[i]) << 32) | i;
+        }
+        Arrays.sort(order, 0, count);
+        if (strips.size() == 1) {
+            drawStrip(0, height);
+        } else {
+            if (executor == null) {
+                executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                    private int made = 0;
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "SoftwareRenderer-" + (made++));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            try {
+                List<Future<Object>> done = executor.invokeAll(strips);
+                for (int i = 0; i < done.size(); i++) {
+                    done.get(i).get(); // (so an exception in a strip isn't lost)
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                throw new RuntimeException(ex.getCause());
+            }
+        }
+        renderNanos += System.nanoTime() - start;
+        framesRendered++;
+        return pixels;
+    }
+
+    private void drawStrip(int y0, int y1) {
+        Arrays.fill(pixels, y0 * width, y1 * width, background);
+        for (int n = 0; n < count; n++) {
+            int item = (int) order[n];
+            if (kinds[item] == SHAPE)
+                drawShape(item * ITEM_SIZE, y0, y1);
+            else
+                drawLine(item * ITEM_SIZE, y0, y1);
+        }
+    }
+
+    // world to pixels... pixel centers are at +0.5, rows count down from the top
+    private float toPixelX(float x) {
+        return (x - viewLeft) / (viewRight - viewLeft) * width;
+    }
+    private float toPixelY(float y) {
+        return (viewTop - y) / (viewTop - viewBottom) * height;
+    }
+
+    private void drawShape(int i, int y0, int y1) {
+        float cx = items[i + CX], cy = items[i + CY];
+        float shapeW = items[i + W], shapeH = items[i + H];
+        float scaleX = items[i + SX], scaleY = items[i + SY];
+        float halfW = shapeW / 2f, halfH = shapeH / 2f;
+        // the pixels the scaled quad covers
+        int px0 = Math.max(0, ceilCenter(toPixelX(cx - halfW * scaleX)));
+        int px1 = Math.min(width, ceilCenter(toPixelX(cx + halfW * scaleX)));
+        int py0 = Math.max(y0, ceilCenter(toPixelY(cy + halfH * scaleY)));
+        int py1 = Math.min(y1, ceilCenter(toPixelY(cy - halfH * scaleY)));
+        if (px0 >= px1 || py0 >= py1 || scaleX == 0f || scaleY == 0f)
+            return;
+        float rW = items[i + RW], rH = items[i + RH];
+        float borderSize = items[i + BORDER], curve = items[i + CURVE];
+        boolean gradient = items[i + GRADIENT] > 0.5f;
+        float innerW = halfW - borderSize;
+        float innerH = halfH - borderSize;
+        // pixel centers in the note's own units (0 to width, 0 to height inside the note, like myPos in the shader)
+        float stepX = ((viewRight - viewLeft) / width) / scaleX;
+        float stepY = -((viewTop - viewBottom) / height) / scaleY;
+        float startX = (viewLeft - cx) / scaleX + halfW + 0.5f * stepX;
+        float startY = (viewTop - cy) / scaleY + halfH + 0.5f * stepY;
+        for (int py = py0; py < py1; py++) {
+            float localY = startY + py * stepY;
+            int row = py * width;
+            for (int px = px0; px < px1; px++) {
+                float localX = startX + px * stepX;
+                if (outside(localX, localY, halfW, halfH, rW, rH, shapeW, shapeH, curve))
+                    continue; // (discard)
+                int color = BORDER_COLOR;
+                float shade = 1f;
+                if (Math.abs(localX - halfW) < innerW && Math.abs(localY - halfH) < innerH) {
+                    float innerX = (((localX - halfW) * halfW) / innerW) + halfW;
+                    float innerY = (((localY - halfH) * halfH) / innerH) + halfH;
+                    if (!outside(innerX, innerY, halfW, halfH, rW, rH, shapeW, shapeH, curve)) {
+                        color = FILL;
+                        if (gradient)
+                            shade = 1f - (localY * 0.5f);
+                    }
+                }
+                int c = i + color;
+                blend(row + px, items[c] * shade, items[c+1] * shade, items[c+2] * shade, items[c+3]);
+            }
+        }
+    }
+
+    // calculate() from the shape shaders... true if the point is cut off by the rounded corner
+    private static boolean outside(float x0, float y0, float halfW, float halfH, float rW, float rH, float shapeW, float shapeH, float curve) {
+        float x = Math.abs(x0 - halfW);
+        float y = Math.abs(y0 - halfH);
+        if (x < halfW - rW || y < halfH - rH)
+            return false;
+        // we have to find a new distance...
+        if (x0 > halfW)
+            x = (x0 - shapeW) + rW;
+        else
+            x = x0 - rW;
+        if (y0 > halfH)
+            y = (y0 - shapeH) + rH;
+        else
+            y = y0 - rH;
+        float dx = Math.abs(x) / Math.abs(rW);
+        float dy = Math.abs(y) / Math.abs(rH);
+        if (curve == 2f)
+            return dx*dx + dy*dy > 1f;
+        return (float) (Math.pow(dx, curve) + Math.pow(dy, curve)) > 1f;
+    }
+
+    private void drawLine(int i, int y0, int y1) {
+        float ax = toPixelX(items[i + X1]), ay = toPixelY(items[i + Y1]);
+        float bx = toPixelX(items[i + X2]), by = toPixelY(items[i + Y2]);
+        float halfWidth = items[i + LINE_WIDTH] / 2f;
+        int px0 = Math.max(0, ceilCenter(Math.min(ax, bx) - halfWidth));
+        int px1 = Math.min(width, ceilCenter(Math.max(ax, bx) + halfWidth));
+        int py0 = Math.max(y0, ceilCenter(Math.min(ay, by) - halfWidth));
+        int py1 = Math.min(y1, ceilCenter(Math.max(ay, by) + halfWidth));
+        if (px0 >= px1 || py0 >= py1)
+            return;
+        boolean blend = items[i + BLEND] > 0.5f;
+        int c = i + LINE_COLOR;
+        int opaque = toARGB(items[c], items[c+1], items[c+2], items[c+3]);
+        float dx = bx - ax, dy = by - ay;
+        float length2 = dx*dx + dy*dy;
+        for (int py = py0; py < py1; py++) {
+            float y = py + 0.5f;
+            int row = py * width;
+            for (int px = px0; px < px1; px++) {
+                float x = px + 0.5f;
+                // how far along the line the pixel is, and how far off to the side
+                float t = (length2 > 0f) ? ((x - ax) * dx + (y - ay) * dy) / length2 : 0f;
+                if (t < 0f || t > 1f)
+                    continue;
+                float offX = x - (ax + dx * t);
+                float offY = y - (ay + dy * t);
+                if (offX*offX + offY*offY >= halfWidth * halfWidth)
+                    continue;
+                if (blend)
+                    blend(row + px, items[c], items[c+1], items[c+2], items[c+3]);
+                else
+                    pixels[row + px] = opaque;
+            }
+        }
+    }
+
+    // the first pixel whose center is at or past p
+    private static int ceilCenter(float p) {
+        return (int) Math.ceil(p - 0.5f);
+    }
+
+    // glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA), which is what BlendMode.Alpha is
+    private void blend(int at, float r, float g, float b, float a) {
+        int dst = pixels[at];
+        float keep = 1f - a;
+        float dstA = ((dst >>> 24) & 0xFF) / 255f;
+        float dstR = ((dst >>> 16) & 0xFF) / 255f;
+        float dstG = ((dst >>> 8) & 0xFF) / 255f;
+        float dstB = (dst & 0xFF) / 255f;
+        pixels[at] = toARGB(clamp(r) * a + dstR * keep, clamp(g) * a + dstG * keep, clamp(b) * a + dstB * keep, clamp(a) * a + dstA * keep);
+    }
+
+    private static float clamp(float v) {
+        return (v < 0f) ? 0f : ((v > 1f) ? 1f : v);
+    }
+
+    public static int toARGB(float r, float g, float b, float a) {
+        return (toByte(a) << 24) | (toByte(r) << 16) | (toByte(g) << 8) | toByte(b);
+    }
+
+    private static int toByte(float v) {
+        return Math.round(clamp(v) * 255f);
+    }
+
+    // stops the strip threads
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    public String getReport() {
+        return "Software renderer: " + framesRendered + " frames at " + width + "x" + height + ", "
+                + (framesRendered > 0 ? (renderNanos / 1000000f / framesRendered) : 0f) + " ms a frame on " + threadCount + " threads";
+    }
+
+    // gets and sets...
+    public int[] getPixels() {
+        return pixels;
+    }
+    public int getWidth() {
+        return width;
+    }
+    public int getHeight() {
+        return height;
+    }
+    public int getItemCount() {
+        return count;
+    }
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * The tempo map turns positions on the music grid into seconds and back...
+ * each tempo starts a segment, and the seconds at the start of every segment
+ * are added up ahead of time, so a lookup is just a binary search
+ */
+package mygame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class TempoMap {
+
+    private float widthPerWholeNote; // world units per whole note, same as the music grid
+    private int ppq; // MIDI ticks per quarter note
+    private float defaultTempo; // used before the first tempo
+    private List<float[]> pending = new ArrayList<float[]>(); // {x, tempo, ramp} until build() is called
+
+    // the segments... segment i starts at startX[i] and runs until startX[i+1]
+    private double[] startX = new double[0];
+    private double[] startTempo = new double[0];
+    private double[] slope = new double[0]; // tempo change per world unit, 0 unless ramping to the next tempo
+    private double[] startSeconds = new double[0];
+    private int count = 0;
+
+    public TempoMap(float widthPerWholeNote, int ppq, float defaultTempo) {
+        this.widthPerWholeNote = widthPerWholeNote;
+        this.ppq = ppq;
+        this.defaultTempo = defaultTempo;
+    }
+
+    // builds a tempo map from the tempos in a MIDI file (no ramps in those)
+    public static TempoMap fromMIDI(MIDIFile midiFile, float widthPerWholeNote, float defaultTempo) {
+        TempoMap map = new TempoMap(widthPerWholeNote, midiFile.getPPQ(), defaultTempo);
+        for (int i = 0; i < midiFile.getMyTempos().size(); i++) {
+            map.addTempo(map.ticksToX(midiFile.getMyTempos().get(i).pos), midiFile.getMyTempos().get(i).tempo, false);
+        }
+        map.build();
+        return map;
+    }
+
+    // builds a tempo map from the tempo controls on the music grid
+    // (connected controls ramp linearly to the next one, like getClosestTempo does)
+    public static TempoMap fromTempoControls(List<TempoControl> tempoControls, float widthPerWholeNote, int ppq, float defaultTempo) {
+        TempoMap map = new TempoMap(widthPerWholeNote, ppq, defaultTempo);
+        for (int i = 0; i < tempoControls.size(); i++) {
+            TempoControl control = tempoControls.get(i);
+            boolean ramp = control.getConnected() && control.getNextTempo() != null;
+            map.addTempo(control.getLocalTranslation().x, control.getTempoControl().getValue(), ramp);
+        }
+        map.build();
+        return map;
+    }
+
+    // adds a tempo at position x... call build() once they've all been added
+    public void addTempo(float x, float tempo, boolean rampToNext) {
+        pending.add(new float[] {x, tempo, rampToNext ? 1f : 0f});
+    }
+
+    // sorts the tempos and adds up the seconds at the start of each segment
+    public void build() {
+        Collections.sort(pending, new Comparator<float[]>() {
+            public int compare(float[] t1, float[] t2) {
+                return Float.compare(t1[0], t2[0]);
+            }
+        });
+        // before the first tempo we play at the default tempo, starting at 0
+        boolean needsDefault = pending.isEmpty() || pending.get(0)[0] > 0f;
+        count = pending.size() + (needsDefault ? 1 : 0);
+        startX = new double[count];
+        startTempo = new double[count];
+        slope = new double[count];
+        startSeconds = new double[count];
+        int offset = 0;
+        if (needsDefault) {
+            startX[0] = 0;
+            startTempo[0] = defaultTempo;
+            offset = 1;
+        }
+        for (int i = 0; i < pending.size(); i++) {
+            startX[i+offset] = pending.get(i)[0];
+            startTempo[i+offset] = pending.get(i)[1];
+        }
+        for (int i = offset; i < count-1; i++) {
+            float[] tempo = pending.get(i-offset);
+            double distance = startX[i+1] - startX[i];
+            if (tempo[2] != 0f && distance > 0)
+                slope[i] = (startTempo[i+1] - startTempo[i]) / distance;
+        }
+        startSeconds[0] = 0;
+        for (int i = 1; i < count; i++) {
+            startSeconds[i] = startSeconds[i-1] + segmentSeconds(i-1, startX[i] - startX[i-1]);
+        }
+        // shift everything so that x = 0 is 0 seconds
+        double zeroSeconds = xToSeconds(0);
+        for (int i = 0; i < count; i++) {
+            startSeconds[i] -= zeroSeconds;
+        }
+        pending.clear();
+    }
+
+    // seconds it takes to play dx world units into segment i
+    // (we multiply by 240 because bpm is divided 60 (60 s in a minute) and
+    // widthPerWholeNote is divided by 4 to get width per quarter note... 60*4 = 240)
+    private double segmentSeconds(int i, double dx) {
+        double k = 240.0 / widthPerWholeNote;
+        if (slope[i] == 0)
+            return k * dx / startTempo[i];
+        // the tempo changes linearly with x, so the seconds are the integral of 1/tempo
+        double endTempo = startTempo[i] + slope[i] * dx;
+        return (k / slope[i]) * Math.log(endTempo / startTempo[i]);
+    }
+
+    // world units played in the first s seconds of segment i (the inverse of segmentSeconds)
+    private double segmentX(int i, double s) {
+        double k = 240.0 / widthPerWholeNote;
+        if (slope[i] == 0)
+            return s * startTempo[i] / k;
+        double endTempo = startTempo[i] * Math.exp(slope[i] * s / k);
+        return (endTempo - startTempo[i]) / slope[i];
+    }
+
+    // finds the last segment starting at or before value in the given (sorted) column
+    private int findSegment(double[] column, double value) {
+        int index = Arrays.binarySearch(column, 0, count, value);
+        if (index < 0)
+            index = -index - 2; // insertion point - 1
+        else {
+            while (index+1 < count && column[index+1] == value) { // several tempos in one spot, the last one counts
+                index++;
+            }
+        }
+        return Math.max(index, 0);
+    }
+
+    public double xToSeconds(double x) {
+        int i = findSegment(startX, x);
+        return startSeconds[i] + segmentSeconds(i, x - startX[i]);
+    }
+
+    public double secondsToX(double seconds) {
+        int i = findSegment(startSeconds, seconds);
+        return startX[i] + segmentX(i, seconds - startSeconds[i]);
+    }
+
+    public double ticksToSeconds(double ticks) {
+        return xToSeconds(ticksToX(ticks));
+    }
+
+    public double secondsToTicks(double seconds) {
+        return xToTicks(secondsToX(seconds));
+    }
+
+    // the tempo (in bpm) at position x
+    public float getTempoAtX(double x) {
+        int i = findSegment(startX, x);
+        return (float) (startTempo[i] + slope[i] * (x - startX[i]));
+    }
+
+    // here, we multiply by 0.25 because ppq is ticks per quarter note...
+    public float ticksToX(double ticks) {
+        return (float) ((ticks / ppq) * widthPerWholeNote * 0.25);
+    }
+
+    public double xToTicks(double x) {
+        return (x / (widthPerWholeNote * 0.25)) * ppq;
+    }
+
+    // gets and sets...
+    public int getSegmentCount() {
+        return count;
+    }
+    public float getWidthPerWholeNote() {
+        return widthPerWholeNote;
+    }
+    public int getPPQ() {
+        return ppq;
+    }
+
+}
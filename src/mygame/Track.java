@@ -9,9 +9,8 @@ import com.jme3.math.ColorRGBA;
 import com.jme3.math.Vector3f;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Node;
-import com.jme3.scene.shape.Line;
+import com.jme3.scene.Spatial;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -21,7 +20,7 @@ import java.util.List;
 public class Track extends Node {
     
     private ArrayList<Note> myNotes = new ArrayList<Note>(); // where we store all the notes in this track
-    private ArrayList<Geometry> connectingLines = new ArrayList<Geometry>();
+    private ConnectingLines connectingLines = null; // (null when they're turned off)
     private ColorRGBA myColor = ColorRGBA.Green;
     private ControlFloat myRed, myBlue, myGreen;
     private Float colorChangeAmount = 0.01f;
@@ -40,6 +39,29 @@ public class Track extends Node {
     private NoteStyle myStyle;
     private boolean useGradient;
     
+    // draws all our notes as one mesh, if batching is turned on (null otherwise)
+    private TrackBatch batch = null;
+    
+    // playback... (see playNotes)
+    public static final float PREPLAY_DISTANCE = 2f; // begin preplay animation 2 units before turning notes on
+    private NoteScheduler scheduler = new NoteScheduler(PREPLAY_DISTANCE);
+    private Note[] scheduledNotes = null; // the notes the scheduler knows about, by index
+    private List<Note> fadingNotes = new ArrayList<Note>(); // turned off, but their phantom is still fading
+    private boolean playAnimateSize = true;
+    
+    // where each note starts and ends, for finding notes by x without going through all of them
+    // (x is in the track's space... tracks sit at the origin, so it's the same as world x)
+    private IntervalIndex<Note> noteIndex = new IntervalIndex<Note>();
+    private List<Note> queryNotes = new ArrayList<Note>(); // reused by getNoteValuesOnX
+    
+    // windowing... when it's on, only notes near what the camera can see are attached
+    // (and in the batch), so the scene doesn't grow with the length of the score
+    private boolean windowed = false;
+    private float windowX1, windowX2; // in track space
+    private List<Note> shownNotes = new ArrayList<Note>(); // the notes in the window right now
+    private List<Note> windowQuery = new ArrayList<Note>();
+    private int windowStamp = 0;
+    
     public Track(AssetManager assetManager, MIDISynth midiSynth, int pluginNum, int midiChannel, MusicGrid grid, ColorRGBA myColor, 
             int index, NoteStyle newStyle, boolean useGradient) {
         this.assetManager = assetManager;
@@ -61,8 +83,130 @@ public class Track extends Node {
     }
     
     public void deleteNote(Note note) {
-        myNotes.remove(note);
+        if (myNotes.remove(note)) {
+            scheduledNotes = null; // (phantoms delete themselves through here too, but they were never scheduled)
+            if (windowed && note.isInWindow())
+                shownNotes.remove(note);
+        }
+        Note previous = (connectingLines != null) ? noteIndex.getPrevious(note) : null;
+        noteIndex.remove(note);
+        if (connectingLines != null) {
+            connectingLines.remove(note);
+            relink(previous);
+        }
         detachChild(note);
+        if (batch != null)
+            batch.remove(note);
+    }
+    
+    // turns batching on or off... when it's on, the notes' own quads are hidden
+    // and the track draws all of them with a single mesh instead
+    public void setBatched(boolean batched) {
+        if (batched && batch == null) {
+            batch = new TrackBatch(assetManager);
+            for (int i = 0; i < myNotes.size(); i++) {
+                if (myNotes.get(i).isInWindow())
+                    batch.add(myNotes.get(i));
+            }
+            attachChild(batch.getGeometry());
+        } else if (!batched && batch != null) {
+            for (int i = 0; i < myNotes.size(); i++) {
+                batch.remove(myNotes.get(i));
+            }
+            detachChild(batch.getGeometry());
+            batch = null;
+        }
+    }
+    
+    // shows only the notes overlapping x1 to x2 (world x), and takes the rest out of the scene...
+    // only notes coming into or leaving the window are touched
+    public void setWindow(float x1, float x2) {
+        if (!windowed) {
+            // every note is shown right now
+            windowed = true;
+            shownNotes.clear();
+            shownNotes.addAll(myNotes);
+        }
+        float offset = getWorldTranslation().x;
+        windowX1 = x1 - offset;
+        windowX2 = x2 - offset;
+        windowStamp++;
+        windowQuery.clear();
+        noteIndex.getOverlapping(windowX1, windowX2, windowQuery);
+        for (int i = 0; i < windowQuery.size(); i++) {
+            Note note = windowQuery.get(i);
+            note.setWindowStamp(windowStamp);
+            if (!note.isInWindow())
+                showNote(note);
+        }
+        // anything shown that the window didn't find has left it
+        int leaving = 0;
+        for (int i = shownNotes.size()-1; i >= 0; i--) {
+            Note note = shownNotes.get(i);
+            if (note.getWindowStamp() != windowStamp) {
+                note.setInWindow(false);
+                if (batch != null)
+                    batch.remove(note);
+                shownNotes.set(i, shownNotes.get(shownNotes.size()-1));
+                shownNotes.remove(shownNotes.size()-1);
+                leaving++;
+            }
+        }
+        if (leaving > 0)
+            detachLeftNotes();
+    }
+    
+    // takes every note that has left the window out of the scene, in one pass over our children...
+    // (detaching them one by one has jME copy the whole child list twice for every note)
+    private void detachLeftNotes() {
+        List<Spatial> children = getChildren();
+        for (int i = children.size()-1; i >= 0; i--) {
+            Spatial child = children.get(i);
+            if (child instanceof Note && !((Note) child).isInWindow())
+                detachChildAt(i);
+        }
+    }
+    
+    // turns windowing off, showing every note again
+    public void clearWindow() {
+        if (!windowed)
+            return;
+        windowed = false;
+        for (int i = 0; i < myNotes.size(); i++) {
+            if (!myNotes.get(i).isInWindow())
+                showNote(myNotes.get(i));
+        }
+        shownNotes.clear();
+    }
+    
+    private void showNote(Note note) {
+        note.setInWindow(true);
+        shownNotes.add(note);
+        attachChild(note);
+        if (batch != null)
+            batch.add(note);
+    }
+    
+    // (doesn't take it out of shownNotes, whoever calls this does that)
+    private void hideNote(Note note) {
+        note.setInWindow(false);
+        detachChild(note);
+        if (batch != null)
+            batch.remove(note);
+    }
+    
+    private boolean inWindow(float start, float end) {
+        return start < windowX2 && end > windowX1;
+    }
+    
+    // copy any note changes into the batch before we're drawn
+    @Override
+    public void updateLogicalState(float tpf) {
+        super.updateLogicalState(tpf);
+        if (batch != null)
+            batch.update();
+        if (connectingLines != null)
+            connectingLines.update();
     }
     
     public void setVelControl(boolean set) {
@@ -107,9 +251,24 @@ public class Track extends Node {
                 myColor, myBorderColor, false, myStyle, midiChannel, midiProgram, velocity, useGradient); 
         // move the note into position... this assumes the grid's bottom left is at 0, 0
         newNote.setLocalTranslation((pos.x + (noteWidth/2)), pos.y, zLayer);
-        // attach the note to this node
+        // attach the note to this node (unless it's outside our window)
         myNotes.add(newNote);
-        attachChild(newNote);
+        scheduledNotes = null;
+        noteIndex.add(newNote, pos.x, pos.x + noteWidth);
+        if (connectingLines != null) {
+            placeLineVertex(newNote);
+            relink(newNote);
+            relink(noteIndex.getPrevious(newNote));
+        }
+        if (!windowed) {
+            attachChild(newNote);
+            if (batch != null)
+                batch.add(newNote);
+        } else if (inWindow(pos.x, pos.x + noteWidth)) {
+            showNote(newNote);
+        } else {
+            newNote.setInWindow(false);
+        }
         if (soundState == 1) // if we're muted, the new note should be muted too...
             muteNotes(true);
         if (velControlToggle)
@@ -117,37 +276,54 @@ public class Track extends Node {
         return newNote;
     }
     
+    // the lines joining each note to the next one (by where they start), drawn as one mesh...
+    // once they're on, they're kept up to date as notes are added, moved and deleted
     public void showConnectingLines(boolean show) {
-        // clear current lines...
-        // detach all current connectingLines from node...
-        for (int i = 0; i < connectingLines.size(); i++) {
-            if (hasChild(connectingLines.get(i)))
-                detachChild(connectingLines.get(i));
-        }
-        connectingLines.clear();
-        
-        if (show) {            
-            // first, sort our notes...
-            Collections.sort(myNotes);
-            // now create our lines based on where each note begins...
-            for (int i = 1; i < myNotes.size(); i++) {
-                float posX1 = myNotes.get(i-1).getLocalTranslation().x - myNotes.get(i-1).getWidth()/2f;
-                float posX2 = myNotes.get(i).getLocalTranslation().x - myNotes.get(i).getWidth()/2f;
-                // we only want to create a line if the distance between two notes is not too great...
-                if (posX2 - posX1 < musicGrid.getWidthPerWholeNote()) {
-                    Line newLine = new Line(new Vector3f(posX1, myNotes.get(i-1).getLocalTranslation().y, 0f), new Vector3f(posX2, myNotes.get(i).getLocalTranslation().y, 0f));
-                    newLine.setLineWidth(2f);
-                    Geometry newGeo = new Geometry("connectLine", newLine);
-                    Material mat = new Material(assetManager, "Common/MatDefs/Misc/Unshaded.j3md");
-                    mat.setColor("Color", myColor);
-                    newGeo.setMaterial(mat);
-                    attachChild(newGeo);
-                    connectingLines.add(newGeo);
-                }
+        if (show && connectingLines == null) {
+            connectingLines = new ConnectingLines(RenderCache.get(assetManager).acquireUnshaded(myColor, false), 2f, 0f);
+            // the note index already has our notes in order...
+            queryNotes.clear();
+            noteIndex.getInOrder(queryNotes);
+            for (int i = 0; i < queryNotes.size(); i++) {
+                placeLineVertex(queryNotes.get(i));
+            }
+            for (int i = 1; i < queryNotes.size(); i++) {
+                linkIfClose(queryNotes.get(i-1), queryNotes.get(i));
             }
+            queryNotes.clear();
+            connectingLines.update();
+            attachChild(connectingLines.getGeometry());
+        } else if (!show && connectingLines != null) {
+            detachChild(connectingLines.getGeometry());
+            RenderCache.get(assetManager).release(connectingLines.getGeometry().getMaterial());
+            connectingLines = null;
         }
     }
     
+    // a connecting line starts (or ends) where the note starts
+    private void placeLineVertex(Note note) {
+        connectingLines.setVertex(note, noteIndex.getStart(note), note.getLocalTranslation().y);
+    }
+    
+    // works out the line from this note to whatever note comes next now
+    private void relink(Note note) {
+        if (note == null)
+            return;
+        Note next = noteIndex.getNext(note);
+        if (next != null)
+            linkIfClose(note, next);
+        else
+            connectingLines.unlink(note);
+    }
+    
+    // we only want a line if the distance between two notes is not too great...
+    private void linkIfClose(Note note, Note next) {
+        if (noteIndex.getStart(next) - noteIndex.getStart(note) < musicGrid.getWidthPerWholeNote())
+            connectingLines.link(note, next);
+        else
+            connectingLines.unlink(note);
+    }
+    
     /**
      * Turns off all notes
      */
@@ -169,60 +345,179 @@ public class Track extends Node {
      * @param playPos The X position of the play line
      */
     public void playNotes(float playPosX, boolean animateSize) {
-        // go through all our notes...
-        // turn on notes that should be turned on
-        // and turn off notes that should be turned off
-        float endX = 0.0f; // cut off notes 0.01 before their actual end...?
-        float preplayDistance = 2f; // begin preplay animation before turning note on...
-        for (int i = 0; i < myNotes.size(); i++) {
-            myNotes.get(i).updatePlayPos(playPosX);
-            float notePosX = myNotes.get(i).getLocalTranslation().x - (myNotes.get(i).getWidth()/2f);
-            if (notePosX <= playPosX + preplayDistance && notePosX > playPosX) {
-                float distance = notePosX - playPosX;
-                float distancePercent = 1f - (distance / preplayDistance);
-                if (animateSize)
-                    myNotes.get(i).preplay(distancePercent);
-            } else if (notePosX <= playPosX && playPosX < (notePosX + myNotes.get(i).getWidth() - endX)) { // the note should be on
-                if (myNotes.get(i).isOff()) {
-                    // turn it on!
-                    myNotes.get(i).turnOn(playPosX, animateSize);
-                    // send midi message, midi notes start at 21
-                    int noteValue = getNoteMIDIValue(myNotes.get(i));
-                    midiSynth.playMidiNote(myNotes.get(i).getMidiChannel(), myNotes.get(i).getMidiProgram(), noteValue, myNotes.get(i).getVel());
-                } else {
-                    myNotes.get(i).updateOn(playPosX, animateSize);
-                }
-            } else if (myNotes.get(i).isOn()) { // the note should be off
-                // turn it off...
-                myNotes.get(i).turnOff(animateSize);
-                // send midi message...
-                int noteValue = getNoteMIDIValue(myNotes.get(i));
-                midiSynth.stopMidiNote(myNotes.get(i).getMidiChannel(), noteValue);
-            }
+        // the scheduler only hands us notes that are coming up, playing or just finished,
+        // so we don't have to go through all our notes every frame
+        if (scheduledNotes == null)
+            schedulePlayback();
+        playAnimateSize = animateSize;
+        // notes that have turned off may still have a phantom fading out, which needs the play position too
+        for (int i = fadingNotes.size()-1; i >= 0; i--) {
+            fadingNotes.get(i).updatePlayPos(playPosX);
+            if (!fadingNotes.get(i).hasPhantom())
+                fadingNotes.remove(i);
+        }
+        scheduler.update(playPosX, playListener);
+    }
+    
+    // gives the scheduler where our notes start and end... notes can't be edited while playing,
+    // so this only happens when playing starts (or after notes were added or deleted)
+    private void schedulePlayback() {
+        scheduledNotes = myNotes.toArray(new Note[myNotes.size()]);
+        float[] starts = new float[scheduledNotes.length];
+        float[] ends = new float[scheduledNotes.length];
+        for (int i = 0; i < scheduledNotes.length; i++) {
+            starts[i] = scheduledNotes[i].getLocalTranslation().x - (scheduledNotes[i].getWidth()/2f);
+            ends[i] = starts[i] + scheduledNotes[i].getWidth();
         }
+        scheduler.setNotes(starts, ends, scheduledNotes.length);
     }
     
+    // what to do when the scheduler turns a note on or off...
+    private NoteScheduler.Listener playListener = new NoteScheduler.Listener() {
+        public void preplay(int note, float upcomingPercent) {
+            if (playAnimateSize)
+                scheduledNotes[note].preplay(upcomingPercent);
+        }
+        public void turnOn(int note, float playPosX) {
+            Note current = scheduledNotes[note];
+            current.updatePlayPos(playPosX);
+            // turn it on!
+            current.turnOn(playPosX, playAnimateSize);
+            // send midi message, midi notes start at 21
+            int noteValue = getNoteMIDIValue(current);
+            midiSynth.playMidiNote(current.getMidiChannel(), current.getMidiProgram(), noteValue, current.getVel());
+        }
+        public void updateOn(int note, float playPosX) {
+            scheduledNotes[note].updatePlayPos(playPosX);
+            scheduledNotes[note].updateOn(playPosX, playAnimateSize);
+        }
+        public void turnOff(int note, float playPosX) {
+            Note current = scheduledNotes[note];
+            current.updatePlayPos(playPosX);
+            // turn it off...
+            current.turnOff(playAnimateSize);
+            // send midi message...
+            int noteValue = getNoteMIDIValue(current);
+            midiSynth.stopMidiNote(current.getMidiChannel(), noteValue);
+            if (current.hasPhantom())
+                fadingNotes.add(current);
+        }
+    };
+    
     public void resetAllNotes() {
         midiSynth.stopAllNotes();
         for (int i = 0; i < myNotes.size(); i++) {
             myNotes.get(i).resetOff();
         }
+        // the notes might be edited before we play again
+        scheduledNotes = null;
+        fadingNotes.clear();
     }
     
     // returns values of notes playing on a currentX
     public List<Integer> getNoteValuesOnX(float currentX, List<Integer> noteValues) {
-        for (int i = 0; i < myNotes.size(); i++) {
-            if (!myNotes.get(i).isMuted()) {
-                float noteStart = myNotes.get(i).getWorldTranslation().x - (myNotes.get(i).getWidth()/2f);
-                float noteEnd = myNotes.get(i).getWorldTranslation().x + (myNotes.get(i).getWidth()/2f);
-                if (currentX >= noteStart && currentX < noteEnd) {
-                    noteValues.add(getNoteMIDIValue(myNotes.get(i)));
-                }
+        queryNotes.clear();
+        noteIndex.getAt(currentX - getWorldTranslation().x, queryNotes);
+        for (int i = 0; i < queryNotes.size(); i++) {
+            if (!queryNotes.get(i).isMuted()) {
+                noteValues.add(getNoteMIDIValue(queryNotes.get(i)));
             }
         }      
         return noteValues;
     }
     
+    // a note moved or changed size, so the index needs to know...
+    public void updateNoteSpan(Note note) {
+        if (noteIndex.contains(note)) {
+            float start = note.getLocalTranslation().x - (note.getWidth()/2f);
+            Note oldPrevious = (connectingLines != null) ? noteIndex.getPrevious(note) : null;
+            noteIndex.update(note, start, start + note.getWidth());
+            // the lines into and out of the note, where it was and where it is now
+            if (connectingLines != null) {
+                placeLineVertex(note);
+                relink(note);
+                relink(oldPrevious);
+                relink(noteIndex.getPrevious(note));
+            }
+            // it may have moved into or out of our window
+            if (windowed) {
+                boolean inside = inWindow(start, start + note.getWidth());
+                if (inside && !note.isInWindow()) {
+                    showNote(note);
+                } else if (!inside && note.isInWindow()) {
+                    hideNote(note);
+                    shownNotes.remove(note);
+                }
+            }
+        }
+    }
+    
+    // notes sounding at x (start <= x < end)
+    public List<Note> getNotesAt(float x, List<Note> store) {
+        return noteIndex.getAt(x, store);
+    }
+    
+    // notes overlapping x1 to x2
+    public List<Note> getNotesOverlapping(float x1, float x2, List<Note> store) {
+        return noteIndex.getOverlapping(x1, x2, store);
+    }
+    
+    // the first note starting after x, or null
+    public Note getNextNoteAfter(float x) {
+        return noteIndex.getNextStartAfter(x);
+    }
+    
+    // the same questions, asked of all the tracks at once...
+    public static List<Note> getNotesAt(List<Track> tracks, float x, List<Note> store) {
+        for (int i = 0; i < tracks.size(); i++) {
+            tracks.get(i).getNotesAt(x, store);
+        }
+        return store;
+    }
+    public static List<Note> getNotesOverlapping(List<Track> tracks, float x1, float x2, List<Note> store) {
+        for (int i = 0; i < tracks.size(); i++) {
+            tracks.get(i).getNotesOverlapping(x1, x2, store);
+        }
+        return store;
+    }
+    // the note covering the point (x, y), or null... where notes overlap, the one on top (highest z) wins
+    // (this is what the mouse is hovering over, found from the note index rather than by casting a ray at the scene)
+    public static Note getNoteAtPoint(List<Track> tracks, float x, float y, List<Note> store) {
+        Note best = null;
+        float bestZ = 0f;
+        for (int i = 0; i < tracks.size(); i++) {
+            store.clear();
+            tracks.get(i).getNotesAt(x - tracks.get(i).getWorldTranslation().x, store);
+            for (int j = 0; j < store.size(); j++) {
+                Note note = store.get(j);
+                Vector3f pos = note.getWorldTranslation();
+                if (!note.isInWindow() || Math.abs(y - pos.y) > note.getHeight()/2f)
+                    continue;
+                if (best == null || pos.z > bestZ) {
+                    best = note;
+                    bestZ = pos.z;
+                }
+            }
+        }
+        store.clear();
+        return best;
+    }
+    public static Note getNextNoteAfter(List<Track> tracks, float x) {
+        Note next = null;
+        float nextStart = 0f;
+        for (int i = 0; i < tracks.size(); i++) {
+            Note note = tracks.get(i).getNextNoteAfter(x);
+            if (note != null) {
+                float start = tracks.get(i).getNoteIndex().getStart(note);
+                if (next == null || start < nextStart) {
+                    next = note;
+                    nextStart = start;
+                }
+            }
+        }
+        return next;
+    }
+    
     // updates the track's color based on passed in color...
     public void updateMyColor(ColorRGBA myNewColor) {
         ColorRGBA newColor = myNewColor.clone();
@@ -249,6 +544,25 @@ public class Track extends Node {
     public ColorRGBA getColor() {
         return myColor;
     }
+    public IntervalIndex<Note> getNoteIndex() {
+        return noteIndex;
+    }
+    public TrackBatch getBatch() {
+        return batch;
+    }
+    public ConnectingLines getConnectingLines() {
+        return connectingLines;
+    }
+    public boolean isBatched() {
+        return batch != null;
+    }
+    public boolean isWindowed() {
+        return windowed;
+    }
+    // how many of our notes are in the scene right now
+    public int getShownNoteCount() {
+        return windowed ? shownNotes.size() : myNotes.size();
+    }
     public float getZLayer() {
         return zLayer;
     }
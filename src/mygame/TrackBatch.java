@@ -0,0 +1,158 @@
+/*
+ * Draws all of a track's notes as one mesh, rather than one geometry and material per note...
+ * notes tell the batch when they change, and once a frame the batch copies
+ * whatever changed into the mesh's vertex buffers
+ */
+package mygame;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.material.Material;
+import com.jme3.material.RenderState;
+import com.jme3.renderer.queue.RenderQueue;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.util.BufferUtils;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class TrackBatch {
+
+    private NoteBatchBuffer buffer = new NoteBatchBuffer();
+    private List<Note> slots = new ArrayList<Note>(); // which note is in each slot
+    private List<Note> dirtyNotes = new ArrayList<Note>(); // notes that changed since the last update
+    private Mesh mesh;
+    private Geometry geo;
+    private Material mat;
+    private IntBuffer indices;
+    private int drawnNotes = -1; // how many notes the index buffer currently covers
+
+    public TrackBatch(AssetManager assetManager) {
+        mesh = new Mesh();
+        mesh.setDynamic();
+        geo = new ZSortedGeometry("TrackBatch", mesh);
+        mat = new Material(assetManager, "Materials/BatchShape.j3md");
+        mat.getAdditionalRenderState().setBlendMode(RenderState.BlendMode.Alpha);
+        geo.setMaterial(mat);
+        geo.setQueueBucket(RenderQueue.Bucket.Transparent);
+    }
+
+    public void add(Note note) {
+        if (note.getBatchSlot() >= 0)
+            return;
+        note.setBatchSlot(buffer.add());
+        slots.add(note);
+        markDirty(note);
+    }
+
+    public void remove(Note note) {
+        int slot = note.getBatchSlot();
+        if (slot < 0 || slot >= slots.size() || slots.get(slot) != note)
+            return;
+        int moved = buffer.remove(slot);
+        Note last = slots.remove(slots.size()-1);
+        if (moved >= 0) {
+            slots.set(slot, last);
+            last.setBatchSlot(slot);
+        }
+        note.setBatchSlot(-1);
+    }
+
+    // called by notes when they move, resize or change color...
+    public void markDirty(Note note) {
+        if (note.getBatchSlot() >= 0 && !note.isBatchDirty()) {
+            note.setBatchDirty(true);
+            dirtyNotes.add(note);
+        }
+    }
+
+    // writes changed notes into the buffer, then copies the changed range into the mesh
+    // (call once a frame, Track does this in updateLogicalState)
+    public void update() {
+        for (int i = 0; i < dirtyNotes.size(); i++) {
+            Note note = dirtyNotes.get(i);
+            note.setBatchDirty(false);
+            if (note.getBatchSlot() >= 0)
+                note.writeToBatch(buffer);
+        }
+        dirtyNotes.clear();
+
+        if (buffer.isResized()) {
+            createBuffers();
+        } else if (buffer.isDirty()) {
+            int from = buffer.getDirtyFrom();
+            int count = Math.min(buffer.getDirtyTo(), buffer.size()-1) - from + 1;
+            if (count > 0) {
+                updateRange(VertexBuffer.Type.Position, buffer.getPositions(), NoteBatchBuffer.POSITION_SIZE, from, count);
+                updateRange(VertexBuffer.Type.TexCoord, buffer.getLocals(), NoteBatchBuffer.LOCAL_SIZE, from, count);
+                updateRange(VertexBuffer.Type.TexCoord2, buffer.getShapes(), NoteBatchBuffer.SHAPE_SIZE, from, count);
+                updateRange(VertexBuffer.Type.Color, buffer.getColors(), NoteBatchBuffer.COLOR_SIZE, from, count);
+                updateRange(VertexBuffer.Type.TexCoord3, buffer.getBorderColors(), NoteBatchBuffer.COLOR_SIZE, from, count);
+                updateRange(VertexBuffer.Type.TexCoord4, buffer.getStyles(), NoteBatchBuffer.STYLE_SIZE, from, count);
+            }
+        } else if (drawnNotes == buffer.size()) {
+            return; // nothing changed at all
+        }
+        if (drawnNotes != buffer.size()) {
+            // only draw the slots that are in use
+            drawnNotes = buffer.size();
+            indices.clear();
+            indices.limit(drawnNotes * NoteBatchBuffer.INDICES_PER_NOTE);
+            mesh.getBuffer(VertexBuffer.Type.Index).updateData(indices);
+            mesh.updateCounts();
+        }
+        buffer.clearDirty();
+        mesh.updateBound();
+        geo.updateModelBound();
+    }
+
+    // the buffer grew, so every vertex buffer has to be made again at the new size
+    private void createBuffers() {
+        setBuffer(VertexBuffer.Type.Position, buffer.getPositions(), NoteBatchBuffer.POSITION_SIZE);
+        setBuffer(VertexBuffer.Type.TexCoord, buffer.getLocals(), NoteBatchBuffer.LOCAL_SIZE);
+        setBuffer(VertexBuffer.Type.TexCoord2, buffer.getShapes(), NoteBatchBuffer.SHAPE_SIZE);
+        setBuffer(VertexBuffer.Type.Color, buffer.getColors(), NoteBatchBuffer.COLOR_SIZE);
+        setBuffer(VertexBuffer.Type.TexCoord3, buffer.getBorderColors(), NoteBatchBuffer.COLOR_SIZE);
+        setBuffer(VertexBuffer.Type.TexCoord4, buffer.getStyles(), NoteBatchBuffer.STYLE_SIZE);
+        int[] indexArray = new int[buffer.getCapacity() * NoteBatchBuffer.INDICES_PER_NOTE];
+        NoteBatchBuffer.fillIndices(indexArray, buffer.getCapacity());
+        indices = BufferUtils.createIntBuffer(indexArray);
+        mesh.setBuffer(VertexBuffer.Type.Index, 3, indices);
+        drawnNotes = -1;
+    }
+
+    private void setBuffer(VertexBuffer.Type type, float[] data, int components) {
+        mesh.setBuffer(type, components, BufferUtils.createFloatBuffer(data));
+        mesh.getBuffer(type).setUsage(VertexBuffer.Usage.Dynamic);
+    }
+
+    private void updateRange(VertexBuffer.Type type, float[] data, int components, int fromSlot, int slotCount) {
+        VertexBuffer vb = mesh.getBuffer(type);
+        FloatBuffer floats = (FloatBuffer) vb.getData();
+        int start = fromSlot * NoteBatchBuffer.VERTS_PER_NOTE * components;
+        int length = slotCount * NoteBatchBuffer.VERTS_PER_NOTE * components;
+        floats.clear();
+        floats.position(start);
+        floats.put(data, start, length);
+        floats.clear();
+        vb.setUpdateNeeded();
+    }
+
+    // gets and sets...
+    public Geometry getGeometry() {
+        return geo;
+    }
+    public NoteBatchBuffer getBuffer() {
+        return buffer;
+    }
+    public int getNoteCount() {
+        return slots.size();
+    }
+
+}
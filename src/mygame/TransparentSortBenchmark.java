@@ -0,0 +1,96 @@
+/*
+ * Times sorting the transparent bucket the way jME does it (SortUtil.msort, like GeometryList.sort)
+ * with the old world z comparator against CustomComparator's precomputed keys,
+ * for different numbers of geometries spread over a handful of track layers...
+ * usage: TransparentSortBenchmark
+ */
+package mygame;
+
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.queue.GeometryComparator;
+import com.jme3.scene.Geometry;
+import com.jme3.util.SortUtil;
+import java.util.Random;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class TransparentSortBenchmark {
+
+    private static final int LAYERS = 8; // tracks, more or less
+    private static final int FRAMES = 200;
+
+    // what CustomComparator did before it had keys
+    private static class WorldZComparator implements GeometryComparator {
+        public void setCamera(Camera cam) {}
+        public int compare(Geometry g1, Geometry g2) {
+            float z1 = g1.getWorldTranslation().z;
+            float z2 = g2.getWorldTranslation().z;
+            if (z1 == z2)
+                return 0;
+            else if (z1 > z2)
+                return 1;
+            else
+                return -1;
+        }
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = {1000, 10000, 50000};
+        for (int i = 0; i < sizes.length; i++) {
+            run(sizes[i]);
+        }
+    }
+
+    private static void run(int count) {
+        // geometries come out of the scene a track at a time, with the tracks in no particular order
+        Random random = new Random(1);
+        Geometry[] queued = new Geometry[count];
+        for (int i = 0; i < count; i++) {
+            Geometry geo = new ZSortedGeometry("NoteQuad", null);
+            int layer = (i * LAYERS / count + 3) % LAYERS;
+            geo.setLocalTranslation(random.nextFloat() * 1000f, random.nextFloat() * 100f, layer);
+            geo.updateGeometricState();
+            queued[i] = geo;
+        }
+
+        float oldMs = time(queued, new WorldZComparator());
+        float newMs = time(queued, new CustomComparator());
+
+        // both sorts are stable, so they should come out exactly the same
+        Geometry[] a = sortOnce(queued, new WorldZComparator());
+        Geometry[] b = sortOnce(queued, new CustomComparator());
+        int differences = 0;
+        for (int i = 0; i < count; i++) {
+            if (a[i] != b[i])
+                differences++;
+        }
+
+        System.out.println(count + " geometries: world z " + oldMs + " ms/frame vs keys " + newMs + " ms/frame, "
+                + differences + " differences");
+    }
+
+    private static float time(Geometry[] queued, GeometryComparator comparator) {
+        Geometry[] list = new Geometry[queued.length];
+        Geometry[] helper = new Geometry[queued.length];
+        // warm up first
+        for (int f = 0; f < FRAMES/4; f++) {
+            System.arraycopy(queued, 0, list, 0, queued.length);
+            SortUtil.msort(list, helper, 0, list.length-1, comparator);
+        }
+        long start = System.nanoTime();
+        for (int f = 0; f < FRAMES; f++) {
+            System.arraycopy(queued, 0, list, 0, queued.length);
+            SortUtil.msort(list, helper, 0, list.length-1, comparator);
+        }
+        return (System.nanoTime() - start) / 1000000f / FRAMES;
+    }
+
+    private static Geometry[] sortOnce(Geometry[] queued, GeometryComparator comparator) {
+        Geometry[] list = queued.clone();
+        SortUtil.msort(list, new Geometry[list.length], 0, list.length-1, comparator);
+        return list;
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * A geometry that works out its transparency sort key whenever its world position
+ * is worked out, instead of every time two geometries are compared...
+ * jME only recomputes world transforms when something moved (or a parent, like a track, did),
+ * so the key is only ever updated when z could have changed. See CustomComparator.
+ */
+package mygame;
+
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+
+/**
+ *
+ * @author SeanTheBest
+ */
+public class ZSortedGeometry extends Geometry {
+
+    private int sortKey = CustomComparator.keyOf(0f);
+
+    public ZSortedGeometry() {}
+
+    public ZSortedGeometry(String name, Mesh mesh) {
+        super(name, mesh);
+    }
+
+    @Override
+    protected void updateWorldTransforms() {
+        super.updateWorldTransforms();
+        sortKey = CustomComparator.keyOf(getWorldTranslation().z);
+    }
+
+    // gets and sets...
+    public int getSortKey() {
+        return sortKey;
+    }
+
+}